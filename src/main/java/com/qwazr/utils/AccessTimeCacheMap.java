@@ -15,105 +15,434 @@
  */
 package com.qwazr.utils;
 
-import com.qwazr.utils.concurrent.ReadWriteLock;
+import com.qwazr.utils.caching.CacheSnapshot;
+import com.qwazr.utils.caching.CacheStats;
+import com.qwazr.utils.caching.CacheStatsCounter;
+import com.qwazr.utils.caching.ResizableCache;
+import com.qwazr.utils.caching.TimerWheel;
+import com.qwazr.utils.concurrent.PeriodicThread;
+import com.qwazr.utils.concurrent.ThreadUtils;
 
-import java.util.LinkedHashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
-public class AccessTimeCacheMap<K, V> {
+/**
+ * A map whose entries expire when they have not been accessed during the time out.
+ * <p>
+ * The reads are lock-free: they only update the access time of the entry.
+ * The expirations are scheduled in a {@link TimerWheel}, which is advanced by the writes,
+ * by {@link #cleanUp()}, or by an optional background sweeper thread.
+ * <p>
+ * In refresh-ahead mode (see {@link Builder#refreshAfterWrite(Duration, Duration, Executor)}),
+ * a value older than the soft time out is still returned while a single asynchronous refresh runs.
+ * The value is only dropped when it is older than the hard time out.
+ * <p>
+ * The map has no maximum size: {@link #resize(double)} scales the time out instead.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class AccessTimeCacheMap<K, V> implements Closeable, CacheStats, ResizableCache {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(AccessTimeCacheMap.class);
 
-    private volatile int size;
+    private final ConcurrentHashMap<K, AccessTimeCacheEntry<K, V>> entryMap;
+    private final long nanosNominalTimeOut;
+    private volatile long nanosTimeOut;
 
-    private final EldestMap entryMap;
-    private final ReadWriteLock rwl = ReadWriteLock.stamped();
+    private final long nanosSoftTimeOut;
+    private final long nanosHardTimeOut;
+    private final Executor refreshExecutor;
+    private final BiConsumer<K, Exception> refreshFailureListener;
+    private final Set<K> refreshingKeys;
 
-    private final long msTimeOut;
+    private final ReentrantLock wheelLock;
+    private final TimerWheel<AccessTimeCacheEntry<K, V>> timerWheel;
+    private final Sweeper sweeper;
+    private final CacheStatsCounter stats;
 
     public AccessTimeCacheMap(int secondsTimeOut) {
-        entryMap = new EldestMap();
-        msTimeOut = secondsTimeOut * 1000;
-        size = 0;
+        this(new Builder<K, V>().timeOut(Duration.ofSeconds(secondsTimeOut)));
     }
 
-    private V getSynchronizedValue(K key, long nextExpirationTime) {
-        final AccessTimeCacheEntry<V> entry = entryMap.get(key);
-        if (entry == null)
-            return null;
-        synchronized (entry) {
-            return entry.getValue(nextExpirationTime);
+    private AccessTimeCacheMap(final Builder<K, V> builder) {
+        this.entryMap = new ConcurrentHashMap<>();
+        this.nanosNominalTimeOut = Objects.requireNonNull(builder.timeOut, "The time out is null").toNanos();
+        this.nanosTimeOut = nanosNominalTimeOut;
+        if (builder.refreshExecutor != null) {
+            this.nanosSoftTimeOut = builder.softTimeOut.toNanos();
+            this.nanosHardTimeOut = builder.hardTimeOut.toNanos();
+            if (nanosSoftTimeOut > nanosHardTimeOut)
+                throw new IllegalArgumentException("The soft time out is greater than the hard time out");
+        } else {
+            this.nanosSoftTimeOut = Long.MAX_VALUE;
+            this.nanosHardTimeOut = Long.MAX_VALUE;
         }
+        this.refreshExecutor = builder.refreshExecutor;
+        this.refreshFailureListener = builder.refreshFailureListener != null ?
+                builder.refreshFailureListener :
+                (key, e) -> LOGGER.log(Level.WARNING, e, () -> "Refresh failure on key: " + key);
+        this.refreshingKeys = ConcurrentHashMap.newKeySet();
+        this.stats = new CacheStatsCounter();
+        this.wheelLock = new ReentrantLock();
+        this.timerWheel = new TimerWheel<>(this::getDeadline, System.nanoTime());
+        if (builder.sweepPeriodSeconds > 0) {
+            sweeper = new Sweeper(builder.sweepPeriodSeconds);
+            final Thread thread = new ThreadUtils.ExtendedThreadFactory().newThread(sweeper);
+            thread.setDaemon(true);
+            thread.start();
+        } else
+            sweeper = null;
     }
 
-    public V getOrCreate(K key, Supplier<V> supplier) {
-        final long nextExpirationTime = System.currentTimeMillis() + msTimeOut;
-        final V val = rwl.read(() -> getSynchronizedValue(key, nextExpirationTime));
-        if (val != null)
-            return val;
-        final AccessTimeCacheEntry<V> entry = new AccessTimeCacheEntry(nextExpirationTime);
-        synchronized (entry) {
-            return rwl.write(() -> {
-                V value = getSynchronizedValue(key, nextExpirationTime);
-                if (value != null)
-                    return value;
-                entryMap.put(key, entry);
-                size = entryMap.size();
-                entry.setValue(supplier);
-                return entry.value;
+    private long getDeadline(final AccessTimeCacheEntry<K, V> entry) {
+        final long accessDeadline = entry.accessTime + nanosTimeOut;
+        return nanosHardTimeOut == Long.MAX_VALUE ?
+                accessDeadline :
+                Math.min(accessDeadline, entry.writeTime + nanosHardTimeOut);
+    }
+
+    private boolean isExpired(final AccessTimeCacheEntry<K, V> entry, final long now) {
+        return now - entry.accessTime >= nanosTimeOut || now - entry.writeTime >= nanosHardTimeOut;
+    }
+
+    private void refresh(final AccessTimeCacheEntry<K, V> entry, final Supplier<V> supplier) {
+        if (!refreshingKeys.add(entry.key))
+            return;
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    final V value = load(supplier);
+                    entry.value = value;
+                    entry.writeTime = System.nanoTime();
+                } catch (Exception e) {
+                    refreshFailureListener.accept(entry.key, e);
+                } finally {
+                    refreshingKeys.remove(entry.key);
+                }
             });
+        } catch (RejectedExecutionException e) {
+            refreshingKeys.remove(entry.key);
+            refreshFailureListener.accept(entry.key, e);
+        }
+    }
+
+    private void expire(final AccessTimeCacheEntry<K, V> entry) {
+        if (entryMap.remove(entry.key, entry))
+            stats.recordEviction();
+    }
+
+    private V load(final Supplier<V> supplier) {
+        final long startTime = System.nanoTime();
+        try {
+            return supplier.get();
+        } finally {
+            stats.recordLoad(System.nanoTime() - startTime);
         }
     }
 
+    /**
+     * Must be called while holding the wheel lock
+     */
+    private void advance(final long now) {
+        timerWheel.advance(now, this::expire);
+    }
+
+    public V getOrCreate(K key, Supplier<V> supplier) {
+        final long now = System.nanoTime();
+        final AccessTimeCacheEntry<K, V> entry = entryMap.get(key);
+        if (entry != null && !isExpired(entry, now)) {
+            entry.accessTime = now;
+            stats.recordHit();
+            if (now - entry.writeTime >= nanosSoftTimeOut)
+                refresh(entry, supplier);
+            return entry.value;
+        }
+        stats.recordMiss();
+        final AccessTimeCacheEntry<K, V> newEntry = entryMap.compute(key, (k, existing) -> {
+            if (existing != null) {
+                if (!isExpired(existing, now))
+                    return existing;
+                stats.recordEviction();
+            }
+            return new AccessTimeCacheEntry<>(k, now, load(supplier));
+        });
+        if (newEntry == entry || newEntry.timer != null)
+            return newEntry.value;
+        wheelLock.lock();
+        try {
+            if (newEntry.timer == null && entryMap.get(key) == newEntry)
+                newEntry.timer = timerWheel.schedule(newEntry);
+            if (entry != null)
+                timerWheel.deschedule(entry.timer);
+            advance(now);
+        } finally {
+            wheelLock.unlock();
+        }
+        return newEntry.value;
+    }
+
     public V remove(K key) {
-        final V val = rwl.read(() -> getSynchronizedValue(key, 0));
-        if (val == null)
+        final AccessTimeCacheEntry<K, V> entry = entryMap.remove(key);
+        if (entry == null)
             return null;
+        wheelLock.lock();
+        try {
+            timerWheel.deschedule(entry.timer);
+            advance(System.nanoTime());
+        } finally {
+            wheelLock.unlock();
+        }
+        return entry.value;
+    }
 
-        return rwl.write(() -> {
-            final V value = getSynchronizedValue(key, 0);
-            if (value == null)
-                return null;
-            entryMap.remove(key);
-            size = entryMap.size();
-            return value;
-        });
+    /**
+     * Write the live entries to a snapshot file, the most recently accessed first.
+     *
+     * @param file       the snapshot file
+     * @param maxEntries the maximum number of entries to write
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @return the number of written entries
+     * @throws IOException if any I/O error occurs
+     * @see CacheSnapshot#dump(Path, Iterable, int, CacheSnapshot.Codec, CacheSnapshot.Codec)
+     */
+    public int dumpSnapshot(final Path file, final int maxEntries,
+                            final CacheSnapshot.Codec<K> keyCodec,
+                            final CacheSnapshot.Codec<V> valueCodec) throws IOException {
+        final long now = System.nanoTime();
+        final List<Map.Entry<K, V>> entries = entryMap.values()
+                .stream()
+                .filter(entry -> !isExpired(entry, now))
+                .sorted(Comparator.comparingLong((AccessTimeCacheEntry<K, V> entry) -> now - entry.accessTime))
+                .limit(maxEntries)
+                .map(entry -> new AbstractMap.SimpleImmutableEntry<>(entry.key, entry.value))
+                .collect(Collectors.toList());
+        return CacheSnapshot.dump(file, entries, maxEntries, keyCodec, valueCodec);
     }
 
-    public int size() {
-        return size;
+    /**
+     * Reload a snapshot in the background. The restored entries are considered as just accessed and written,
+     * and never replace an existing entry.
+     *
+     * @param file       the snapshot file
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @param executor   the executor running the restore
+     * @return a future completed by the number of restored entries
+     * @see CacheSnapshot#restore(Path, CacheSnapshot.Codec, CacheSnapshot.Codec, BiConsumer, Executor)
+     */
+    public CompletableFuture<Integer> restoreSnapshot(final Path file,
+                                                      final CacheSnapshot.Codec<K> keyCodec,
+                                                      final CacheSnapshot.Codec<V> valueCodec,
+                                                      final Executor executor) {
+        return CacheSnapshot.restore(file, keyCodec, valueCodec, this::restore, executor);
     }
 
-    private class EldestMap extends LinkedHashMap<K, AccessTimeCacheEntry<V>> {
+    private void restore(final K key, final V value) {
+        final long now = System.nanoTime();
+        final AccessTimeCacheEntry<K, V> newEntry = new AccessTimeCacheEntry<>(key, now, value);
+        if (entryMap.putIfAbsent(key, newEntry) != null)
+            return;
+        wheelLock.lock();
+        try {
+            if (newEntry.timer == null && entryMap.get(key) == newEntry)
+                newEntry.timer = timerWheel.schedule(newEntry);
+            advance(now);
+        } finally {
+            wheelLock.unlock();
+        }
+    }
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<K, AccessTimeCacheEntry<V>> eldest) {
-            return eldest.getValue().isExpired(System.currentTimeMillis());
+    /**
+     * Remove the expired entries
+     */
+    public void cleanUp() {
+        wheelLock.lock();
+        try {
+            advance(System.nanoTime());
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    public int size() {
+        return entryMap.size();
+    }
+
+    /**
+     * Scale the time out, and remove the entries which have not been accessed during the new time out.
+     * When the ratio grows back, the scheduled expirations are extended.
+     *
+     * @param capacityRatio the ratio of the nominal time out, between 0 (exclusive) and 1
+     */
+    @Override
+    public void resize(final double capacityRatio) {
+        nanosTimeOut = Math.min(nanosNominalTimeOut, Math.max(1, Math.round(nanosNominalTimeOut * capacityRatio)));
+        final long now = System.nanoTime();
+        wheelLock.lock();
+        try {
+            for (final AccessTimeCacheEntry<K, V> entry : entryMap.values()) {
+                if (isExpired(entry, now)) {
+                    timerWheel.deschedule(entry.timer);
+                    expire(entry);
+                }
+            }
+            advance(now);
+        } finally {
+            wheelLock.unlock();
         }
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats.getMissCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats.getEvictionCount();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return stats.getLoadCount();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return stats.getTotalLoadTime();
+    }
 
+    /**
+     * Stop the background sweeper, if any
+     */
+    @Override
+    public void close() {
+        if (sweeper != null)
+            sweeper.shutdown();
     }
 
-    private static class AccessTimeCacheEntry<T> {
+    public static <K, V> Builder<K, V> of(final Duration timeOut) {
+        return new Builder<K, V>().timeOut(timeOut);
+    }
 
-        private volatile long expirationTime;
+    public static class Builder<K, V> {
 
-        private T value;
+        private Duration timeOut;
+        private int sweepPeriodSeconds;
+        private Duration softTimeOut;
+        private Duration hardTimeOut;
+        private Executor refreshExecutor;
+        private BiConsumer<K, Exception> refreshFailureListener;
 
-        AccessTimeCacheEntry(long newExpirationTime) {
-            this.expirationTime = newExpirationTime;
-            this.value = null;
+        public Builder<K, V> timeOut(final Duration timeOut) {
+            this.timeOut = timeOut;
+            return this;
         }
 
-        void setValue(Supplier<T> supplier) {
-            value = supplier.get();
+        /**
+         * Start a daemon thread removing the expired entries periodically.
+         * The map must then be closed to stop the thread.
+         *
+         * @param sweepPeriodSeconds the period of the sweeper, in seconds
+         * @return this builder
+         */
+        public Builder<K, V> sweeper(final int sweepPeriodSeconds) {
+            this.sweepPeriodSeconds = sweepPeriodSeconds;
+            return this;
         }
 
-        T getValue(long newExpirationTime) {
-            expirationTime = newExpirationTime;
-            return value;
+        /**
+         * Enable the refresh-ahead mode.
+         * A value older than the soft time out is returned while it is refreshed on the executor.
+         * A value older than the hard time out is removed, and computed again by the next caller.
+         *
+         * @param softTimeOut the age after which a value is refreshed
+         * @param hardTimeOut the age after which a value is never returned
+         * @param executor    the executor running the refreshes
+         * @return this builder
+         */
+        public Builder<K, V> refreshAfterWrite(final Duration softTimeOut, final Duration hardTimeOut,
+                final Executor executor) {
+            this.softTimeOut = Objects.requireNonNull(softTimeOut, "The soft time out is null");
+            this.hardTimeOut = Objects.requireNonNull(hardTimeOut, "The hard time out is null");
+            this.refreshExecutor = Objects.requireNonNull(executor, "The executor is null");
+            return this;
         }
 
-        boolean isExpired(long compareTime) {
-            return expirationTime < compareTime;
+        /**
+         * Called when a refresh fails. The stale value is kept. By default, the failure is logged.
+         *
+         * @param refreshFailureListener receives the key and the exception
+         * @return this builder
+         */
+        public Builder<K, V> refreshFailureListener(final BiConsumer<K, Exception> refreshFailureListener) {
+            this.refreshFailureListener = refreshFailureListener;
+            return this;
+        }
+
+        public AccessTimeCacheMap<K, V> build() {
+            return new AccessTimeCacheMap<>(this);
+        }
+    }
+
+    private class Sweeper extends PeriodicThread {
+
+        private Sweeper(final int monitoringPeriodSeconds) {
+            super(monitoringPeriodSeconds);
+        }
+
+        @Override
+        protected void runner() {
+            cleanUp();
+        }
+    }
+
+    private static class AccessTimeCacheEntry<K, V> {
+
+        private final K key;
+        private volatile V value;
+        private volatile long accessTime;
+        private volatile long writeTime;
+
+        // Guarded by the wheel lock
+        private TimerWheel.Timer<AccessTimeCacheEntry<K, V>> timer;
+
+        AccessTimeCacheEntry(final K key, final long accessTime, final V value) {
+            this.key = key;
+            this.accessTime = accessTime;
+            this.writeTime = accessTime;
+            this.value = value;
         }
 
     }
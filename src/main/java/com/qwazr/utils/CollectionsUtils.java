@@ -15,6 +15,9 @@
  */
 package com.qwazr.utils;
 
+import com.qwazr.utils.caching.CacheStats;
+import com.qwazr.utils.caching.CacheStatsCounter;
+
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -116,12 +119,15 @@ public class CollectionsUtils {
 		return source == null || source.isEmpty() ? null : supplier.apply(source);
 	}
 
-	public static class EldestFixedSizeMap<K, V> extends LinkedHashMap<K, V> {
+	public static class EldestFixedSizeMap<K, V> extends LinkedHashMap<K, V> implements CacheStats {
 
 		private volatile int maxSize;
 
+		private final CacheStatsCounter stats;
+
 		public EldestFixedSizeMap(int maxSize) {
 			this.maxSize = maxSize;
+			this.stats = new CacheStatsCounter();
 		}
 
 		public void setNewMaxSize(int newMaxSize) {
@@ -132,9 +138,53 @@ public class CollectionsUtils {
 			return maxSize;
 		}
 
+		@Override
+		public V get(Object key) {
+			return stats.recordLookup(super.get(key));
+		}
+
+		@Override
+		public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+			final V value = get(key);
+			return value != null ? value : super.computeIfAbsent(key, stats.recordLoads(mappingFunction));
+		}
+
 		@Override
 		protected boolean removeEldestEntry(Map.Entry<K, V> entry) {
-			return size() > maxSize;
+			if (size() <= maxSize)
+				return false;
+			stats.recordEviction();
+			return true;
+		}
+
+		@Override
+		public long getSize() {
+			return size();
+		}
+
+		@Override
+		public long getHitCount() {
+			return stats.getHitCount();
+		}
+
+		@Override
+		public long getMissCount() {
+			return stats.getMissCount();
+		}
+
+		@Override
+		public long getEvictionCount() {
+			return stats.getEvictionCount();
+		}
+
+		@Override
+		public long getLoadCount() {
+			return stats.getLoadCount();
+		}
+
+		@Override
+		public long getTotalLoadTime() {
+			return stats.getTotalLoadTime();
 		}
 
 	}
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,6 +33,7 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
     private final static Logger LOGGER = LoggerUtils.getLogger(DirectoryWatcher.class);
 
     private final Path rootPath;
+    private final boolean recursive;
     private final WatchService watcher;
     private final HashSet<Consumer<Path>> consumers;
 
@@ -39,17 +41,25 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
 
     private final HashMap<WatchKey, Path> keys;
 
-    private DirectoryWatcher(Path rootPath) throws IOException {
+    private final AtomicBoolean running;
+
+    private volatile boolean ended;
+
+    private DirectoryWatcher(Path rootPath, boolean recursive) throws IOException {
         FileSystem fs = FileSystems.getDefault();
         this.watcher = fs.newWatchService();
         this.rootPath = rootPath;
+        this.recursive = recursive;
         this.keys = new HashMap<>();
         this.consumers = new HashSet<>();
         this.consumersCache = new ArrayList<>();
+        this.running = new AtomicBoolean(false);
     }
 
     private final static HashMap<Path, DirectoryWatcher> watchers = new HashMap<>();
 
+    private final static HashMap<Path, DirectoryWatcher> nonRecursiveWatchers = new HashMap<>();
+
     /**
      * <p>Create a new DirectoryWatcher instance.</p>
      * <p>A DirectoryWatcher is a running thread listening for events in the file system.</p>
@@ -60,13 +70,28 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
      * @throws IOException if any I/O error occurs
      */
     public static DirectoryWatcher register(final Path rootPath, final Consumer<Path> consumer) throws IOException {
-        synchronized (watchers) {
+        return register(rootPath, true, consumer);
+    }
 
-            DirectoryWatcher watcher = watchers.get(rootPath);
-            if (watcher == null) {
+    /**
+     * Create a new DirectoryWatcher instance, or reuse the one watching the same directory the same way.
+     *
+     * @param rootPath  The path of the monitored directory
+     * @param recursive false to watch only the directory itself, and not its subdirectories
+     * @param consumer  The consumer called each time a file event occurs
+     * @return a DirectoryWatcher
+     * @throws IOException if any I/O error occurs
+     */
+    public static DirectoryWatcher register(final Path rootPath, final boolean recursive,
+                                            final Consumer<Path> consumer) throws IOException {
+        synchronized (watchers) {
+            final HashMap<Path, DirectoryWatcher> registry = recursive ? watchers : nonRecursiveWatchers;
+            DirectoryWatcher watcher = registry.get(rootPath);
+            // An ended watcher is replaced, its consumers keep the ended instance
+            if (watcher == null || watcher.ended) {
                 LOGGER.info(() -> "New directory watcher: " + rootPath);
-                watcher = new DirectoryWatcher(rootPath);
-                watchers.put(rootPath, watcher);
+                watcher = new DirectoryWatcher(rootPath, recursive);
+                registry.put(rootPath, watcher);
             }
             watcher.register(consumer);
             return watcher;
@@ -86,7 +111,7 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
                 consumersCache = new ArrayList<>(consumers);
             synchronized (watchers) {
                 if (consumersCache.isEmpty()) {
-                    watchers.remove(rootPath);
+                    (recursive ? watchers : nonRecursiveWatchers).remove(rootPath);
                     close();
                 }
             }
@@ -107,10 +132,62 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
         });
     }
 
+    private void registerRoot() throws IOException {
+        if (recursive)
+            registerDirectory(rootPath, watcher, keys);
+        else
+            keys.put(rootPath.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), rootPath);
+    }
+
+    /**
+     * Tell if the watcher is still notifying the changes. The watcher ends when it is closed,
+     * when an error occurs, or when every watched directory has been deleted.
+     *
+     * @return true if the watcher has been started and has not ended
+     */
+    public boolean isRunning() {
+        return running.get() && !ended;
+    }
+
+    /**
+     * Start the watcher in a daemon thread, unless it is already running.
+     * The directories are registered before this method returns: any later change is notified.
+     *
+     * @return this watcher
+     * @throws IOException if the directories cannot be registered
+     */
+    public synchronized DirectoryWatcher startDaemon() throws IOException {
+        if (!running.compareAndSet(false, true))
+            return this;
+        try {
+            registerRoot();
+        } catch (IOException | RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+        final Thread thread = new Thread(this::watch, "DirectoryWatcher " + rootPath);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
     @Override
     public void run() {
+        if (!running.compareAndSet(false, true))
+            return;
+        try {
+            registerRoot();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Directory watcher ends: " + rootPath);
+            ended = true;
+            return;
+        }
+        watch();
+    }
+
+    private void watch() {
         try {
-            registerDirectory(rootPath, watcher, keys);
             // Infinite loop.
             for (; ; ) {
                 WatchKey key = watcher.take();
@@ -128,7 +205,7 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
 
                         Path child = dir.resolve(file);
                         // If this is a new directory, we have to register it
-                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+                        if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
                             if (kind == StandardWatchEventKinds.ENTRY_CREATE)
                                 registerDirectory(child, watcher, keys);
                     }
@@ -145,6 +222,8 @@ public class DirectoryWatcher implements Runnable, Closeable, AutoCloseable {
             LOGGER.log(Level.FINER, e1, () -> "Directory watcher ends: " + rootPath);
         } catch (IOException | InterruptedException e2) {
             LOGGER.log(Level.WARNING, e2, () -> "Directory watcher ends: " + rootPath);
+        } finally {
+            ended = true;
         }
     }
 
@@ -15,36 +15,83 @@
  */
 package com.qwazr.utils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 /**
  * This class keep a persistent version of your instance in the file system
+ * <p>
+ * By default, each call to {@link #get()} checks the last modified time of the file.
+ * With a staleness window, or when watching the parent directory, the cached instance is returned
+ * without any file system access while it is considered fresh.
+ * If the watcher of the parent directory ends, the staleness window applies again.
  *
  * @param <T> the cached type
  */
-public class FileInstanceCache<T> {
+public class FileInstanceCache<T> implements Closeable {
 
-	private volatile T cachedInstance;
-	private volatile long lastModifiedFile;
+	private volatile Cached<T> cached;
+	private volatile long generation;
 
 	final Path path;
 	final File file;
 	final Reader<T> reader;
 	final Writer<T> writer;
 
-	private FileInstanceCache(Builder<T> builder) {
+	private final long stalenessWindowNanos;
+	private final Path watchedDirectory;
+	private final Consumer<Path> watchConsumer;
+	private final DirectoryWatcher directoryWatcher;
+
+	private FileInstanceCache(Builder<T> builder) throws IOException {
 		path = builder.path;
 		file = path.toFile();
 		reader = builder.reader;
 		writer = builder.writer;
+		stalenessWindowNanos = builder.stalenessWindow == null ? 0 : builder.stalenessWindow.toNanos();
+		if (builder.watch) {
+			watchedDirectory = path.toAbsolutePath().getParent();
+			watchConsumer = this::invalidate;
+			// The directory is watched before the first read: no change can be missed
+			directoryWatcher = DirectoryWatcher.register(watchedDirectory, false, watchConsumer).startDaemon();
+		} else {
+			watchedDirectory = null;
+			watchConsumer = null;
+			directoryWatcher = null;
+		}
+	}
+
+	private void invalidate(final Path directory) {
+		if (watchedDirectory.equals(directory))
+			generation++;
+	}
+
+	private boolean isFresh(final Cached<T> cached) {
+		// If the watcher has ended, the last modified time is checked again
+		if (directoryWatcher != null && directoryWatcher.isRunning())
+			return cached.generation == generation;
+		return stalenessWindowNanos > 0 && System.nanoTime() - cached.checkTime < stalenessWindowNanos;
+	}
+
+	private long lastModified() {
+		final long lastModified = file.lastModified();
+		return lastModified != 0 || Files.exists(path) ? lastModified : -1;
 	}
 
 	/**
-	 * Return the instance. The last modified time if the file is checked.
+	 * Return the instance. The last modified time if the file is checked,
+	 * unless the cached instance is still fresh.
 	 * If the file has changed, the instance is read again from the file.
 	 * If the file does not exist, the method returns null.
 	 *
@@ -54,21 +101,33 @@ public class FileInstanceCache<T> {
 	public T get() throws IOException {
 		if (reader == null)
 			throw new IOException("This file cache instance is write only");
+		final Cached<T> current = cached;
+		if (current != null && isFresh(current))
+			return current.instance;
 		synchronized (file) {
-			if (!Files.exists(path))
-				return null;
-			final long newLastUserModified = file.lastModified();
-			if (cachedInstance != null && lastModifiedFile == newLastUserModified)
-				return cachedInstance;
-			cachedInstance = reader.read(file);
-			lastModifiedFile = newLastUserModified;
-			return cachedInstance;
+			final long currentGeneration = generation;
+			final long newLastUserModified = lastModified();
+			final Cached<T> previous = cached;
+			final T instance;
+			if (newLastUserModified == -1)
+				instance = null;
+			else if (previous != null && previous.instance != null && previous.lastModified == newLastUserModified &&
+					(directoryWatcher == null || previous.generation == currentGeneration))
+				instance = previous.instance;
+			else
+				instance = reader.read(file);
+			cached = new Cached<>(instance, newLastUserModified, currentGeneration);
+			return instance;
 		}
 	}
 
 	/**
 	 * Write the instance in the file.
 	 * If the new instance eguals the cached instance, the file is not writed again.
+	 * The instance is written in a temporary file which is then renamed,
+	 * so that a concurrent reader never reads a partially written file.
+	 * The temporary file gets the permissions of the replaced file,
+	 * or the default permissions of a new file.
 	 *
 	 * @param instance the instance to write
 	 * @return the cached instance
@@ -78,13 +137,72 @@ public class FileInstanceCache<T> {
 		if (writer == null)
 			throw new IOException("This file cache instance is read only");
 		synchronized (file) {
-			if (!Objects.equals(instance, cachedInstance) || !Files.exists(path))
-				writer.write(instance, file);
-			cachedInstance = instance;
+			final long currentGeneration = generation;
+			final Cached<T> previous = cached;
+			if (previous == null || !Objects.equals(instance, previous.instance) || !Files.exists(path))
+				atomicWrite(instance);
+			cached = new Cached<>(instance, lastModified(), currentGeneration);
 		}
 		return this;
 	}
 
+	private void atomicWrite(final T instance) throws IOException {
+		// Unlike Files.createTempFile, which restricts the permissions to the owner, the umask applies
+		final Path tempPath = Files.createFile(path.toAbsolutePath().getParent().resolve(
+				path.getFileName().toString() + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) +
+						".tmp"));
+		try {
+			copyAttributes(path, tempPath);
+			writer.write(instance, tempPath.toFile());
+			try {
+				Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	private static void copyAttributes(final Path source, final Path target) throws IOException {
+		final PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+		if (targetView == null || !Files.exists(source))
+			return;
+		final PosixFileAttributes attributes = Files.readAttributes(source, PosixFileAttributes.class);
+		targetView.setPermissions(attributes.permissions());
+		try {
+			targetView.setGroup(attributes.group());
+		} catch (IOException e) {
+			// Only the groups of the owner are allowed
+		}
+	}
+
+	/**
+	 * Stop watching the parent directory, if any.
+	 *
+	 * @throws IOException if any I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		if (directoryWatcher != null)
+			directoryWatcher.unregister(watchConsumer);
+	}
+
+	private static class Cached<T> {
+
+		private final T instance;
+		private final long lastModified;
+		private final long generation;
+		private final long checkTime;
+
+		private Cached(final T instance, final long lastModified, final long generation) {
+			this.instance = instance;
+			this.lastModified = lastModified;
+			this.generation = generation;
+			this.checkTime = System.nanoTime();
+		}
+	}
+
 	@FunctionalInterface
 	public interface Reader<T> {
 
@@ -106,6 +224,8 @@ public class FileInstanceCache<T> {
 		private Path path;
 		private Reader<T> reader;
 		private Writer<T> writer;
+		private Duration stalenessWindow;
+		private boolean watch;
 
 		public Builder<T> path(Path path) {
 			this.path = path;
@@ -122,6 +242,28 @@ public class FileInstanceCache<T> {
 			return this;
 		}
 
+		/**
+		 * The file is not checked again until the window is elapsed since the last check.
+		 *
+		 * @param stalenessWindow the duration during which the cached instance is returned without checking the file
+		 * @return the builder
+		 */
+		public Builder<T> stalenessWindow(Duration stalenessWindow) {
+			this.stalenessWindow = stalenessWindow;
+			return this;
+		}
+
+		/**
+		 * The file is only checked again when a {@link DirectoryWatcher} notifies a change in the parent directory.
+		 * The cache must then be closed to unregister from the watcher.
+		 *
+		 * @return the builder
+		 */
+		public Builder<T> watch() {
+			this.watch = true;
+			return this;
+		}
+
 		public FileInstanceCache<T> build() throws IOException {
 			return new FileInstanceCache<>(this);
 		}
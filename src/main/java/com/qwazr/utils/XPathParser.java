@@ -15,6 +15,8 @@
  */
 package com.qwazr.utils;
 
+import com.qwazr.utils.caching.CacheStats;
+import com.qwazr.utils.caching.CacheStatsCounter;
 import org.apache.commons.lang3.tuple.Pair;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -32,10 +34,12 @@ public class XPathParser {
 
 	private final XPath xPath;
 	private final ConcurrentHashMap<String, XPathExpression> xPathExpressions;
+	private final CacheStatsCounter xPathExpressionsStats;
 
 	public XPathParser() {
 		this.xPath = getXPath();
 		this.xPathExpressions = new ConcurrentHashMap<>();
+		this.xPathExpressionsStats = new CacheStatsCounter();
 	}
 
 	public static XPath getXPath() {
@@ -45,13 +49,23 @@ public class XPathParser {
 	}
 
 	private XPathExpression getExpression(final String query) {
-		return xPathExpressions.computeIfAbsent(query, s -> {
+		final XPathExpression expression = xPathExpressionsStats.recordLookup(xPathExpressions.get(query));
+		if (expression != null)
+			return expression;
+		return xPathExpressions.computeIfAbsent(query, xPathExpressionsStats.recordLoads(s -> {
 			try {
 				return xPath.compile(query);
 			} catch (XPathExpressionException e) {
 				throw new IllegalArgumentException(e);
 			}
-		});
+		}));
+	}
+
+	/**
+	 * @return the statistics of the compiled expressions cache
+	 */
+	public CacheStats getExpressionCacheStats() {
+		return xPathExpressionsStats.asCacheStats(xPathExpressions::size);
 	}
 
 	final public String evaluateString(final Node rootNode, final String query) throws XPathExpressionException {
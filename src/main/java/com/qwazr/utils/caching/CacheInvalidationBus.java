@@ -0,0 +1,385 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.DatagramUtils;
+import com.qwazr.utils.LoggerUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Broadcasts cache key invalidations to peer nodes over UDP, and applies the invalidations received from them.
+ * <p>
+ * Each cache is registered as a named topic with a key codec and an invalidator, typically the remove method
+ * of the cache. The invalidations published on a topic are coalesced during the linger time and sent by batches
+ * with {@link DatagramUtils}. A datagram is: magic number, sender id, then the groups of keys, each one made of
+ * the topic name, the number of keys, and the length prefixed keys.
+ * <p>
+ * UDP does not guarantee the delivery: the invalidation is a best effort which shortens the staleness,
+ * the caches should still expire their entries.
+ */
+@ThreadSafe
+public class CacheInvalidationBus implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CacheInvalidationBus.class);
+
+    private final static int MAGIC = 0x51434942;
+    private final static int HEADER_SIZE = 12;
+    private final static int MAX_DATAGRAM_SIZE = 65507;
+
+    private final long senderId;
+    private final DatagramSocket socket;
+    private final Set<SocketAddress> peers;
+    private final long lingerNanos;
+    private final int maxDatagramSize;
+    private final Map<String, Topic<?>> topics;
+    private final BlockingQueue<Invalidation> pending;
+    private final Thread receiver;
+    private final Thread sender;
+    private final LongAdder sentDatagramCount;
+    private final LongAdder sentKeyCount;
+    private final LongAdder receivedKeyCount;
+    private volatile boolean closed;
+
+    protected CacheInvalidationBus(final Builder builder) throws SocketException {
+        senderId = new Random().nextLong();
+        socket = new DatagramSocket(Objects.requireNonNull(builder.bindAddress, "The bind address is null"));
+        peers = new CopyOnWriteArraySet<>(builder.peers);
+        lingerNanos = builder.linger.toNanos();
+        maxDatagramSize = builder.maxDatagramSize;
+        topics = new ConcurrentHashMap<>();
+        pending = new LinkedBlockingQueue<>();
+        sentDatagramCount = new LongAdder();
+        sentKeyCount = new LongAdder();
+        receivedKeyCount = new LongAdder();
+        receiver = new Thread(this::receive, "CacheInvalidationBus receiver " + socket.getLocalSocketAddress());
+        receiver.setDaemon(true);
+        receiver.start();
+        sender = new Thread(this::send, "CacheInvalidationBus sender " + socket.getLocalSocketAddress());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @return the address the bus is listening to, which is the address to give to the peers
+     */
+    public SocketAddress getLocalAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    public void addPeer(final SocketAddress peer) {
+        peers.add(Objects.requireNonNull(peer, "The peer is null"));
+    }
+
+    public void removePeer(final SocketAddress peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * Register a cache. The topic name and the codec must be the same on all the nodes.
+     *
+     * @param name        the name of the topic
+     * @param keyCodec    the codec of the keys
+     * @param invalidator called with each key invalidated by a peer
+     * @param <K>         the type of the keys
+     * @return the topic, used to publish the local invalidations
+     */
+    public <K> Topic<K> register(final String name, final CacheSnapshot.Codec<K> keyCodec,
+                                 final Consumer<K> invalidator) {
+        final Topic<K> topic = new Topic<>(name, keyCodec, invalidator);
+        if (topics.putIfAbsent(name, topic) != null)
+            throw new IllegalArgumentException("The topic is already registered: " + name);
+        return topic;
+    }
+
+    public void unregister(final String name) {
+        topics.remove(name);
+    }
+
+    public long getSentDatagramCount() {
+        return sentDatagramCount.sum();
+    }
+
+    public long getSentKeyCount() {
+        return sentKeyCount.sum();
+    }
+
+    public long getReceivedKeyCount() {
+        return receivedKeyCount.sum();
+    }
+
+    private void send() {
+        final List<Invalidation> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                final Invalidation first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                final long deadline = System.nanoTime() + lingerNanos;
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    final Invalidation next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                pending.drainTo(batch);
+                sendBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot send the invalidations");
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void sendBatch(final List<Invalidation> batch) throws IOException {
+        if (peers.isEmpty())
+            return;
+        final Map<String, List<byte[]>> groups = new LinkedHashMap<>();
+        for (final Invalidation invalidation : batch)
+            groups.computeIfAbsent(invalidation.topic, t -> new ArrayList<>()).add(invalidation.key);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(maxDatagramSize);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        int keyCount = 0;
+        for (final Map.Entry<String, List<byte[]>> group : groups.entrySet()) {
+            final byte[] topic = group.getKey().getBytes(StandardCharsets.UTF_8);
+            final List<byte[]> keys = group.getValue();
+            int i = 0;
+            while (i < keys.size()) {
+                if (bytes.size() == 0) {
+                    output.writeInt(MAGIC);
+                    output.writeLong(senderId);
+                }
+                // Fill the datagram with the keys of the group which fit in it
+                int end = i;
+                int size = bytes.size() + 2 + topic.length + 2;
+                while (end < keys.size() && size + 2 + keys.get(end).length <= maxDatagramSize)
+                    size += 2 + keys.get(end++).length;
+                if (end == i) {
+                    flush(bytes, keyCount);
+                    keyCount = 0;
+                    continue;
+                }
+                output.writeShort(topic.length);
+                output.write(topic);
+                output.writeShort(end - i);
+                for (; i < end; i++) {
+                    output.writeShort(keys.get(i).length);
+                    output.write(keys.get(i));
+                    keyCount++;
+                }
+            }
+        }
+        if (bytes.size() > 0)
+            flush(bytes, keyCount);
+    }
+
+    private void flush(final ByteArrayOutputStream bytes, final int keyCount) throws IOException {
+        DatagramUtils.send(bytes.toByteArray(), peers);
+        sentDatagramCount.increment();
+        sentKeyCount.add(keyCount);
+        bytes.reset();
+    }
+
+    private void receive() {
+        final byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!closed) {
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                apply(packet);
+            } catch (IOException | RuntimeException e) {
+                if (!closed)
+                    LOGGER.log(Level.WARNING, e, () -> "Cannot receive the invalidations");
+            }
+        }
+    }
+
+    private void apply(final DatagramPacket packet) throws IOException {
+        try (final DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()))) {
+            if (packet.getLength() < HEADER_SIZE || input.readInt() != MAGIC)
+                throw new IOException("Not an invalidation datagram from " + packet.getSocketAddress());
+            if (input.readLong() == senderId)
+                return;
+            while (input.available() > 0) {
+                final byte[] name = new byte[input.readUnsignedShort()];
+                input.readFully(name);
+                final Topic<?> topic = topics.get(new String(name, StandardCharsets.UTF_8));
+                final int keyCount = input.readUnsignedShort();
+                for (int i = 0; i < keyCount; i++) {
+                    final byte[] key = new byte[input.readUnsignedShort()];
+                    input.readFully(key);
+                    receivedKeyCount.increment();
+                    if (topic != null)
+                        topic.apply(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the threads and close the socket. The pending invalidations are not sent.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+        sender.interrupt();
+    }
+
+    public static Builder of(final SocketAddress bindAddress) {
+        return new Builder(bindAddress);
+    }
+
+    public static class Builder {
+
+        private final SocketAddress bindAddress;
+        private final List<SocketAddress> peers = new ArrayList<>();
+        private Duration linger = Duration.ofMillis(10);
+        private int maxDatagramSize = 1400;
+
+        private Builder(final SocketAddress bindAddress) {
+            this.bindAddress = bindAddress;
+        }
+
+        public Builder peer(final SocketAddress peer) {
+            peers.add(Objects.requireNonNull(peer, "The peer is null"));
+            return this;
+        }
+
+        public Builder peers(final Collection<? extends SocketAddress> peers) {
+            peers.forEach(this::peer);
+            return this;
+        }
+
+        /**
+         * @param linger how long the first pending invalidation waits for others to be batched with (default 10ms)
+         * @return this builder
+         */
+        public Builder linger(final Duration linger) {
+            this.linger = Objects.requireNonNull(linger, "The linger is null");
+            return this;
+        }
+
+        /**
+         * @param maxDatagramSize the maximum size of a datagram, 1400 by default to avoid the IP fragmentation
+         * @return this builder
+         */
+        public Builder maxDatagramSize(final int maxDatagramSize) {
+            if (maxDatagramSize < 64 || maxDatagramSize > MAX_DATAGRAM_SIZE)
+                throw new IllegalArgumentException("The datagram size should be between 64 and " + MAX_DATAGRAM_SIZE);
+            this.maxDatagramSize = maxDatagramSize;
+            return this;
+        }
+
+        public CacheInvalidationBus build() throws SocketException {
+            return new CacheInvalidationBus(this);
+        }
+    }
+
+    /**
+     * A registered cache
+     *
+     * @param <K> the type of the keys
+     */
+    public final class Topic<K> {
+
+        private final String name;
+        private final CacheSnapshot.Codec<K> keyCodec;
+        private final Consumer<K> invalidator;
+        private final int maxKeySize;
+
+        private Topic(final String name, final CacheSnapshot.Codec<K> keyCodec, final Consumer<K> invalidator) {
+            this.name = Objects.requireNonNull(name, "The name is null");
+            this.keyCodec = Objects.requireNonNull(keyCodec, "The key codec is null");
+            this.invalidator = Objects.requireNonNull(invalidator, "The invalidator is null");
+            this.maxKeySize = maxDatagramSize - HEADER_SIZE - 6 - name.getBytes(StandardCharsets.UTF_8).length;
+            if (maxKeySize <= 0)
+                throw new IllegalArgumentException("The topic name is too long: " + name);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Queue the invalidation of the key on the peers. The local cache is not modified.
+         *
+         * @param key the key to invalidate
+         * @throws IOException if the key cannot be encoded, or exceeds the size of a datagram
+         */
+        public void invalidate(final K key) throws IOException {
+            final byte[] bytes = keyCodec.encode(key);
+            if (bytes.length > maxKeySize)
+                throw new IOException("The encoded key is too long: " + bytes.length + " > " + maxKeySize);
+            pending.add(new Invalidation(name, bytes));
+        }
+
+        private void apply(final byte[] key) {
+            try {
+                invalidator.accept(keyCodec.decode(key));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot invalidate a key of the topic " + name);
+            }
+        }
+    }
+
+    private static final class Invalidation {
+
+        private final String topic;
+        private final byte[] key;
+
+        private Invalidation(final String topic, final byte[] key) {
+            this.topic = topic;
+            this.key = key;
+        }
+    }
+}
@@ -15,23 +15,157 @@
  */
 package com.qwazr.utils.caching;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
-public class CacheMap<KEY, VALUE> extends LinkedHashMap<KEY, VALUE> {
+public class CacheMap<KEY, VALUE> extends LinkedHashMap<KEY, VALUE> implements CacheStats, ResizableCache {
 
     protected final int maxSize;
 
+    private volatile int currentMaxSize;
+
+    private final CacheStatsCounter stats;
+
     protected CacheMap(int maxSize) {
         this.maxSize = maxSize;
+        this.currentMaxSize = maxSize;
+        this.stats = new CacheStatsCounter();
     }
 
     public int getMaxSize() {
         return maxSize;
     }
 
+    /**
+     * @return the maximum number of entries, lower than {@link #getMaxSize()} if the map has been shrunk
+     */
+    public int getCurrentMaxSize() {
+        return currentMaxSize;
+    }
+
+    /**
+     * Scale the maximum number of entries, and evict the eldest entries exceeding it.
+     * As for any other mutation, the caller must prevent concurrent accesses,
+     * e.g. by wrapping this map in a {@link KeyLockedCache}.
+     *
+     * @param capacityRatio the ratio of the nominal capacity, between 0 (exclusive) and 1
+     */
+    @Override
+    public void resize(final double capacityRatio) {
+        currentMaxSize = (int) Math.min(maxSize, Math.max(1, Math.round(maxSize * capacityRatio)));
+        final Iterator<Map.Entry<KEY, VALUE>> iterator = entrySet().iterator();
+        while (size() > currentMaxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            stats.recordEviction();
+        }
+    }
+
+    /**
+     * @return false, this map is not thread-safe
+     */
+    @Override
+    public boolean isConcurrentlyResizable() {
+        return false;
+    }
+
+    @Override
+    public VALUE get(final Object key) {
+        return stats.recordLookup(super.get(key));
+    }
+
+    @Override
+    public VALUE computeIfAbsent(final KEY key, final Function<? super KEY, ? extends VALUE> mappingFunction) {
+        final VALUE value = get(key);
+        return value != null ? value : super.computeIfAbsent(key, stats.recordLoads(mappingFunction));
+    }
+
     @Override
     protected boolean removeEldestEntry(final Map.Entry<KEY, VALUE> eldest) {
-        return size() > maxSize;
+        if (size() <= currentMaxSize)
+            return false;
+        stats.recordEviction();
+        return true;
+    }
+
+    /**
+     * Write the most recently inserted entries to a snapshot file, the eldest first,
+     * so that the restore keeps the insertion order.
+     * The caller must prevent concurrent modifications, e.g. by holding the monitor of this map.
+     *
+     * @param file       the snapshot file
+     * @param maxEntries the maximum number of entries to write
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @return the number of written entries
+     * @throws IOException if any I/O error occurs
+     * @see CacheSnapshot#dump(Path, Iterable, int, CacheSnapshot.Codec, CacheSnapshot.Codec)
+     */
+    public int dumpSnapshot(final Path file, final int maxEntries,
+                            final CacheSnapshot.Codec<KEY> keyCodec,
+                            final CacheSnapshot.Codec<VALUE> valueCodec) throws IOException {
+        final List<Map.Entry<KEY, VALUE>> entries = new ArrayList<>(entrySet());
+        return CacheSnapshot.dump(file, entries.subList(Math.max(0, entries.size() - maxEntries), entries.size()),
+                maxEntries, keyCodec, valueCodec);
+    }
+
+    /**
+     * Reload a snapshot in the background, in the order of the file. The entries are inserted while holding
+     * the monitor of this map, and never replace an existing entry.
+     *
+     * @param file       the snapshot file
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @param executor   the executor running the restore
+     * @return a future completed by the number of restored entries
+     * @see CacheSnapshot#restoreInOrder(Path, CacheSnapshot.Codec, CacheSnapshot.Codec, java.util.function.BiConsumer, Executor)
+     */
+    public CompletableFuture<Integer> restoreSnapshot(final Path file,
+                                                      final CacheSnapshot.Codec<KEY> keyCodec,
+                                                      final CacheSnapshot.Codec<VALUE> valueCodec,
+                                                      final Executor executor) {
+        return CacheSnapshot.restoreInOrder(file, keyCodec, valueCodec, (key, value) -> {
+            synchronized (this) {
+                putIfAbsent(key, value);
+            }
+        }, executor);
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats.getMissCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats.getEvictionCount();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return stats.getLoadCount();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return stats.getTotalLoadTime();
     }
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.ObjectMappers;
+import com.qwazr.utils.SerializationUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dump the entries of a cache to a file, and reload them in a new cache for a warm restart.
+ * <p>
+ * A snapshot is a stream of serialized key/value records, in the order chosen by the cache: the hottest entries
+ * first, or the eldest first for a cache evicting by insertion order.
+ * It is written in a temporary file which is then renamed, so that a crash never leaves a truncated snapshot.
+ * The restore is asynchronous: the file is read by one task while the records are decoded in parallel by batches.
+ * The batches are inserted in parallel, or one after the other in the order of the file for a cache
+ * sensitive to the insertion order (see {@link #restoreInOrder}).
+ * An entry already present in the cache is never replaced by the snapshot.
+ */
+public final class CacheSnapshot {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(CacheSnapshot.class);
+
+    private final static int MAGIC = 0x51434e53;
+    private final static int END = -1;
+    private final static int BATCH_SIZE = 256;
+
+    /**
+     * Encode and decode the keys or the values of a snapshot.
+     *
+     * @param <T> the type of the encoded objects
+     */
+    public interface Codec<T> {
+
+        byte[] encode(T object) throws IOException;
+
+        T decode(byte[] bytes) throws IOException;
+
+        /**
+         * @param clazz the class of the objects
+         * @param <T>   the type of the objects
+         * @return a codec using {@link SerializationUtils#toExternalizorBytes(Serializable)}
+         */
+        static <T extends Serializable> Codec<T> externalizor(final Class<T> clazz) {
+            return new Codec<T>() {
+
+                @Override
+                public byte[] encode(final T object) throws IOException {
+                    try {
+                        return SerializationUtils.toExternalizorBytes(object);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IOException("Cannot serialize " + clazz, e);
+                    }
+                }
+
+                @Override
+                public T decode(final byte[] bytes) throws IOException {
+                    try {
+                        return SerializationUtils.fromExternalizorBytes(bytes, clazz);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IOException("Cannot deserialize " + clazz, e);
+                    }
+                }
+            };
+        }
+
+        /**
+         * @param clazz the class of the objects
+         * @param <T>   the type of the objects
+         * @return a codec using {@link ObjectMappers#SMILE}
+         */
+        static <T> Codec<T> smile(final Class<T> clazz) {
+            return new Codec<T>() {
+
+                @Override
+                public byte[] encode(final T object) throws IOException {
+                    return ObjectMappers.SMILE.writeValueAsBytes(object);
+                }
+
+                @Override
+                public T decode(final byte[] bytes) throws IOException {
+                    return ObjectMappers.SMILE.readValue(bytes, clazz);
+                }
+            };
+        }
+    }
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Write a snapshot. The entries with a null key or value are skipped.
+     *
+     * @param file       the snapshot file, replaced if it exists
+     * @param entries    the entries, the hottest first
+     * @param maxEntries the maximum number of entries to write
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @param <K>        the type of the keys
+     * @param <V>        the type of the values
+     * @return the number of written entries
+     * @throws IOException if any I/O error occurs
+     */
+    public static <K, V> int dump(final Path file, final Iterable<? extends Map.Entry<K, V>> entries,
+                                  final int maxEntries, final Codec<K> keyCodec, final Codec<V> valueCodec)
+            throws IOException {
+        final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        boolean moved = false;
+        try {
+            try (final DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                output.writeInt(MAGIC);
+                for (final Map.Entry<K, V> entry : entries) {
+                    if (count >= maxEntries)
+                        break;
+                    final K key = entry.getKey();
+                    final V value = entry.getValue();
+                    if (key == null || value == null)
+                        continue;
+                    write(output, keyCodec.encode(key));
+                    write(output, valueCodec.encode(value));
+                    count++;
+                }
+                output.writeInt(END);
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            return count;
+        } finally {
+            if (!moved)
+                deleteTempFile(tempFile);
+        }
+    }
+
+    /**
+     * Remove the partial snapshot of a failed dump, without hiding the failure of the dump
+     */
+    private static void deleteTempFile(final Path tempFile) {
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot delete the temporary snapshot " + tempFile);
+        }
+    }
+
+    private static void write(final DataOutputStream output, final byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] read(final DataInputStream input, final int length) throws IOException {
+        if (length < 0)
+            throw new IOException("Corrupted snapshot record length: " + length);
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read a snapshot in the background.
+     * The file is read by one task on the executor, and each batch of records is decoded
+     * and passed to the consumer by another task, so the consumer must be thread-safe.
+     *
+     * @param file       the snapshot file
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @param consumer   receives the restored entries
+     * @param executor   the executor running the reading and the decoding
+     * @param <K>        the type of the keys
+     * @param <V>        the type of the values
+     * @return a future completed by the number of restored entries, or failed if the executor rejects the task
+     */
+    public static <K, V> CompletableFuture<Integer> restore(final Path file, final Codec<K> keyCodec,
+                                                           final Codec<V> valueCodec,
+                                                           final BiConsumer<K, V> consumer,
+                                                           final Executor executor) {
+        return restore(file, keyCodec, valueCodec, consumer, executor, false);
+    }
+
+    /**
+     * Read a snapshot in the background, for a cache sensitive to the insertion order.
+     * The batches of records are decoded in parallel, but passed to the consumer one after the other,
+     * in the order of the file.
+     *
+     * @param file       the snapshot file
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @param consumer   receives the restored entries, in the order of the file
+     * @param executor   the executor running the reading and the decoding
+     * @param <K>        the type of the keys
+     * @param <V>        the type of the values
+     * @return a future completed by the number of restored entries, or failed if the executor rejects the task
+     */
+    public static <K, V> CompletableFuture<Integer> restoreInOrder(final Path file, final Codec<K> keyCodec,
+                                                                  final Codec<V> valueCodec,
+                                                                  final BiConsumer<K, V> consumer,
+                                                                  final Executor executor) {
+        return restore(file, keyCodec, valueCodec, consumer, executor, true);
+    }
+
+    private static <K, V> CompletableFuture<Integer> restore(final Path file, final Codec<K> keyCodec,
+                                                            final Codec<V> valueCodec,
+                                                            final BiConsumer<K, V> consumer,
+                                                            final Executor executor, final boolean inOrder) {
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> readSnapshot(file, keyCodec, valueCodec, consumer, executor, inOrder, result));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private static <K, V> void readSnapshot(final Path file, final Codec<K> keyCodec, final Codec<V> valueCodec,
+                                            final BiConsumer<K, V> consumer, final Executor executor,
+                                            final boolean inOrder, final CompletableFuture<Integer> result) {
+        final List<CompletableFuture<Integer>> batches = new ArrayList<>();
+        try (final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC)
+                throw new IOException("Not a cache snapshot: " + file);
+            List<byte[]> batch = new ArrayList<>();
+            int keyLength;
+            while ((keyLength = input.readInt()) != END) {
+                batch.add(read(input, keyLength));
+                batch.add(read(input, input.readInt()));
+                if (batch.size() >= BATCH_SIZE * 2) {
+                    batches.add(restoreBatch(batch, keyCodec, valueCodec, consumer, executor, inOrder, batches));
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty())
+                batches.add(restoreBatch(batch, keyCodec, valueCodec, consumer, executor, inOrder, batches));
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((v, t) -> result.completeExceptionally(e));
+            return;
+        }
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).whenComplete((v, t) -> {
+            if (t != null)
+                result.completeExceptionally(t);
+            else
+                result.complete(batches.stream().mapToInt(CompletableFuture::join).sum());
+        });
+    }
+
+    /**
+     * @param previous the batches submitted before this one
+     * @return the future of the number of the entries of the batch
+     */
+    private static <K, V> CompletableFuture<Integer> restoreBatch(final List<byte[]> batch, final Codec<K> keyCodec,
+                                                                 final Codec<V> valueCodec,
+                                                                 final BiConsumer<K, V> consumer,
+                                                                 final Executor executor, final boolean inOrder,
+                                                                 final List<CompletableFuture<Integer>> previous) {
+        final CompletableFuture<List<Map.Entry<K, V>>> decoded = CompletableFuture.supplyAsync(() -> {
+            try {
+                final List<Map.Entry<K, V>> entries = new ArrayList<>(batch.size() / 2);
+                for (int i = 0; i < batch.size(); i += 2)
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(keyCodec.decode(batch.get(i)),
+                            valueCodec.decode(batch.get(i + 1))));
+                return entries;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+        if (!inOrder || previous.isEmpty())
+            return decoded.thenApply(entries -> accept(entries, consumer));
+        // Inserted once the previous batch is inserted
+        return previous.get(previous.size() - 1).thenCombine(decoded, (count, entries) -> accept(entries, consumer));
+    }
+
+    private static <K, V> int accept(final List<Map.Entry<K, V>> entries, final BiConsumer<K, V> consumer) {
+        entries.forEach(entry -> consumer.accept(entry.getKey(), entry.getValue()));
+        return entries.size();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.Equalizer;
+
+import javax.management.MXBean;
+import java.util.Objects;
+
+/**
+ * The statistics shared by the caches.
+ * This interface is also the management interface published by {@link CacheStatsRegistry}.
+ */
+@MXBean
+public interface CacheStats {
+
+    /**
+     * @return the number of entries
+     */
+    long getSize();
+
+    /**
+     * @return the number of lookups which found a value
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of lookups which did not find a value
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of entries removed by size or by expiration
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the number of values computed by the cache
+     */
+    long getLoadCount();
+
+    /**
+     * @return the time spent computing values, in nanoseconds
+     */
+    long getTotalLoadTime();
+
+    /**
+     * @return the ratio of the lookups which found a value, or 1 if there was no lookup
+     */
+    default double getHitRate() {
+        final long hitCount = getHitCount();
+        final long requestCount = hitCount + getMissCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return the ratio of the lookups which did not find a value, or 0 if there was no lookup
+     */
+    default double getMissRate() {
+        final long missCount = getMissCount();
+        final long requestCount = getHitCount() + missCount;
+        return requestCount == 0 ? 0.0 : (double) missCount / requestCount;
+    }
+
+    /**
+     * @return the average time spent computing a value, in nanoseconds
+     */
+    default double getAverageLoadTime() {
+        final long loadCount = getLoadCount();
+        return loadCount == 0 ? 0.0 : (double) getTotalLoadTime() / loadCount;
+    }
+
+    @JsonAutoDetect(
+            creatorVisibility = JsonAutoDetect.Visibility.NONE,
+            getterVisibility = JsonAutoDetect.Visibility.NONE,
+            setterVisibility = JsonAutoDetect.Visibility.NONE,
+            isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+            fieldVisibility = JsonAutoDetect.Visibility.NONE)
+    final class Snapshot extends Equalizer.Immutable<Snapshot> {
+
+        @JsonProperty("size")
+        final public long size;
+
+        @JsonProperty("hit_count")
+        final public long hitCount;
+
+        @JsonProperty("miss_count")
+        final public long missCount;
+
+        @JsonProperty("hit_rate")
+        final public double hitRate;
+
+        @JsonProperty("miss_rate")
+        final public double missRate;
+
+        @JsonProperty("eviction_count")
+        final public long evictionCount;
+
+        @JsonProperty("load_count")
+        final public long loadCount;
+
+        @JsonProperty("average_load_time_ns")
+        final public double averageLoadTime;
+
+        @JsonCreator
+        Snapshot(@JsonProperty("size") final long size,
+                 @JsonProperty("hit_count") final long hitCount,
+                 @JsonProperty("miss_count") final long missCount,
+                 @JsonProperty("hit_rate") final double hitRate,
+                 @JsonProperty("miss_rate") final double missRate,
+                 @JsonProperty("eviction_count") final long evictionCount,
+                 @JsonProperty("load_count") final long loadCount,
+                 @JsonProperty("average_load_time_ns") final double averageLoadTime) {
+            super(Snapshot.class);
+            this.size = size;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.hitRate = hitRate;
+            this.missRate = missRate;
+            this.evictionCount = evictionCount;
+            this.loadCount = loadCount;
+            this.averageLoadTime = averageLoadTime;
+        }
+
+        public static Snapshot of(final CacheStats stats) {
+            final long hitCount = stats.getHitCount();
+            final long missCount = stats.getMissCount();
+            final long requestCount = hitCount + missCount;
+            final long loadCount = stats.getLoadCount();
+            return new Snapshot(stats.getSize(), hitCount, missCount,
+                    requestCount == 0 ? 1.0 : (double) hitCount / requestCount,
+                    requestCount == 0 ? 0.0 : (double) missCount / requestCount,
+                    stats.getEvictionCount(), loadCount,
+                    loadCount == 0 ? 0.0 : (double) stats.getTotalLoadTime() / loadCount);
+        }
+
+        @Override
+        protected int computeHashCode() {
+            return Objects.hash(size, hitCount, missCount, evictionCount, loadCount);
+        }
+
+        @Override
+        protected boolean isEqual(final Snapshot s) {
+            return size == s.size
+                    && hitCount == s.hitCount
+                    && missCount == s.missCount
+                    && hitRate == s.hitRate
+                    && missRate == s.missRate
+                    && evictionCount == s.evictionCount
+                    && loadCount == s.loadCount
+                    && averageLoadTime == s.averageLoadTime;
+        }
+    }
+}
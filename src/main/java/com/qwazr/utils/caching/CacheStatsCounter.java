@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Records the statistics of a cache which does not track them itself.
+ */
+@ThreadSafe
+public class CacheStatsCounter implements Serializable {
+
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final LongAdder evictionCount;
+    private final LongAdder loadCount;
+    private final LongAdder totalLoadTime;
+
+    public CacheStatsCounter() {
+        this.hitCount = new LongAdder();
+        this.missCount = new LongAdder();
+        this.evictionCount = new LongAdder();
+        this.loadCount = new LongAdder();
+        this.totalLoadTime = new LongAdder();
+    }
+
+    public void recordHit() {
+        hitCount.increment();
+    }
+
+    public void recordMiss() {
+        missCount.increment();
+    }
+
+    public void recordEviction() {
+        evictionCount.increment();
+    }
+
+    /**
+     * @param loadTime the time spent computing a value, in nanoseconds
+     */
+    public void recordLoad(final long loadTime) {
+        loadCount.increment();
+        totalLoadTime.add(loadTime);
+    }
+
+    /**
+     * Record a hit or a miss depending on the value
+     *
+     * @param value the value found by a lookup
+     * @param <V>   the type of the value
+     * @return the value
+     */
+    public <V> V recordLookup(final V value) {
+        if (value != null)
+            hitCount.increment();
+        else
+            missCount.increment();
+        return value;
+    }
+
+    /**
+     * Wrap a mapping function so that each call is recorded as a load.
+     *
+     * @param mappingFunction the function computing the value
+     * @param <K>             the type of the key
+     * @param <V>             the type of the value
+     * @return the recording function
+     */
+    public <K, V> Function<K, V> recordLoads(final Function<? super K, ? extends V> mappingFunction) {
+        return key -> {
+            final long startTime = System.nanoTime();
+            try {
+                return mappingFunction.apply(key);
+            } finally {
+                recordLoad(System.nanoTime() - startTime);
+            }
+        };
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getLoadCount() {
+        return loadCount.sum();
+    }
+
+    public long getTotalLoadTime() {
+        return totalLoadTime.sum();
+    }
+
+    /**
+     * Expose the counters with the given size as {@link CacheStats}
+     *
+     * @param sizeSupplier returns the current size of the cache
+     * @return a view of the counters
+     */
+    public CacheStats asCacheStats(final LongSupplier sizeSupplier) {
+        Objects.requireNonNull(sizeSupplier, "The size supplier is null");
+        return new CacheStats() {
+
+            @Override
+            public long getSize() {
+                return sizeSupplier.getAsLong();
+            }
+
+            @Override
+            public long getHitCount() {
+                return CacheStatsCounter.this.getHitCount();
+            }
+
+            @Override
+            public long getMissCount() {
+                return CacheStatsCounter.this.getMissCount();
+            }
+
+            @Override
+            public long getEvictionCount() {
+                return CacheStatsCounter.this.getEvictionCount();
+            }
+
+            @Override
+            public long getLoadCount() {
+                return CacheStatsCounter.this.getLoadCount();
+            }
+
+            @Override
+            public long getTotalLoadTime() {
+                return CacheStatsCounter.this.getTotalLoadTime();
+            }
+        };
+    }
+}
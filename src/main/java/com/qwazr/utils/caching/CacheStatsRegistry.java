@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.qwazr.utils.ObjectMappers;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes named caches as MBeans, and as JSON snapshots.
+ * <p>
+ * The MBeans are registered in the platform MBean server with the object name
+ * {@code <domain>:type=Cache,name=<name>}.
+ */
+@ThreadSafe
+public class CacheStatsRegistry {
+
+    private final static CacheStatsRegistry DEFAULT = new CacheStatsRegistry("com.qwazr.utils.caching");
+
+    private final String domain;
+    private final MBeanServer mBeanServer;
+    private final ConcurrentHashMap<String, CacheStats> caches;
+
+    public CacheStatsRegistry(final String domain) {
+        this(domain, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public CacheStatsRegistry(final String domain, final MBeanServer mBeanServer) {
+        this.domain = Objects.requireNonNull(domain, "The domain is null");
+        this.mBeanServer = mBeanServer;
+        this.caches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the registry using the "com.qwazr.utils.caching" domain
+     */
+    public static CacheStatsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public ObjectName getObjectName(final String name) throws JMException {
+        return new ObjectName(domain + ":type=Cache,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Register the cache, replacing any cache registered with the same name.
+     *
+     * @param name       the name of the cache
+     * @param cacheStats the cache
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void register(final String name, final CacheStats cacheStats) throws JMException {
+        Objects.requireNonNull(cacheStats, "The cache is null");
+        final ObjectName objectName = getObjectName(name);
+        synchronized (caches) {
+            if (caches.put(name, cacheStats) != null && mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+            mBeanServer.registerMBean(new StandardMBean(cacheStats, CacheStats.class, true), objectName);
+        }
+    }
+
+    /**
+     * @param name the name of the cache
+     * @return true if a cache was registered with this name
+     * @throws JMException if the MBean cannot be unregistered
+     */
+    public boolean unregister(final String name) throws JMException {
+        final ObjectName objectName = getObjectName(name);
+        synchronized (caches) {
+            if (caches.remove(name) == null)
+                return false;
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+            return true;
+        }
+    }
+
+    public CacheStats get(final String name) {
+        return caches.get(name);
+    }
+
+    /**
+     * @return the snapshots of the registered caches, sorted by name
+     */
+    public Map<String, CacheStats.Snapshot> getSnapshots() {
+        final Map<String, CacheStats.Snapshot> snapshots = new TreeMap<>();
+        caches.forEach((name, cacheStats) -> snapshots.put(name, CacheStats.Snapshot.of(cacheStats)));
+        return snapshots;
+    }
+
+    /**
+     * @return the snapshots of the registered caches as a JSON object
+     * @throws JsonProcessingException if the serialization failed
+     */
+    public String toJson() throws JsonProcessingException {
+        return ObjectMappers.JSON.writeValueAsString(getSnapshots());
+    }
+}
@@ -0,0 +1,951 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.LoggerUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe bounded map, the concurrent successor of {@link CacheMap}.
+ * <p>
+ * The keys are spread over lock-striped segments. Each segment applies a W-TinyLFU policy:
+ * new entries enter a small LRU window, then have to beat the eviction victim of the main
+ * segmented LRU on their estimated frequency to be admitted.
+ * <p>
+ * Reads never take a lock: accesses are recorded in a lossy buffer which is replayed
+ * by the next writer, or by the reader that fills the buffer if the segment is free.
+ * <p>
+ * The map may be bounded by a total weight instead of a number of entries,
+ * and the entries may expire after a write or after an access (see {@link #of()}).
+ * The bound is shared between the segments: an entry heavier than the capacity of its segment is not retained.
+ *
+ * @param <KEY>   the type of the keys
+ * @param <VALUE> the type of the values
+ */
+@ThreadSafe
+public class ConcurrentCacheMap<KEY, VALUE> extends AbstractMap<KEY, VALUE>
+        implements ConcurrentMap<KEY, VALUE>, CacheStats, ResizableCache {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(ConcurrentCacheMap.class);
+
+    private final static int MIN_SEGMENT_CAPACITY = 64;
+    private final static int MAX_SEGMENTS = 1 << 16;
+    private final static int INITIAL_SKETCH_SIZE = 1024;
+    private final static int READ_BUFFER_SIZE = 16;
+    private final static int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private final static byte WINDOW = 0;
+    private final static byte PROBATION = 1;
+    private final static byte PROTECTED = 2;
+    private final static byte RETIRED = 3;
+
+    protected final int maxSize;
+
+    private final long maxWeight;
+    private final Weigher<? super KEY, ? super VALUE> weigher;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final boolean expiring;
+    private final LongSupplier ticker;
+    private final RemovalListener<KEY, VALUE> removalListener;
+    private final RemovalListener<KEY, VALUE> evictionListener;
+    private final CacheStatsCounter stats;
+
+    private final ConcurrentHashMap<KEY, Node<KEY, VALUE>> data;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /**
+     * Same contract as {@link CacheMap#CacheMap(int)}
+     *
+     * @param maxSize the maximum number of entries
+     */
+    public ConcurrentCacheMap(final int maxSize) {
+        this(maxSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxSize          the maximum number of entries
+     * @param concurrencyLevel the expected number of concurrent writers
+     */
+    public ConcurrentCacheMap(final int maxSize, final int concurrencyLevel) {
+        this(new Builder<KEY, VALUE>().maximumSize(maxSize).concurrencyLevel(concurrencyLevel));
+    }
+
+    protected ConcurrentCacheMap(final Builder<KEY, VALUE> builder) {
+        if (builder.maximumSize != null && builder.maximumWeight != null)
+            throw new IllegalStateException("The maximum size and the maximum weight cannot be both set");
+        if (builder.maximumWeight != null) {
+            maxSize = -1;
+            maxWeight = builder.maximumWeight;
+            weigher = Objects.requireNonNull(builder.weigher, "The weigher is null");
+        } else {
+            maxSize = builder.maximumSize == null ? Integer.MAX_VALUE : builder.maximumSize;
+            maxWeight = maxSize;
+            weigher = null;
+        }
+        expireAfterWriteNanos = builder.expireAfterWrite == null ? 0 : builder.expireAfterWrite.toNanos();
+        expireAfterAccessNanos = builder.expireAfterAccess == null ? 0 : builder.expireAfterAccess.toNanos();
+        expiring = expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0;
+        ticker = builder.ticker == null ? System::nanoTime : builder.ticker;
+        removalListener = builder.removalListener;
+        evictionListener = builder.evictionListener;
+        stats = new CacheStatsCounter();
+
+        final int concurrencyLevel = Math.max(1, builder.concurrencyLevel);
+        data = new ConcurrentHashMap<>(weigher == null ? Math.min(maxSize, 1 << 10) : 16, 0.75f, concurrencyLevel);
+        final int segmentCount = (int) Math.min(Math.min(FrequencySketch.ceilingPowerOfTwo(concurrencyLevel),
+                Long.highestOneBit(Math.max(1, maxWeight / MIN_SEGMENT_CAPACITY))), MAX_SEGMENTS);
+        @SuppressWarnings("unchecked")
+        final Segment[] newSegments = (Segment[]) new ConcurrentCacheMap<?, ?>.Segment[segmentCount];
+        segments = newSegments;
+        segmentMask = segmentCount - 1;
+        final long baseCapacity = maxWeight / segmentCount;
+        final long remainder = maxWeight % segmentCount;
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(i < remainder ? baseCapacity + 1 : baseCapacity);
+    }
+
+    /**
+     * @return the maximum number of entries, or -1 if the map is bounded by weight
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the maximum total weight, which is the maximum number of entries if no weigher is used
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public long getWeightedSize() {
+        long weight = 0;
+        for (final Segment segment : segments)
+            weight += segment.weight();
+        return weight;
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats.getMissCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats.getEvictionCount();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return stats.getLoadCount();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return stats.getTotalLoadTime();
+    }
+
+    static int spread(final Object key) {
+        int h = key.hashCode();
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    private boolean isExpired(final Node<KEY, VALUE> node, final long now) {
+        return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos) ||
+                (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+    }
+
+    private int weigh(final KEY key, final VALUE value) {
+        if (weigher == null)
+            return 1;
+        final int weight = weigher.weigh(key, value);
+        if (weight < 0)
+            throw new IllegalArgumentException("The weight should be positive: " + weight);
+        return weight;
+    }
+
+    /**
+     * @return the number of entries, including the expired entries not removed yet by the maintenance
+     */
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final Node<KEY, VALUE> node = data.get(key);
+        return node != null && !(expiring && isExpired(node, ticker.getAsLong()));
+    }
+
+    @Override
+    public VALUE get(final Object key) {
+        final Node<KEY, VALUE> node = data.get(key);
+        if (node == null) {
+            stats.recordMiss();
+            return null;
+        }
+        if (expiring) {
+            final long now = ticker.getAsLong();
+            if (isExpired(node, now)) {
+                stats.recordMiss();
+                return null;
+            }
+            if (expireAfterAccessNanos > 0)
+                node.accessTime = now;
+        }
+        segmentFor(node.hash).recordRead(node);
+        stats.recordHit();
+        return node.value;
+    }
+
+    @Override
+    public VALUE put(final KEY key, final VALUE value) {
+        Objects.requireNonNull(value, "The value is null");
+        final int hash = spread(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    @Override
+    public VALUE putIfAbsent(final KEY key, final VALUE value) {
+        Objects.requireNonNull(value, "The value is null");
+        final int hash = spread(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * The mapping function runs out of the segment lock, so that a slow load does not block the other keys
+     * of the segment. Concurrent loads of the same key may both run, the first stored value is kept and returned.
+     * See {@link KeyLockedCache} for a single load per key.
+     */
+    @Override
+    public VALUE computeIfAbsent(final KEY key, final Function<? super KEY, ? extends VALUE> mappingFunction) {
+        Objects.requireNonNull(mappingFunction, "The mapping function is null");
+        final VALUE existing = get(key);
+        if (existing != null)
+            return existing;
+        final VALUE value = stats.<KEY, VALUE>recordLoads(mappingFunction).apply(key);
+        if (value == null)
+            return null;
+        final VALUE stored = putIfAbsent(key, value);
+        return stored != null ? stored : value;
+    }
+
+    @Override
+    public VALUE remove(final Object key) {
+        return segmentFor(spread(key)).remove(key, null);
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        return value != null && segmentFor(spread(key)).remove(key, value) != null;
+    }
+
+    @Override
+    public VALUE replace(final KEY key, final VALUE value) {
+        Objects.requireNonNull(value, "The value is null");
+        return segmentFor(spread(key)).replace(key, null, value);
+    }
+
+    @Override
+    public boolean replace(final KEY key, final VALUE oldValue, final VALUE newValue) {
+        Objects.requireNonNull(oldValue, "The old value is null");
+        Objects.requireNonNull(newValue, "The new value is null");
+        return segmentFor(spread(key)).replace(key, oldValue, newValue) != null;
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : segments)
+            segment.clear();
+    }
+
+    /**
+     * Replay the pending accesses and remove the expired entries.
+     * The maintenance is otherwise done along with the writes.
+     */
+    public void cleanUp() {
+        for (final Segment segment : segments)
+            segment.cleanUp();
+    }
+
+    /**
+     * Scale the capacity of each segment. The maximum size and weight returned by the getters stay the nominal ones.
+     *
+     * @param capacityRatio the ratio of the nominal capacity, between 0 (exclusive) and 1
+     */
+    @Override
+    public void resize(final double capacityRatio) {
+        for (final Segment segment : segments)
+            segment.resize(capacityRatio);
+    }
+
+    @Override
+    public Set<Entry<KEY, VALUE>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * A view of the live entries: the expired entries are skipped, so its size is counted by iterating.
+     */
+    private final class EntrySet extends AbstractSet<Entry<KEY, VALUE>> {
+
+        @Override
+        public int size() {
+            if (!expiring)
+                return ConcurrentCacheMap.this.size();
+            final long now = ticker.getAsLong();
+            int size = 0;
+            for (final Node<KEY, VALUE> node : data.values())
+                if (!isExpired(node, now))
+                    size++;
+            return size;
+        }
+
+        @Override
+        public Iterator<Entry<KEY, VALUE>> iterator() {
+            final Iterator<Node<KEY, VALUE>> iterator = data.values().iterator();
+            final long now = expiring ? ticker.getAsLong() : 0;
+            return new Iterator<Entry<KEY, VALUE>>() {
+
+                private Node<KEY, VALUE> next;
+                private Node<KEY, VALUE> current;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && iterator.hasNext()) {
+                        final Node<KEY, VALUE> node = iterator.next();
+                        if (!expiring || !isExpired(node, now))
+                            next = node;
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Entry<KEY, VALUE> next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    current = next;
+                    next = null;
+                    return new SimpleImmutableEntry<>(current.key, current.value);
+                }
+
+                @Override
+                public void remove() {
+                    if (current == null)
+                        throw new IllegalStateException();
+                    ConcurrentCacheMap.this.remove(current.key);
+                    current = null;
+                }
+            };
+        }
+    }
+
+    public static <KEY, VALUE> Builder<KEY, VALUE> of() {
+        return new Builder<>();
+    }
+
+    public static class Builder<KEY, VALUE> {
+
+        private Integer maximumSize;
+        private Long maximumWeight;
+        private Weigher<? super KEY, ? super VALUE> weigher;
+        private Duration expireAfterWrite;
+        private Duration expireAfterAccess;
+        private LongSupplier ticker;
+        private RemovalListener<KEY, VALUE> removalListener;
+        private RemovalListener<KEY, VALUE> evictionListener;
+        private int concurrencyLevel = Runtime.getRuntime().availableProcessors();
+
+        public Builder<KEY, VALUE> maximumSize(final int maximumSize) {
+            if (maximumSize < 0)
+                throw new IllegalArgumentException("The maximum size should be positive: " + maximumSize);
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder<KEY, VALUE> maximumWeight(final long maximumWeight,
+                                                 final Weigher<? super KEY, ? super VALUE> weigher) {
+            if (maximumWeight < 0)
+                throw new IllegalArgumentException("The maximum weight should be positive: " + maximumWeight);
+            this.maximumWeight = maximumWeight;
+            this.weigher = Objects.requireNonNull(weigher, "The weigher is null");
+            return this;
+        }
+
+        public Builder<KEY, VALUE> expireAfterWrite(final Duration expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+            return this;
+        }
+
+        public Builder<KEY, VALUE> expireAfterAccess(final Duration expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+            return this;
+        }
+
+        /**
+         * @param ticker the source of time in nanoseconds, {@link System#nanoTime()} by default
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> ticker(final LongSupplier ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public Builder<KEY, VALUE> removalListener(final RemovalListener<KEY, VALUE> removalListener) {
+            this.removalListener = removalListener;
+            return this;
+        }
+
+        /**
+         * Unlike the removal listener, the eviction listener is notified while holding the lock of the segment:
+         * no write on the same key can happen before it returns. It must not access the map.
+         *
+         * @param evictionListener notified of the evictions (size or expiration)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> evictionListener(final RemovalListener<KEY, VALUE> evictionListener) {
+            this.evictionListener = evictionListener;
+            return this;
+        }
+
+        public Builder<KEY, VALUE> concurrencyLevel(final int concurrencyLevel) {
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public ConcurrentCacheMap<KEY, VALUE> build() {
+            return new ConcurrentCacheMap<>(this);
+        }
+    }
+
+    private static final class Node<KEY, VALUE> {
+
+        private final KEY key;
+        private final int hash;
+        private volatile VALUE value;
+        private volatile long writeTime;
+        private volatile long accessTime;
+
+        // Guarded by the segment lock
+        private int weight;
+        private byte queue;
+        private Node<KEY, VALUE> prev;
+        private Node<KEY, VALUE> next;
+        private Node<KEY, VALUE> prevWrite;
+        private Node<KEY, VALUE> nextWrite;
+
+        private Node(final KEY key, final int hash, final VALUE value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private static final class Removal<KEY, VALUE> {
+
+        private final KEY key;
+        private final VALUE value;
+        private final RemovalListener.Cause cause;
+
+        private Removal(final KEY key, final VALUE value, final RemovalListener.Cause cause) {
+            this.key = key;
+            this.value = value;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * A doubly-linked list of nodes ordered from the least to the most recently used
+     */
+    private static final class AccessQueue<KEY, VALUE> {
+
+        private final Node<KEY, VALUE> head;
+        private long weight;
+
+        private AccessQueue() {
+            head = new Node<>(null, 0, null);
+            head.prev = head;
+            head.next = head;
+            weight = 0;
+        }
+
+        private void addLast(final Node<KEY, VALUE> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            weight += node.weight;
+        }
+
+        private void remove(final Node<KEY, VALUE> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        private void moveToLast(final Node<KEY, VALUE> node) {
+            remove(node);
+            addLast(node);
+        }
+
+        private Node<KEY, VALUE> first() {
+            return head.next == head ? null : head.next;
+        }
+
+        private Node<KEY, VALUE> last() {
+            return head.prev == head ? null : head.prev;
+        }
+    }
+
+    /**
+     * A doubly-linked list of nodes ordered from the oldest to the newest write
+     */
+    private static final class WriteQueue<KEY, VALUE> {
+
+        private final Node<KEY, VALUE> head;
+
+        private WriteQueue() {
+            head = new Node<>(null, 0, null);
+            head.prevWrite = head;
+            head.nextWrite = head;
+        }
+
+        private void addLast(final Node<KEY, VALUE> node) {
+            node.prevWrite = head.prevWrite;
+            node.nextWrite = head;
+            head.prevWrite.nextWrite = node;
+            head.prevWrite = node;
+        }
+
+        private void remove(final Node<KEY, VALUE> node) {
+            if (node.prevWrite == null)
+                return;
+            node.prevWrite.nextWrite = node.nextWrite;
+            node.nextWrite.prevWrite = node.prevWrite;
+            node.prevWrite = null;
+            node.nextWrite = null;
+        }
+
+        private void moveToLast(final Node<KEY, VALUE> node) {
+            remove(node);
+            addLast(node);
+        }
+
+        private Node<KEY, VALUE> first() {
+            return head.nextWrite == head ? null : head.nextWrite;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class Segment extends ReentrantLock {
+
+        private final long nominalCapacity;
+        private long capacity;
+        private long windowCapacity;
+        private long protectedCapacity;
+        private final AccessQueue<KEY, VALUE> window;
+        private final AccessQueue<KEY, VALUE> probation;
+        private final AccessQueue<KEY, VALUE> protectedQueue;
+        private final WriteQueue<KEY, VALUE> writeQueue;
+        private final FrequencySketch sketch;
+        private final AtomicReferenceArray<Node<KEY, VALUE>> readBuffer;
+        private final AtomicInteger readCounter;
+        private final ConcurrentLinkedQueue<Removal<KEY, VALUE>> removals;
+        private int count;
+
+        private Segment(final long capacity) {
+            this.nominalCapacity = capacity;
+            setCapacity(capacity);
+            this.window = new AccessQueue<>();
+            this.probation = new AccessQueue<>();
+            this.protectedQueue = new AccessQueue<>();
+            this.writeQueue = expireAfterWriteNanos > 0 ? new WriteQueue<>() : null;
+            this.sketch = new FrequencySketch((int) Math.min(capacity, INITIAL_SKETCH_SIZE));
+            this.readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+            this.readCounter = new AtomicInteger();
+            this.removals = new ConcurrentLinkedQueue<>();
+            this.count = 0;
+        }
+
+        /**
+         * Must be called while holding the lock, or by the constructor
+         */
+        private void setCapacity(final long capacity) {
+            this.capacity = capacity;
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.protectedCapacity = Math.max(0, capacity - windowCapacity) * 4 / 5;
+        }
+
+        private void resize(final double capacityRatio) {
+            lock();
+            try {
+                maintenance();
+                setCapacity(Math.min(nominalCapacity, Math.max(1, Math.round(nominalCapacity * capacityRatio))));
+                while (protectedQueue.weight > protectedCapacity) {
+                    final Node<KEY, VALUE> demoted = protectedQueue.first();
+                    protectedQueue.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                evict();
+            } finally {
+                unlock();
+                notifyRemovals();
+            }
+        }
+
+        private void recordRead(final Node<KEY, VALUE> node) {
+            final int index = readCounter.getAndIncrement() & READ_BUFFER_MASK;
+            readBuffer.lazySet(index, node);
+            if (index == READ_BUFFER_MASK && tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    unlock();
+                }
+            }
+        }
+
+        private void drainReadBuffer() {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                final Node<KEY, VALUE> node = readBuffer.getAndSet(i, null);
+                if (node != null)
+                    onAccess(node);
+            }
+        }
+
+        /**
+         * Must be called while holding the lock
+         *
+         * @return the current time if the entries expire
+         */
+        private long maintenance() {
+            drainReadBuffer();
+            if (!expiring)
+                return 0;
+            final long now = ticker.getAsLong();
+            if (writeQueue != null) {
+                Node<KEY, VALUE> node;
+                while ((node = writeQueue.first()) != null && now - node.writeTime >= expireAfterWriteNanos)
+                    retire(node, RemovalListener.Cause.EXPIRED);
+            }
+            if (expireAfterAccessNanos > 0) {
+                expireAfterAccess(window, now);
+                expireAfterAccess(probation, now);
+                expireAfterAccess(protectedQueue, now);
+            }
+            return now;
+        }
+
+        private void expireAfterAccess(final AccessQueue<KEY, VALUE> queue, final long now) {
+            Node<KEY, VALUE> node;
+            while ((node = queue.first()) != null && now - node.accessTime >= expireAfterAccessNanos)
+                retire(node, RemovalListener.Cause.EXPIRED);
+        }
+
+        private void notifyRemovals() {
+            if (removalListener == null)
+                return;
+            Removal<KEY, VALUE> removal;
+            while ((removal = removals.poll()) != null) {
+                try {
+                    removalListener.onRemoval(removal.key, removal.value, removal.cause);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Removal listener failure");
+                }
+            }
+        }
+
+        private void onAccess(final Node<KEY, VALUE> node) {
+            switch (node.queue) {
+                case WINDOW:
+                    sketch.increment(node.hash);
+                    window.moveToLast(node);
+                    break;
+                case PROBATION:
+                    sketch.increment(node.hash);
+                    probation.remove(node);
+                    node.queue = PROTECTED;
+                    protectedQueue.addLast(node);
+                    while (protectedQueue.weight > protectedCapacity) {
+                        final Node<KEY, VALUE> demoted = protectedQueue.first();
+                        protectedQueue.remove(demoted);
+                        demoted.queue = PROBATION;
+                        probation.addLast(demoted);
+                    }
+                    break;
+                case PROTECTED:
+                    sketch.increment(node.hash);
+                    protectedQueue.moveToLast(node);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private AccessQueue<KEY, VALUE> queueOf(final Node<KEY, VALUE> node) {
+            switch (node.queue) {
+                case WINDOW:
+                    return window;
+                case PROBATION:
+                    return probation;
+                case PROTECTED:
+                    return protectedQueue;
+                default:
+                    return null;
+            }
+        }
+
+        private void retire(final Node<KEY, VALUE> node, final RemovalListener.Cause cause) {
+            final AccessQueue<KEY, VALUE> queue = queueOf(node);
+            if (queue == null)
+                return;
+            queue.remove(node);
+            if (writeQueue != null)
+                writeQueue.remove(node);
+            node.queue = RETIRED;
+            count--;
+            data.remove(node.key, node);
+            if (cause.wasEvicted()) {
+                stats.recordEviction();
+                if (evictionListener != null) {
+                    try {
+                        evictionListener.onRemoval(node.key, node.value, cause);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, e, () -> "Eviction listener failure");
+                    }
+                }
+            }
+            if (removalListener != null)
+                removals.add(new Removal<>(node.key, node.value, cause));
+        }
+
+        private void evict() {
+            while (window.weight > windowCapacity) {
+                final Node<KEY, VALUE> node = window.first();
+                window.remove(node);
+                node.queue = PROBATION;
+                probation.addLast(node);
+            }
+            while (window.weight + probation.weight + protectedQueue.weight > capacity) {
+                final Node<KEY, VALUE> victim = probation.first();
+                if (victim == null) {
+                    retire(protectedQueue.first() != null ? protectedQueue.first() : window.first(),
+                            RemovalListener.Cause.SIZE);
+                    continue;
+                }
+                final Node<KEY, VALUE> candidate = probation.last();
+                if (candidate == victim || sketch.frequency(candidate.hash) > sketch.frequency(victim.hash))
+                    retire(victim, RemovalListener.Cause.SIZE);
+                else
+                    retire(candidate, RemovalListener.Cause.SIZE);
+            }
+        }
+
+        private void insert(final KEY key, final int hash, final VALUE value, final long now) {
+            final Node<KEY, VALUE> node = new Node<>(key, hash, value);
+            node.weight = weigh(key, value);
+            node.writeTime = now;
+            node.accessTime = now;
+            data.put(key, node);
+            if (++count > sketch.capacity())
+                sketch.ensureCapacity(count * 2);
+            sketch.increment(hash);
+            node.queue = WINDOW;
+            window.addLast(node);
+            if (writeQueue != null)
+                writeQueue.addLast(node);
+            evict();
+        }
+
+        private void update(final Node<KEY, VALUE> node, final VALUE value, final long now) {
+            final int weight = weigh(node.key, value);
+            final AccessQueue<KEY, VALUE> queue = queueOf(node);
+            if (queue != null)
+                queue.weight += weight - node.weight;
+            node.weight = weight;
+            node.value = value;
+            node.writeTime = now;
+            node.accessTime = now;
+            if (writeQueue != null)
+                writeQueue.moveToLast(node);
+            onAccess(node);
+            evict();
+        }
+
+        /**
+         * @return the live node of the given key, or null
+         */
+        private Node<KEY, VALUE> getLive(final Object key, final long now) {
+            final Node<KEY, VALUE> node = data.get(key);
+            if (node == null)
+                return null;
+            if (expiring && isExpired(node, now)) {
+                retire(node, RemovalListener.Cause.EXPIRED);
+                return null;
+            }
+            return node;
+        }
+
+        private VALUE put(final KEY key, final int hash, final VALUE value, final boolean onlyIfAbsent) {
+            lock();
+            try {
+                final long now = maintenance();
+                final Node<KEY, VALUE> existing = getLive(key, now);
+                if (existing == null) {
+                    insert(key, hash, value, now);
+                    return null;
+                }
+                final VALUE oldValue = existing.value;
+                if (onlyIfAbsent) {
+                    onAccess(existing);
+                    return oldValue;
+                }
+                update(existing, value, now);
+                if (removalListener != null && oldValue != value)
+                    removals.add(new Removal<>(key, oldValue, RemovalListener.Cause.REPLACED));
+                return oldValue;
+            } finally {
+                unlock();
+                notifyRemovals();
+            }
+        }
+
+        private VALUE remove(final Object key, final Object expectedValue) {
+            lock();
+            try {
+                final Node<KEY, VALUE> node = getLive(key, maintenance());
+                if (node == null)
+                    return null;
+                final VALUE value = node.value;
+                if (expectedValue != null && !expectedValue.equals(value))
+                    return null;
+                retire(node, RemovalListener.Cause.EXPLICIT);
+                return value;
+            } finally {
+                unlock();
+                notifyRemovals();
+            }
+        }
+
+        private VALUE replace(final KEY key, final VALUE expectedValue, final VALUE newValue) {
+            lock();
+            try {
+                final long now = maintenance();
+                final Node<KEY, VALUE> node = getLive(key, now);
+                if (node == null)
+                    return null;
+                final VALUE value = node.value;
+                if (expectedValue != null && !expectedValue.equals(value))
+                    return null;
+                update(node, newValue, now);
+                if (removalListener != null && value != newValue)
+                    removals.add(new Removal<>(key, value, RemovalListener.Cause.REPLACED));
+                return value;
+            } finally {
+                unlock();
+                notifyRemovals();
+            }
+        }
+
+        private long weight() {
+            lock();
+            try {
+                return window.weight + probation.weight + protectedQueue.weight;
+            } finally {
+                unlock();
+            }
+        }
+
+        private void cleanUp() {
+            lock();
+            try {
+                maintenance();
+            } finally {
+                unlock();
+                notifyRemovals();
+            }
+        }
+
+        private void retireAll(final AccessQueue<KEY, VALUE> queue) {
+            Node<KEY, VALUE> node;
+            while ((node = queue.first()) != null)
+                retire(node, RemovalListener.Cause.EXPLICIT);
+        }
+
+        private void clear() {
+            lock();
+            try {
+                for (int i = 0; i < READ_BUFFER_SIZE; i++)
+                    readBuffer.set(i, null);
+                retireAll(window);
+                retireAll(probation);
+                retireAll(protectedQueue);
+            } finally {
+                unlock();
+                notifyRemovals();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A count-min sketch of 4-bit counters estimating the popularity of the keys (TinyLFU).
+ * The counters are periodically halved so that the history ages.
+ */
+@NotThreadSafe
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    FrequencySketch(final int maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Resize the sketch so that it can track the given number of keys. The history is lost when the sketch grows.
+     *
+     * @param maximumSize the expected number of keys
+     */
+    void ensureCapacity(final int maximumSize) {
+        final int maximum = Math.max(1, Math.min(maximumSize, 1 << 30));
+        if (table != null && table.length >= maximum)
+            return;
+        table = new long[ceilingPowerOfTwo(maximum)];
+        tableMask = table.length - 1;
+        sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+        size = 0;
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    static int ceilingPowerOfTwo(final int value) {
+        return value <= 1 ? 1 : 1 << (32 - Integer.numberOfLeadingZeros(value - 1));
+    }
+
+    /**
+     * @param hash the spread hash of the key
+     * @return the estimated number of occurrences of the key, up to 15
+     */
+    int frequency(final int hash) {
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increment the popularity of the key, aging all the counters when the sample size is reached.
+     *
+     * @param hash the spread hash of the key
+     */
+    void increment(final int hash) {
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(final int i, final int j) {
+        final int offset = j << 2;
+        final long mask = 0xfL << offset;
+        if ((table[i] & mask) == mask)
+            return false;
+        table[i] += 1L << offset;
+        return true;
+    }
+
+    private void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            count += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (count >>> 2);
+    }
+
+    private int indexOf(final int item, final int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+}
@@ -15,121 +15,637 @@
  */
 package com.qwazr.utils.caching;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.Equalizer;
 import com.qwazr.utils.concurrent.ReadWriteLock;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
+/**
+ * A cache which guarantees that concurrent loads of the same key share one computation.
+ * <p>
+ * The loads in progress are tracked as futures in a concurrent map: the first caller runs the loader,
+ * the other callers wait for its result. A loader which loads its own key again throws an
+ * {@link IllegalStateException}, as {@link ConcurrentHashMap#computeIfAbsent} does, instead of waiting for itself.
+ * If the backing map is not a {@link ConcurrentMap},
+ * its accesses are guarded by a read/write lock.
+ * <p>
+ * A bounded cache with expiration is created with the builder returned by {@link #of()}.
+ *
+ * @param <KEY>   the type of the keys
+ * @param <VALUE> the type of the values
+ */
 @ThreadSafe
-public class KeyLockedCache<KEY, VALUE> {
+public class KeyLockedCache<KEY, VALUE> implements CacheStats, ResizableCache {
 
     private final ReadWriteLock mapLock;
-    private final Map<KEY, Locker<KEY>> keyMap;
     private final Map<KEY, VALUE> map;
-    private volatile int currentActiveKeys;
-    private volatile int maxActiveKeys;
+    private final ConcurrentHashMap<KEY, CompletableFuture<VALUE>> inFlight;
+    private final AtomicInteger currentActiveKeys;
+    private final AtomicInteger maxActiveKeys;
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final LongAdder loadSuccessCount;
+    private final LongAdder loadFailureCount;
+    private final LongAdder totalLoadTime;
+    private final LongAdder evictionCount;
+    private final LatencyHistogram loadTimes;
 
     public KeyLockedCache(final Map<KEY, VALUE> map) {
-        this.keyMap = new HashMap<>();
-        this.map = map;
-        this.currentActiveKeys = 0;
-        this.maxActiveKeys = 0;
-        this.mapLock = ReadWriteLock.reentrant(true);
-    }
-
-    private Locker<KEY> getKeyLock(final KEY key) {
-        final Locker<KEY> locker;
-        synchronized (keyMap) {
-            // We do not use computeIfAbsent due to activeKeys computation optimisation
-            // We don't want to call Map::size() on each call
-            final Locker<KEY> existingLocker = keyMap.get(key);
-            if (existingLocker != null) {
-                locker = existingLocker;
-            } else {
-                locker = new Locker<>(key);
-                keyMap.put(key, locker);
-                locker.lock();
-                currentActiveKeys = keyMap.size();
-                maxActiveKeys = Math.max(currentActiveKeys, maxActiveKeys);
+        this(map, new LongAdder());
+    }
+
+    private KeyLockedCache(final Map<KEY, VALUE> map, final LongAdder evictionCount) {
+        this.map = Objects.requireNonNull(map, "The map is null");
+        this.mapLock = map instanceof ConcurrentMap ? null : ReadWriteLock.stamped();
+        this.inFlight = new ConcurrentHashMap<>();
+        this.currentActiveKeys = new AtomicInteger();
+        this.maxActiveKeys = new AtomicInteger();
+        this.hitCount = new LongAdder();
+        this.missCount = new LongAdder();
+        this.loadSuccessCount = new LongAdder();
+        this.loadFailureCount = new LongAdder();
+        this.totalLoadTime = new LongAdder();
+        this.evictionCount = evictionCount;
+        this.loadTimes = new LatencyHistogram();
+    }
+
+    private VALUE getValue(final KEY key) {
+        return mapLock == null ? map.get(key) : mapLock.read(() -> map.get(key));
+    }
+
+    private void putValue(final KEY key, final VALUE value) {
+        if (mapLock == null)
+            map.put(key, value);
+        else
+            mapLock.write(() -> map.put(key, value));
+    }
+
+    private void putValueIfAbsent(final KEY key, final VALUE value) {
+        if (mapLock == null)
+            map.putIfAbsent(key, value);
+        else
+            mapLock.write(() -> map.putIfAbsent(key, value));
+    }
+
+    /**
+     * Register a new load for the given key.
+     *
+     * @return null if the caller owns the load, or the future of the load in progress
+     */
+    private CompletableFuture<VALUE> acquire(final KEY key, final CompletableFuture<VALUE> future) {
+        final CompletableFuture<VALUE> running = inFlight.putIfAbsent(key, future);
+        if (running != null)
+            return running;
+        maxActiveKeys.accumulateAndGet(currentActiveKeys.incrementAndGet(), Math::max);
+        return null;
+    }
+
+    private void release(final KEY key, final CompletableFuture<VALUE> future) {
+        if (inFlight.remove(key, future))
+            currentActiveKeys.decrementAndGet();
+    }
+
+    /**
+     * Wait for the load of another thread.
+     */
+    private static <KEY, VALUE> VALUE join(final KEY key, final CompletableFuture<VALUE> running) {
+        if (running instanceof Load && ((Load<?>) running).loader == Thread.currentThread())
+            throw new IllegalStateException("Recursive load of the key: " + key);
+        return join(running);
+    }
+
+    private static <VALUE> VALUE join(final CompletableFuture<VALUE> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    public VALUE computeIfAbsent(final KEY key,
+                                 final Function<KEY, VALUE> supplier) {
+        final VALUE existingValue = getValue(key);
+        if (existingValue != null) {
+            hitCount.increment();
+            return existingValue;
+        }
+        missCount.increment();
+        final CompletableFuture<VALUE> future = new Load<>();
+        final CompletableFuture<VALUE> running = acquire(key, future);
+        if (running != null)
+            return join(key, running);
+        try {
+            // The value may have been stored by a load which completed in the meantime
+            VALUE value = getValue(key);
+            if (value == null) {
+                final long startTime = System.nanoTime();
+                try {
+                    value = supplier.apply(key);
+                } catch (RuntimeException | Error e) {
+                    recordLoad(startTime, false);
+                    throw e;
+                }
+                recordLoad(startTime, true);
+                if (value != null)
+                    putValue(key, value);
             }
+            release(key, future);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            release(key, future);
+            future.completeExceptionally(e);
+            throw e;
         }
-        return locker;
     }
 
-    private void release(Locker<KEY> locker) {
-        synchronized (keyMap) {
-            if (locker.release() == 0) {
-                keyMap.remove(locker.key);
-                currentActiveKeys = keyMap.size();
+    /**
+     * Return the values of the given keys. The keys found in the cache are returned immediately,
+     * the keys being loaded by another thread are awaited, and all the other keys are loaded by a single call
+     * to the batch loader. A batch counts as one load in the statistics.
+     *
+     * @param keys        the keys
+     * @param batchLoader returns the values of a set of missing keys. A key missing from its result is not cached.
+     * @return the values found or loaded, in the iteration order of the keys
+     */
+    public Map<KEY, VALUE> getAll(final Collection<KEY> keys,
+                                  final Function<Set<KEY>, Map<KEY, VALUE>> batchLoader) {
+        final Map<KEY, VALUE> values = new LinkedHashMap<>();
+        final Map<KEY, CompletableFuture<VALUE>> running = new LinkedHashMap<>();
+        final Map<KEY, CompletableFuture<VALUE>> owned = new LinkedHashMap<>();
+        for (final KEY key : keys) {
+            if (values.containsKey(key) || running.containsKey(key) || owned.containsKey(key))
+                continue;
+            final VALUE existingValue = getValue(key);
+            if (existingValue != null) {
+                hitCount.increment();
+                values.put(key, existingValue);
+                continue;
             }
+            missCount.increment();
+            final CompletableFuture<VALUE> future = new Load<>();
+            final CompletableFuture<VALUE> runningFuture = acquire(key, future);
+            if (runningFuture != null)
+                running.put(key, runningFuture);
+            else
+                owned.put(key, future);
         }
+        // Our loads are completed before waiting for the other threads, so that two batches cannot wait each other
+        if (!owned.isEmpty())
+            loadAll(owned, values, batchLoader);
+        running.forEach((key, future) -> {
+            final VALUE value = join(key, future);
+            if (value != null)
+                values.put(key, value);
+        });
+        final Map<KEY, VALUE> result = new LinkedHashMap<>();
+        for (final KEY key : keys) {
+            final VALUE value = values.get(key);
+            if (value != null)
+                result.put(key, value);
+        }
+        return result;
     }
 
-    public VALUE computeIfAbsent(final KEY key,
-                                 final Function<KEY, VALUE> supplier) {
-        final VALUE value;
-        final Locker<KEY> locker = getKeyLock(key);
+    private void loadAll(final Map<KEY, CompletableFuture<VALUE>> owned, final Map<KEY, VALUE> values,
+                         final Function<Set<KEY>, Map<KEY, VALUE>> batchLoader) {
         try {
-            synchronized (locker.key) {
-                final VALUE existingValue = mapLock.read(() -> map.get(locker.key));
-                if (existingValue != null) {
-                    value = existingValue;
-                } else {
-                    value = supplier.apply(locker.key);
-                    mapLock.write(() -> map.put(locker.key, value));
+            final Set<KEY> missingKeys = new LinkedHashSet<>();
+            for (final Map.Entry<KEY, CompletableFuture<VALUE>> entry : owned.entrySet()) {
+                // The value may have been stored by a load which completed in the meantime
+                final KEY key = entry.getKey();
+                final VALUE value = getValue(key);
+                if (value == null) {
+                    missingKeys.add(key);
+                    continue;
                 }
+                values.put(key, value);
+                release(key, entry.getValue());
+                entry.getValue().complete(value);
             }
-        } finally {
-            release(locker);
+            if (missingKeys.isEmpty())
+                return;
+            final long startTime = System.nanoTime();
+            final Map<KEY, VALUE> loaded;
+            try {
+                loaded = batchLoader.apply(Collections.unmodifiableSet(missingKeys));
+            } catch (RuntimeException | Error e) {
+                recordLoad(startTime, false);
+                throw e;
+            }
+            recordLoad(startTime, true);
+            for (final KEY key : missingKeys) {
+                final VALUE value = loaded == null ? null : loaded.get(key);
+                if (value != null) {
+                    putValue(key, value);
+                    values.put(key, value);
+                }
+                final CompletableFuture<VALUE> future = owned.get(key);
+                release(key, future);
+                future.complete(value);
+            }
+        } catch (RuntimeException | Error e) {
+            owned.forEach((key, future) -> {
+                if (!future.isDone()) {
+                    release(key, future);
+                    future.completeExceptionally(e);
+                }
+            });
+            throw e;
         }
-        return value;
+    }
+
+    private void recordLoad(final long startTime, final boolean success) {
+        final long loadTime = System.nanoTime() - startTime;
+        totalLoadTime.add(loadTime);
+        loadTimes.record(loadTime);
+        if (success)
+            loadSuccessCount.increment();
+        else
+            loadFailureCount.increment();
+    }
+
+    /**
+     * Asynchronous version of {@link #computeIfAbsent(Object, Function)}.
+     * The loader returns a future, typically from a {@link com.qwazr.utils.concurrent.TaskPool},
+     * so that no caller thread is held during the load.
+     *
+     * @param key    the key
+     * @param loader a function returning the future of the value
+     * @return a future completed by the value
+     */
+    public CompletableFuture<VALUE> computeIfAbsentAsync(final KEY key,
+                                                         final Function<KEY, CompletableFuture<VALUE>> loader) {
+        final VALUE existingValue = getValue(key);
+        if (existingValue != null) {
+            hitCount.increment();
+            return CompletableFuture.completedFuture(existingValue);
+        }
+        missCount.increment();
+        final Load<VALUE> future = new Load<>();
+        final CompletableFuture<VALUE> running = acquire(key, future);
+        if (running != null)
+            return running.thenApply(Function.identity());
+        final long startTime = System.nanoTime();
+        final VALUE currentValue = getValue(key);
+        final CompletableFuture<VALUE> loading;
+        try {
+            loading = currentValue != null ?
+                    CompletableFuture.completedFuture(currentValue) :
+                    Objects.requireNonNull(loader.apply(key), "The loader returned a null future");
+        } catch (RuntimeException | Error e) {
+            future.loader = null;
+            recordLoad(startTime, false);
+            release(key, future);
+            future.completeExceptionally(e);
+            return future.thenApply(Function.identity());
+        }
+        // The calling thread may wait for the value from now on, the load continues elsewhere
+        future.loader = null;
+        loading.whenComplete((value, throwable) -> {
+            if (currentValue == null)
+                recordLoad(startTime, throwable == null);
+            if (throwable != null) {
+                release(key, future);
+                future.completeExceptionally(throwable);
+                return;
+            }
+            try {
+                if (value != null)
+                    putValue(key, value);
+            } catch (RuntimeException e) {
+                release(key, future);
+                future.completeExceptionally(e);
+                return;
+            }
+            release(key, future);
+            future.complete(value);
+        });
+        return future.thenApply(Function.identity());
+    }
+
+    /**
+     * Write the entries to a snapshot file, in the iteration order of the backed map.
+     *
+     * @param file       the snapshot file
+     * @param maxEntries the maximum number of entries to write
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @return the number of written entries
+     * @throws IOException if any I/O error occurs
+     * @see CacheSnapshot#dump(Path, Iterable, int, CacheSnapshot.Codec, CacheSnapshot.Codec)
+     */
+    public int dumpSnapshot(final Path file, final int maxEntries,
+                            final CacheSnapshot.Codec<KEY> keyCodec,
+                            final CacheSnapshot.Codec<VALUE> valueCodec) throws IOException {
+        if (mapLock == null)
+            return CacheSnapshot.dump(file, map.entrySet(), maxEntries, keyCodec, valueCodec);
+        return mapLock.readEx(() -> CacheSnapshot.dump(file, map.entrySet(), maxEntries, keyCodec, valueCodec));
+    }
+
+    /**
+     * Reload a snapshot in the background. The cache can be used during the restore:
+     * a restored entry never replaces a value which has been loaded in the meantime.
+     *
+     * @param file       the snapshot file
+     * @param keyCodec   the codec of the keys
+     * @param valueCodec the codec of the values
+     * @param executor   the executor running the restore
+     * @return a future completed by the number of restored entries
+     * @see CacheSnapshot#restore(Path, CacheSnapshot.Codec, CacheSnapshot.Codec, java.util.function.BiConsumer, Executor)
+     */
+    public CompletableFuture<Integer> restoreSnapshot(final Path file,
+                                                      final CacheSnapshot.Codec<KEY> keyCodec,
+                                                      final CacheSnapshot.Codec<VALUE> valueCodec,
+                                                      final Executor executor) {
+        return CacheSnapshot.restore(file, keyCodec, valueCodec, this::putValueIfAbsent, executor);
+    }
+
+    /**
+     * Remove the key from the backed map, e.g. when the value is invalidated. A load in progress is not cancelled.
+     *
+     * @param key the key
+     * @return the removed value, or null
+     */
+    public VALUE remove(final KEY key) {
+        return mapLock == null ? map.remove(key) : mapLock.write(() -> map.remove(key));
+    }
+
+    /**
+     * Resize the backed map if it is a {@link ResizableCache}, otherwise do nothing.
+     *
+     * @param capacityRatio the ratio of the nominal capacity, between 0 (exclusive) and 1
+     */
+    @Override
+    public void resize(final double capacityRatio) {
+        if (!(map instanceof ResizableCache))
+            return;
+        final ResizableCache resizable = (ResizableCache) map;
+        if (mapLock == null)
+            resizable.resize(capacityRatio);
+        else
+            mapLock.write(() -> resizable.resize(capacityRatio));
     }
 
     /**
      * @return the size of the backed map
      */
     public int size() {
-        return mapLock.read(map::size);
+        return mapLock == null ? map.size() : mapLock.read(map::size);
     }
 
     /**
      * @return the number of active keys
      */
     public int getCurrentActiveKeys() {
-        return currentActiveKeys;
+        return currentActiveKeys.get();
     }
 
     /**
      * @return the highest number of active keys
      */
     public int getMaxActiveKeys() {
-        return maxActiveKeys;
+        return maxActiveKeys.get();
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loadSuccessCount.sum() + loadFailureCount.sum();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return totalLoadTime.sum();
+    }
+
+    /**
+     * @return a snapshot of the statistics
+     */
+    public Stats getStats() {
+        return new Stats(hitCount.sum(), missCount.sum(), loadSuccessCount.sum(), loadFailureCount.sum(),
+                totalLoadTime.sum(), loadTimes.percentile(99), evictionCount.sum());
     }
 
-    private static class Locker<KEY> {
+    /**
+     * The future of a load in progress, which knows the thread running the loader
+     */
+    private static final class Load<VALUE> extends CompletableFuture<VALUE> {
 
-        private final KEY key;
-        private int count;
+        private volatile Thread loader = Thread.currentThread();
+    }
+
+    public static <KEY, VALUE> Builder<KEY, VALUE> of() {
+        return new Builder<>();
+    }
 
-        private Locker(final KEY key) {
-            this.key = key;
-            this.count = 0;
+    public static class Builder<KEY, VALUE> {
+
+        private final ConcurrentCacheMap.Builder<KEY, VALUE> mapBuilder = ConcurrentCacheMap.of();
+        private RemovalListener<KEY, VALUE> removalListener;
+
+        public Builder<KEY, VALUE> maximumSize(final int maximumSize) {
+            mapBuilder.maximumSize(maximumSize);
+            return this;
         }
 
-        void lock() {
-            synchronized (this) {
-                count++;
-            }
+        public Builder<KEY, VALUE> maximumWeight(final long maximumWeight,
+                                                 final Weigher<? super KEY, ? super VALUE> weigher) {
+            mapBuilder.maximumWeight(maximumWeight, weigher);
+            return this;
         }
 
-        int release() {
-            final int result;
-            synchronized (this) {
-                result = --count;
-            }
-            return result;
+        public Builder<KEY, VALUE> expireAfterWrite(final Duration expireAfterWrite) {
+            mapBuilder.expireAfterWrite(expireAfterWrite);
+            return this;
+        }
+
+        public Builder<KEY, VALUE> expireAfterAccess(final Duration expireAfterAccess) {
+            mapBuilder.expireAfterAccess(expireAfterAccess);
+            return this;
+        }
+
+        public Builder<KEY, VALUE> removalListener(final RemovalListener<KEY, VALUE> removalListener) {
+            this.removalListener = removalListener;
+            return this;
+        }
+
+        public Builder<KEY, VALUE> concurrencyLevel(final int concurrencyLevel) {
+            mapBuilder.concurrencyLevel(concurrencyLevel);
+            return this;
+        }
+
+        public KeyLockedCache<KEY, VALUE> build() {
+            final LongAdder evictionCount = new LongAdder();
+            final RemovalListener<KEY, VALUE> listener = removalListener;
+            mapBuilder.removalListener((key, value, cause) -> {
+                if (cause.wasEvicted())
+                    evictionCount.increment();
+                if (listener != null)
+                    listener.onRemoval(key, value, cause);
+            });
+            return new KeyLockedCache<>(mapBuilder.build(), evictionCount);
+        }
+    }
+
+    @JsonAutoDetect(
+            creatorVisibility = JsonAutoDetect.Visibility.NONE,
+            getterVisibility = JsonAutoDetect.Visibility.NONE,
+            setterVisibility = JsonAutoDetect.Visibility.NONE,
+            isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+            fieldVisibility = JsonAutoDetect.Visibility.NONE)
+    public static class Stats extends Equalizer.Immutable<Stats> {
+
+        @JsonProperty("hit_count")
+        final public long hitCount;
+
+        @JsonProperty("miss_count")
+        final public long missCount;
+
+        @JsonProperty("load_success_count")
+        final public long loadSuccessCount;
+
+        @JsonProperty("load_failure_count")
+        final public long loadFailureCount;
+
+        @JsonProperty("total_load_time_ns")
+        final public long totalLoadTime;
+
+        @JsonProperty("p99_load_time_ns")
+        final public long p99LoadTime;
+
+        @JsonProperty("eviction_count")
+        final public long evictionCount;
+
+        @JsonCreator
+        Stats(@JsonProperty("hit_count") final long hitCount,
+              @JsonProperty("miss_count") final long missCount,
+              @JsonProperty("load_success_count") final long loadSuccessCount,
+              @JsonProperty("load_failure_count") final long loadFailureCount,
+              @JsonProperty("total_load_time_ns") final long totalLoadTime,
+              @JsonProperty("p99_load_time_ns") final long p99LoadTime,
+              @JsonProperty("eviction_count") final long evictionCount) {
+            super(Stats.class);
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadTime = totalLoadTime;
+            this.p99LoadTime = p99LoadTime;
+            this.evictionCount = evictionCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * @return the ratio of the requests which found a value, or 1 if there was no request
+         */
+        public double getHitRate() {
+            final long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+        }
+
+        /**
+         * @return the number of calls to the loader
+         */
+        public long getLoadCount() {
+            return loadSuccessCount + loadFailureCount;
+        }
+
+        public long getLoadSuccessCount() {
+            return loadSuccessCount;
+        }
+
+        public long getLoadFailureCount() {
+            return loadFailureCount;
+        }
+
+        /**
+         * @return the time spent by the loader, in nanoseconds
+         */
+        public long getTotalLoadTime() {
+            return totalLoadTime;
+        }
+
+        /**
+         * @return the 99th percentile of the load time, in nanoseconds
+         */
+        public long getP99LoadTime() {
+            return p99LoadTime;
+        }
+
+        /**
+         * @return the number of entries evicted by size or by expiration
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        @Override
+        protected int computeHashCode() {
+            return Objects.hash(hitCount, missCount, loadSuccessCount, loadFailureCount, evictionCount);
+        }
+
+        @Override
+        protected boolean isEqual(final Stats s) {
+            return hitCount == s.hitCount
+                    && missCount == s.missCount
+                    && loadSuccessCount == s.loadSuccessCount
+                    && loadFailureCount == s.loadFailureCount
+                    && totalLoadTime == s.totalLoadTime
+                    && p99LoadTime == s.p99LoadTime
+                    && evictionCount == s.evictionCount;
         }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear histogram of durations in nanoseconds.
+ * Each power of two is split in 8 buckets, the relative error of the percentiles is below 12.5%.
+ */
+@ThreadSafe
+final class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    private final AtomicLongArray counts;
+
+    LatencyHistogram() {
+        counts = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+    }
+
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) Math.max(0, value);
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long highestValueOf(final int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        final int exponent = (index >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (index & SUB_BUCKET_MASK) * width + width - 1;
+    }
+
+    void record(final long nanos) {
+        counts.incrementAndGet(indexOf(nanos));
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    long percentile(final double percentile) {
+        long total = 0;
+        final long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++)
+            total += snapshot[i] = counts.get(i);
+        if (total == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long cumulated = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            cumulated += snapshot[i];
+            if (cumulated >= rank)
+                return highestValueOf(i);
+        }
+        return highestValueOf(snapshot.length - 1);
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A lock-guarded open addressing table of primitive long keys, the segment of {@link LongObjectCache}
+ * and {@link LongLongMap}.
+ * <p>
+ * The keys, the access bits and the timestamps are stored in parallel arrays: there is no object per entry.
+ * The collisions are resolved by linear probing, and a removal shifts the following entries backward,
+ * so that no tombstone is left. The values are stored by the subclass in arrays indexed by the same slots.
+ * <p>
+ * As in {@link ConcurrentCacheMap}, a new key always enters a small admission window (1% of the capacity),
+ * kept in insertion order. When the segment is full, the oldest key of the window is the candidate:
+ * a CLOCK hand looks for a victim, outside of the window, which has not been accessed since its last pass,
+ * and the candidate is kept only if its TinyLFU frequency is higher than the frequency of the victim.
+ * The capacity is either a number of entries or a total weight.
+ * The expired entries are removed when they are found, and by {@link #cleanUp()}.
+ */
+@SuppressWarnings("serial")
+abstract class LongHashSegment extends ReentrantLock {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(LongHashSegment.class);
+
+    private final static int MIN_SEGMENT_CAPACITY = 64;
+    private final static int MAX_SEGMENTS = 1 << 16;
+    private final static int INITIAL_LENGTH = 16;
+    private final static int INITIAL_SKETCH_SIZE = 1024;
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final boolean weighted;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final boolean expiring;
+    private final LongSupplier ticker;
+    private final CacheStatsCounter stats;
+    private final FrequencySketch sketch;
+    private final ConcurrentLinkedQueue<Runnable> removals;
+
+    protected long[] keys;
+    private boolean[] used;
+    private boolean[] referenced;
+    private boolean[] window;
+    private long[] stamps;
+    private int[] weights;
+    private long[] writeTimes;
+    private long[] accessTimes;
+    private int mask;
+    private int count;
+    private int hand;
+    private long weight;
+
+    // The window keys in insertion order, with the stamp of their insertion:
+    // an entry whose key has been removed or reinserted since is skipped
+    private long[] windowKeys;
+    private long[] windowStamps;
+    private int windowHead;
+    private int windowQueued;
+    private int windowCount;
+    private long windowWeight;
+    private long stamp;
+
+    LongHashSegment(final long capacity, final long expireAfterWriteNanos, final long expireAfterAccessNanos,
+                    final LongSupplier ticker, final CacheStatsCounter stats) {
+        this(capacity, false, expireAfterWriteNanos, expireAfterAccessNanos, ticker, stats);
+    }
+
+    /**
+     * @param capacity the maximum number of entries, or the maximum total weight if weighted
+     * @param weighted true if the weight of each entry is given by {@link #insert(long, int, long, int)}
+     */
+    LongHashSegment(final long capacity, final boolean weighted, final long expireAfterWriteNanos,
+                    final long expireAfterAccessNanos, final LongSupplier ticker, final CacheStatsCounter stats) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.weighted = weighted;
+        this.expireAfterWriteNanos = expireAfterWriteNanos;
+        this.expireAfterAccessNanos = expireAfterAccessNanos;
+        this.expiring = expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0;
+        this.ticker = ticker;
+        this.stats = stats;
+        this.sketch = new FrequencySketch((int) Math.min(capacity, INITIAL_SKETCH_SIZE));
+        this.removals = new ConcurrentLinkedQueue<>();
+        reset();
+    }
+
+    private void allocate(final int length) {
+        keys = new long[length];
+        used = new boolean[length];
+        referenced = new boolean[length];
+        window = new boolean[length];
+        stamps = new long[length];
+        weights = weighted ? new int[length] : null;
+        writeTimes = expireAfterWriteNanos > 0 ? new long[length] : null;
+        accessTimes = expireAfterAccessNanos > 0 ? new long[length] : null;
+        mask = length - 1;
+        hand = 0;
+    }
+
+    private void reset() {
+        allocate(INITIAL_LENGTH);
+        count = 0;
+        weight = 0;
+        windowKeys = new long[INITIAL_LENGTH];
+        windowStamps = new long[INITIAL_LENGTH];
+        windowHead = 0;
+        windowQueued = 0;
+        windowCount = 0;
+        windowWeight = 0;
+    }
+
+    /**
+     * @param maxWeight        the maximum number of entries or the maximum total weight
+     * @param concurrencyLevel the expected number of concurrent writers
+     * @return the number of segments, a power of two
+     */
+    static int segmentCount(final long maxWeight, final int concurrencyLevel) {
+        return (int) Math.min(Math.min(FrequencySketch.ceilingPowerOfTwo(Math.max(1, concurrencyLevel)),
+                Long.highestOneBit(Math.max(1, maxWeight / MIN_SEGMENT_CAPACITY))), MAX_SEGMENTS);
+    }
+
+    /**
+     * @param key the key
+     * @return a well spread hash of the key: the low bits select the slot, the high bits the segment
+     */
+    static int hash(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * Resize the value arrays.
+     *
+     * @param length the new length of the table
+     * @param moves  the new slot of each old slot, or -1 for a free slot
+     */
+    protected abstract void resizeValues(int length, int[] moves);
+
+    protected abstract void moveValue(int from, int to);
+
+    protected abstract void clearValue(int slot);
+
+    /**
+     * @param slot  the slot of the removed entry
+     * @param cause the cause of the removal
+     * @return the notification of the removal listener, or null if there is no listener
+     */
+    protected abstract Runnable removal(int slot, RemovalListener.Cause cause);
+
+    final long now() {
+        return expiring ? ticker.getAsLong() : 0;
+    }
+
+    private boolean isExpired(final int slot, final long now) {
+        return (writeTimes != null && now - writeTimes[slot] >= expireAfterWriteNanos) ||
+                (accessTimes != null && now - accessTimes[slot] >= expireAfterAccessNanos);
+    }
+
+    private int weightOf(final int slot) {
+        return weights == null ? 1 : weights[slot];
+    }
+
+    /**
+     * Must be called while holding the lock
+     *
+     * @return the slot of the live entry of the key, or -1
+     */
+    final int find(final long key, final int hash, final long now) {
+        final int slot = slotOf(key, hash);
+        if (slot >= 0 && expiring && isExpired(slot, now)) {
+            retire(slot, RemovalListener.Cause.EXPIRED);
+            return -1;
+        }
+        return slot;
+    }
+
+    private int slotOf(final long key, final int hash) {
+        int slot = hash & mask;
+        while (used[slot]) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Must be called while holding the lock
+     */
+    final void onAccess(final int slot, final int hash, final long now) {
+        referenced[slot] = true;
+        sketch.increment(hash);
+        if (accessTimes != null)
+            accessTimes[slot] = now;
+    }
+
+    /**
+     * Must be called while holding the lock
+     */
+    final void onWrite(final int slot, final int hash, final long now) {
+        onAccess(slot, hash, now);
+        if (writeTimes != null)
+            writeTimes[slot] = now;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @see #insert(long, int, long, int)
+     */
+    final int insert(final long key, final int hash, final long now) {
+        return insert(key, hash, now, 1);
+    }
+
+    /**
+     * Reserve a slot for a new key in the admission window, evicting entries if the segment is full.
+     * Only an entry heavier than the whole segment is not stored: it counts as an eviction,
+     * and the caller notifies its removal with {@link #rejected(Runnable)}.
+     * Must be called while holding the lock.
+     *
+     * @param entryWeight the weight of the new entry, ignored if the segment is not weighted
+     * @return the slot where the value must be stored, or -1 if the key is not stored
+     */
+    final int insert(final long key, final int hash, final long now, final int entryWeight) {
+        sketch.increment(hash);
+        final int newWeight = weighted ? entryWeight : 1;
+        if (newWeight > capacity) {
+            stats.recordEviction();
+            return -1;
+        }
+        while (count > 0 && weight + newWeight > capacity)
+            evict(newWeight, now);
+        // There is room: the overflow of the window is admitted without competing
+        while (windowCount > 0 && windowWeight + newWeight > windowCapacity)
+            leaveWindow(windowHead());
+        if ((count + 1) * 4L > (mask + 1) * 3L)
+            grow();
+        int slot = hash & mask;
+        while (used[slot])
+            slot = (slot + 1) & mask;
+        used[slot] = true;
+        keys[slot] = key;
+        referenced[slot] = false;
+        window[slot] = true;
+        stamps[slot] = ++stamp;
+        if (weights != null)
+            weights[slot] = newWeight;
+        if (writeTimes != null)
+            writeTimes[slot] = now;
+        if (accessTimes != null)
+            accessTimes[slot] = now;
+        weight += newWeight;
+        windowWeight += newWeight;
+        windowCount++;
+        enqueueWindow(key, stamp);
+        if (++count > sketch.capacity())
+            sketch.ensureCapacity(count * 2);
+        return slot;
+    }
+
+    /**
+     * Change the weight of an entry, evicting entries if the segment is over its capacity.
+     * The slots may change. Must be called while holding the lock.
+     */
+    final void reweigh(final int slot, final int entryWeight, final long now) {
+        if (weights == null)
+            return;
+        final int delta = entryWeight - weights[slot];
+        weights[slot] = entryWeight;
+        weight += delta;
+        if (window[slot])
+            windowWeight += delta;
+        while (count > 0 && weight > capacity)
+            evict(0, now);
+    }
+
+    /**
+     * Remove at least one entry: either the oldest key of the window or a victim of the CLOCK hand.
+     *
+     * @param incomingWeight the weight of the entry about to enter the window
+     */
+    private void evict(final long incomingWeight, final long now) {
+        final boolean overWindow = windowCount > 0 &&
+                (windowWeight + incomingWeight > windowCapacity || windowCount == count);
+        final int victim = windowCount < count ? clockVictim(now) : -1;
+        if (victim >= 0 && expiring && isExpired(victim, now)) {
+            retire(victim, RemovalListener.Cause.EXPIRED);
+            return;
+        }
+        final int candidate = overWindow ? windowHead() : -1;
+        if (candidate >= 0 && expiring && isExpired(candidate, now)) {
+            retire(candidate, RemovalListener.Cause.EXPIRED);
+            return;
+        }
+        if (candidate < 0) {
+            retire(victim, RemovalListener.Cause.SIZE);
+            return;
+        }
+        leaveWindow(candidate);
+        if (victim < 0 || sketch.frequency(hash(keys[candidate])) <= sketch.frequency(hash(keys[victim])))
+            retire(candidate, RemovalListener.Cause.SIZE);
+        else
+            retire(victim, RemovalListener.Cause.SIZE);
+    }
+
+    private void leaveWindow(final int slot) {
+        window[slot] = false;
+        windowCount--;
+        windowWeight -= weightOf(slot);
+    }
+
+    /**
+     * @return the slot of an entry outside of the window which is expired or not referenced since the last pass
+     */
+    private int clockVictim(final long now) {
+        for (; ; ) {
+            hand &= mask;
+            if (!used[hand] || window[hand]) {
+                hand++;
+                continue;
+            }
+            if (expiring && isExpired(hand, now))
+                return hand;
+            if (referenced[hand]) {
+                referenced[hand] = false;
+                hand++;
+                continue;
+            }
+            return hand;
+        }
+    }
+
+    /**
+     * @return the slot of the oldest key of the window, or -1 if the window is empty
+     */
+    private int windowHead() {
+        while (windowQueued > 0) {
+            final int slot = slotOf(windowKeys[windowHead], hash(windowKeys[windowHead]));
+            final long queuedStamp = windowStamps[windowHead];
+            windowHead = (windowHead + 1) & (windowKeys.length - 1);
+            windowQueued--;
+            if (slot >= 0 && window[slot] && stamps[slot] == queuedStamp)
+                return slot;
+        }
+        return -1;
+    }
+
+    private void enqueueWindow(final long key, final long keyStamp) {
+        if (windowQueued == windowKeys.length)
+            compactWindow();
+        final int tail = (windowHead + windowQueued) & (windowKeys.length - 1);
+        windowKeys[tail] = key;
+        windowStamps[tail] = keyStamp;
+        windowQueued++;
+    }
+
+    /**
+     * Drop the keys which have left the window, and grow the queue if it is still more than half full
+     */
+    private void compactWindow() {
+        final int length = windowKeys.length;
+        final long[] oldKeys = windowKeys;
+        final long[] oldStamps = windowStamps;
+        final int newLength = windowCount * 2 < length ? length : length << 1;
+        windowKeys = new long[newLength];
+        windowStamps = new long[newLength];
+        int queued = 0;
+        for (int i = 0; i < windowQueued; i++) {
+            final int pos = (windowHead + i) & (length - 1);
+            final int slot = slotOf(oldKeys[pos], hash(oldKeys[pos]));
+            if (slot < 0 || !window[slot] || stamps[slot] != oldStamps[pos])
+                continue;
+            windowKeys[queued] = oldKeys[pos];
+            windowStamps[queued] = oldStamps[pos];
+            queued++;
+        }
+        windowHead = 0;
+        windowQueued = queued;
+    }
+
+    private void grow() {
+        final int length = (mask + 1) << 1;
+        final long[] oldKeys = keys;
+        final boolean[] oldUsed = used;
+        final boolean[] oldReferenced = referenced;
+        final boolean[] oldWindow = window;
+        final long[] oldStamps = stamps;
+        final int[] oldWeights = weights;
+        final long[] oldWriteTimes = writeTimes;
+        final long[] oldAccessTimes = accessTimes;
+        final int[] moves = new int[oldKeys.length];
+        allocate(length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i]) {
+                moves[i] = -1;
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (used[slot])
+                slot = (slot + 1) & mask;
+            used[slot] = true;
+            keys[slot] = oldKeys[i];
+            referenced[slot] = oldReferenced[i];
+            window[slot] = oldWindow[i];
+            stamps[slot] = oldStamps[i];
+            if (weights != null)
+                weights[slot] = oldWeights[i];
+            if (writeTimes != null)
+                writeTimes[slot] = oldWriteTimes[i];
+            if (accessTimes != null)
+                accessTimes[slot] = oldAccessTimes[i];
+            moves[i] = slot;
+        }
+        resizeValues(length, moves);
+    }
+
+    /**
+     * Remove the entry and shift the following entries of the probe sequence backward.
+     * Must be called while holding the lock.
+     */
+    final void retire(final int slot, final RemovalListener.Cause cause) {
+        if (cause.wasEvicted())
+            stats.recordEviction();
+        final Runnable removal = removal(slot, cause);
+        if (removal != null)
+            removals.add(removal);
+        final int slotWeight = weightOf(slot);
+        weight -= slotWeight;
+        if (window[slot]) {
+            windowCount--;
+            windowWeight -= slotWeight;
+        }
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (used[next]) {
+            final int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[hole] = false;
+        referenced[hole] = false;
+        window[hole] = false;
+        clearValue(hole);
+        count--;
+    }
+
+    private void move(final int from, final int to) {
+        keys[to] = keys[from];
+        used[to] = true;
+        referenced[to] = referenced[from];
+        window[to] = window[from];
+        stamps[to] = stamps[from];
+        if (weights != null)
+            weights[to] = weights[from];
+        if (writeTimes != null)
+            writeTimes[to] = writeTimes[from];
+        if (accessTimes != null)
+            accessTimes[to] = accessTimes[from];
+        moveValue(from, to);
+    }
+
+    /**
+     * Queue the notification of a key which was not stored. Must be called while holding the lock.
+     *
+     * @param removal the notification of the removal listener, or null if there is no listener
+     */
+    final void rejected(final Runnable removal) {
+        if (removal != null)
+            removals.add(removal);
+    }
+
+    /**
+     * Queue the notification of a replaced value. Must be called while holding the lock.
+     */
+    final void replaced(final int slot) {
+        final Runnable removal = removal(slot, RemovalListener.Cause.REPLACED);
+        if (removal != null)
+            removals.add(removal);
+    }
+
+    /**
+     * Release the lock and run the pending notifications of the removal listener
+     */
+    final void unlockAndNotify() {
+        unlock();
+        Runnable removal;
+        while ((removal = removals.poll()) != null) {
+            try {
+                removal.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Removal listener failure");
+            }
+        }
+    }
+
+    final int count() {
+        lock();
+        try {
+            return count;
+        } finally {
+            unlock();
+        }
+    }
+
+    final long weight() {
+        lock();
+        try {
+            return weight;
+        } finally {
+            unlock();
+        }
+    }
+
+    final void cleanUp() {
+        if (!expiring)
+            return;
+        lock();
+        try {
+            final long now = ticker.getAsLong();
+            for (int i = 0; i <= mask; i++)
+                while (used[i] && isExpired(i, now))
+                    retire(i, RemovalListener.Cause.EXPIRED);
+        } finally {
+            unlockAndNotify();
+        }
+    }
+
+    final void clear() {
+        lock();
+        try {
+            for (int i = 0; i <= mask; i++) {
+                if (!used[i])
+                    continue;
+                final Runnable removal = removal(i, RemovalListener.Cause.EXPLICIT);
+                if (removal != null)
+                    removals.add(removal);
+            }
+            reset();
+            resizeValues(INITIAL_LENGTH, new int[0]);
+        } finally {
+            unlockAndNotify();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A thread-safe bounded map whose keys and values are primitive longs.
+ * <p>
+ * Nothing is boxed on the lookups: each segment is an open addressing table of parallel arrays
+ * (see {@link LongHashSegment}). The builder returned by {@link #of()} offers the same bounds as
+ * {@link LongObjectCache}: a maximum size, an expiration after write or after access, and a removal listener.
+ */
+@ThreadSafe
+public class LongLongMap implements CacheStats {
+
+    private final int maxSize;
+    private final RemovalListener<Long, Long> removalListener;
+    private final CacheStatsCounter stats;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /**
+     * @param maxSize the maximum number of entries
+     */
+    public LongLongMap(final int maxSize) {
+        this(new Builder().maximumSize(maxSize));
+    }
+
+    protected LongLongMap(final Builder builder) {
+        maxSize = builder.maximumSize;
+        removalListener = builder.removalListener;
+        stats = new CacheStatsCounter();
+        final long expireAfterWriteNanos =
+                builder.expireAfterWrite == null ? 0 : builder.expireAfterWrite.toNanos();
+        final long expireAfterAccessNanos =
+                builder.expireAfterAccess == null ? 0 : builder.expireAfterAccess.toNanos();
+        final LongSupplier ticker = builder.ticker == null ? System::nanoTime : builder.ticker;
+        final int segmentCount = LongHashSegment.segmentCount(maxSize, builder.concurrencyLevel);
+        segments = new Segment[segmentCount];
+        segmentMask = segmentCount - 1;
+        final long baseCapacity = maxSize / segmentCount;
+        final long remainder = maxSize % segmentCount;
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(i < remainder ? baseCapacity + 1 : baseCapacity,
+                    expireAfterWriteNanos, expireAfterAccessNanos, ticker);
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param key          the key
+     * @param defaultValue the value returned if the key is missing
+     * @return the value of the key, or the default value
+     */
+    public long getOrDefault(final long key, final long defaultValue) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).getOrDefault(key, hash, defaultValue);
+    }
+
+    public boolean containsKey(final long key) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).containsKey(key, hash);
+    }
+
+    public void put(final long key, final long value) {
+        final int hash = LongHashSegment.hash(key);
+        segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * Return the value of the key, or compute it while holding the lock of the segment.
+     *
+     * @param key             the key
+     * @param mappingFunction computes the missing value
+     * @return the current or the computed value
+     */
+    public long computeIfAbsent(final long key, final LongUnaryOperator mappingFunction) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).computeIfAbsent(key, hash, mappingFunction);
+    }
+
+    /**
+     * @param key the key
+     * @return true if the key was found and removed
+     */
+    public boolean remove(final long key) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments)
+            size += segment.count();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Remove the expired entries
+     */
+    public void cleanUp() {
+        for (final Segment segment : segments)
+            segment.cleanUp();
+    }
+
+    public void clear() {
+        for (final Segment segment : segments)
+            segment.clear();
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats.getMissCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats.getEvictionCount();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return stats.getLoadCount();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return stats.getTotalLoadTime();
+    }
+
+    public static Builder of() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int maximumSize = Integer.MAX_VALUE;
+        private Duration expireAfterWrite;
+        private Duration expireAfterAccess;
+        private LongSupplier ticker;
+        private RemovalListener<Long, Long> removalListener;
+        private int concurrencyLevel = Runtime.getRuntime().availableProcessors();
+
+        public Builder maximumSize(final int maximumSize) {
+            if (maximumSize < 0)
+                throw new IllegalArgumentException("The maximum size should be positive: " + maximumSize);
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder expireAfterWrite(final Duration expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+            return this;
+        }
+
+        public Builder expireAfterAccess(final Duration expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+            return this;
+        }
+
+        /**
+         * @param ticker the time source, in nanoseconds (default {@link System#nanoTime()})
+         * @return this builder
+         */
+        public Builder ticker(final LongSupplier ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        /**
+         * @param removalListener notified after the removal, the key and the value are boxed
+         * @return this builder
+         */
+        public Builder removalListener(final RemovalListener<Long, Long> removalListener) {
+            this.removalListener = removalListener;
+            return this;
+        }
+
+        public Builder concurrencyLevel(final int concurrencyLevel) {
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public LongLongMap build() {
+            return new LongLongMap(this);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class Segment extends LongHashSegment {
+
+        private long[] values;
+
+        private Segment(final long capacity, final long expireAfterWriteNanos, final long expireAfterAccessNanos,
+                        final LongSupplier ticker) {
+            super(capacity, expireAfterWriteNanos, expireAfterAccessNanos, ticker, stats);
+            values = new long[keys.length];
+        }
+
+        @Override
+        protected void resizeValues(final int length, final int[] moves) {
+            final long[] newValues = new long[length];
+            for (int i = 0; i < moves.length; i++)
+                if (moves[i] >= 0)
+                    newValues[moves[i]] = values[i];
+            values = newValues;
+        }
+
+        @Override
+        protected void moveValue(final int from, final int to) {
+            values[to] = values[from];
+        }
+
+        @Override
+        protected void clearValue(final int slot) {
+            values[slot] = 0;
+        }
+
+        @Override
+        protected Runnable removal(final int slot, final RemovalListener.Cause cause) {
+            if (removalListener == null)
+                return null;
+            final long key = keys[slot];
+            final long value = values[slot];
+            return () -> removalListener.onRemoval(key, value, cause);
+        }
+
+        private Runnable removal(final long key, final long value) {
+            return removalListener == null ? null :
+                    () -> removalListener.onRemoval(key, value, RemovalListener.Cause.SIZE);
+        }
+
+        private long getOrDefault(final long key, final int hash, final long defaultValue) {
+            lock();
+            try {
+                final long now = now();
+                final int slot = find(key, hash, now);
+                if (slot < 0) {
+                    stats.recordMiss();
+                    return defaultValue;
+                }
+                stats.recordHit();
+                onAccess(slot, hash, now);
+                return values[slot];
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private boolean containsKey(final long key, final int hash) {
+            lock();
+            try {
+                return find(key, hash, now()) >= 0;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private void put(final long key, final int hash, final long value) {
+            lock();
+            try {
+                final long now = now();
+                final int slot = find(key, hash, now);
+                if (slot < 0) {
+                    final int newSlot = insert(key, hash, now);
+                    if (newSlot >= 0)
+                        values[newSlot] = value;
+                    else
+                        rejected(removal(key, value));
+                    return;
+                }
+                if (values[slot] != value)
+                    replaced(slot);
+                values[slot] = value;
+                onWrite(slot, hash, now);
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private long computeIfAbsent(final long key, final int hash, final LongUnaryOperator mappingFunction) {
+            lock();
+            try {
+                final long now = now();
+                final int slot = find(key, hash, now);
+                if (slot >= 0) {
+                    stats.recordHit();
+                    onAccess(slot, hash, now);
+                    return values[slot];
+                }
+                stats.recordMiss();
+                final long startTime = System.nanoTime();
+                final long value;
+                try {
+                    value = mappingFunction.applyAsLong(key);
+                } finally {
+                    stats.recordLoad(System.nanoTime() - startTime);
+                }
+                // The reentrant lock lets the mapping function store the key itself, e.g. by a nested call
+                final long loadedNow = now();
+                final int loadedSlot = find(key, hash, loadedNow);
+                if (loadedSlot >= 0) {
+                    onAccess(loadedSlot, hash, loadedNow);
+                    return values[loadedSlot];
+                }
+                final int newSlot = insert(key, hash, loadedNow);
+                if (newSlot >= 0)
+                    values[newSlot] = value;
+                else
+                    rejected(removal(key, value));
+                return value;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private boolean remove(final long key, final int hash) {
+            lock();
+            try {
+                final int slot = find(key, hash, now());
+                if (slot < 0)
+                    return false;
+                retire(slot, RemovalListener.Cause.EXPLICIT);
+                return true;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+    }
+}
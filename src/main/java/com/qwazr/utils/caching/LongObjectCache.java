@@ -0,0 +1,455 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * A thread-safe bounded cache whose keys are primitive longs, e.g. document ids.
+ * <p>
+ * The keys are never boxed: each segment is an open addressing table of parallel arrays,
+ * without any object per entry (see {@link LongHashSegment}).
+ * The builder returned by {@link #of()} offers the same bounds as {@link ConcurrentCacheMap}:
+ * a maximum size or a maximum weight, an expiration after write or after access, and a removal listener.
+ * Unlike {@link ConcurrentCacheMap}, the reads lock the segment of the key.
+ *
+ * @param <VALUE> the type of the values
+ */
+@ThreadSafe
+public class LongObjectCache<VALUE> implements CacheStats {
+
+    private final int maxSize;
+    private final long maxWeight;
+    private final Weigher<? super Long, ? super VALUE> weigher;
+    private final RemovalListener<Long, VALUE> removalListener;
+    private final CacheStatsCounter stats;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /**
+     * @param maxSize the maximum number of entries
+     */
+    public LongObjectCache(final int maxSize) {
+        this(new Builder<VALUE>().maximumSize(maxSize));
+    }
+
+    protected LongObjectCache(final Builder<VALUE> builder) {
+        if (builder.maximumSize != null && builder.maximumWeight != null)
+            throw new IllegalStateException("The maximum size and the maximum weight cannot be both set");
+        if (builder.maximumWeight != null) {
+            maxSize = -1;
+            maxWeight = builder.maximumWeight;
+            weigher = Objects.requireNonNull(builder.weigher, "The weigher is null");
+        } else {
+            maxSize = builder.maximumSize == null ? Integer.MAX_VALUE : builder.maximumSize;
+            maxWeight = maxSize;
+            weigher = null;
+        }
+        removalListener = builder.removalListener;
+        stats = new CacheStatsCounter();
+        final long expireAfterWriteNanos =
+                builder.expireAfterWrite == null ? 0 : builder.expireAfterWrite.toNanos();
+        final long expireAfterAccessNanos =
+                builder.expireAfterAccess == null ? 0 : builder.expireAfterAccess.toNanos();
+        final LongSupplier ticker = builder.ticker == null ? System::nanoTime : builder.ticker;
+        final int segmentCount = LongHashSegment.segmentCount(maxWeight, builder.concurrencyLevel);
+        @SuppressWarnings("unchecked")
+        final Segment[] newSegments = (Segment[]) new LongObjectCache<?>.Segment[segmentCount];
+        segments = newSegments;
+        segmentMask = segmentCount - 1;
+        final long baseCapacity = maxWeight / segmentCount;
+        final long remainder = maxWeight % segmentCount;
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(i < remainder ? baseCapacity + 1 : baseCapacity,
+                    expireAfterWriteNanos, expireAfterAccessNanos, ticker);
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    /**
+     * @return the maximum number of entries, or -1 if the cache is bounded by weight
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the maximum total weight, which is the maximum number of entries if no weigher is used
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public long getWeightedSize() {
+        long weight = 0;
+        for (final Segment segment : segments)
+            weight += segment.weight();
+        return weight;
+    }
+
+    private int weigh(final long key, final VALUE value) {
+        if (weigher == null)
+            return 1;
+        final int weight = weigher.weigh(key, value);
+        if (weight < 0)
+            throw new IllegalArgumentException("The weight should be positive: " + weight);
+        return weight;
+    }
+
+    public VALUE get(final long key) {
+        final int hash = LongHashSegment.hash(key);
+        return stats.recordLookup(segmentFor(hash).get(key, hash));
+    }
+
+    public boolean containsKey(final long key) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).containsKey(key, hash);
+    }
+
+    /**
+     * @param key   the key
+     * @param value the value, not null
+     * @return the previous value, or null
+     */
+    public VALUE put(final long key, final VALUE value) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    public VALUE putIfAbsent(final long key, final VALUE value) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * Return the value of the key, or compute it while holding the lock of the segment.
+     * A null value is not stored.
+     *
+     * @param key             the key
+     * @param mappingFunction computes the missing value
+     * @return the current or the computed value
+     */
+    public VALUE computeIfAbsent(final long key, final LongFunction<? extends VALUE> mappingFunction) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).computeIfAbsent(key, hash, mappingFunction);
+    }
+
+    /**
+     * @param key the key
+     * @return the removed value, or null
+     */
+    public VALUE remove(final long key) {
+        final int hash = LongHashSegment.hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments)
+            size += segment.count();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Remove the expired entries
+     */
+    public void cleanUp() {
+        for (final Segment segment : segments)
+            segment.cleanUp();
+    }
+
+    public void clear() {
+        for (final Segment segment : segments)
+            segment.clear();
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats.getMissCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats.getEvictionCount();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return stats.getLoadCount();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return stats.getTotalLoadTime();
+    }
+
+    public static <VALUE> Builder<VALUE> of() {
+        return new Builder<>();
+    }
+
+    public static class Builder<VALUE> {
+
+        private Integer maximumSize;
+        private Long maximumWeight;
+        private Weigher<? super Long, ? super VALUE> weigher;
+        private Duration expireAfterWrite;
+        private Duration expireAfterAccess;
+        private LongSupplier ticker;
+        private RemovalListener<Long, VALUE> removalListener;
+        private int concurrencyLevel = Runtime.getRuntime().availableProcessors();
+
+        public Builder<VALUE> maximumSize(final int maximumSize) {
+            if (maximumSize < 0)
+                throw new IllegalArgumentException("The maximum size should be positive: " + maximumSize);
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Bound the cache by the total weight of the entries instead of their number.
+         *
+         * @param maximumWeight the maximum total weight
+         * @param weigher       the weight of an entry, the key is boxed
+         * @return this builder
+         */
+        public Builder<VALUE> maximumWeight(final long maximumWeight,
+                                            final Weigher<? super Long, ? super VALUE> weigher) {
+            if (maximumWeight < 0)
+                throw new IllegalArgumentException("The maximum weight should be positive: " + maximumWeight);
+            this.maximumWeight = maximumWeight;
+            this.weigher = Objects.requireNonNull(weigher, "The weigher is null");
+            return this;
+        }
+
+        public Builder<VALUE> expireAfterWrite(final Duration expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+            return this;
+        }
+
+        public Builder<VALUE> expireAfterAccess(final Duration expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+            return this;
+        }
+
+        /**
+         * @param ticker the time source, in nanoseconds (default {@link System#nanoTime()})
+         * @return this builder
+         */
+        public Builder<VALUE> ticker(final LongSupplier ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        /**
+         * @param removalListener notified after the removal, the key is boxed
+         * @return this builder
+         */
+        public Builder<VALUE> removalListener(final RemovalListener<Long, VALUE> removalListener) {
+            this.removalListener = removalListener;
+            return this;
+        }
+
+        public Builder<VALUE> concurrencyLevel(final int concurrencyLevel) {
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public LongObjectCache<VALUE> build() {
+            return new LongObjectCache<>(this);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class Segment extends LongHashSegment {
+
+        private Object[] values;
+
+        private Segment(final long capacity, final long expireAfterWriteNanos, final long expireAfterAccessNanos,
+                        final LongSupplier ticker) {
+            super(capacity, weigher != null, expireAfterWriteNanos, expireAfterAccessNanos, ticker, stats);
+            values = new Object[keys.length];
+        }
+
+        @SuppressWarnings("unchecked")
+        private VALUE valueAt(final int slot) {
+            return (VALUE) values[slot];
+        }
+
+        @Override
+        protected void resizeValues(final int length, final int[] moves) {
+            final Object[] newValues = new Object[length];
+            for (int i = 0; i < moves.length; i++)
+                if (moves[i] >= 0)
+                    newValues[moves[i]] = values[i];
+            values = newValues;
+        }
+
+        @Override
+        protected void moveValue(final int from, final int to) {
+            values[to] = values[from];
+        }
+
+        @Override
+        protected void clearValue(final int slot) {
+            values[slot] = null;
+        }
+
+        @Override
+        protected Runnable removal(final int slot, final RemovalListener.Cause cause) {
+            if (removalListener == null)
+                return null;
+            final long key = keys[slot];
+            final VALUE value = valueAt(slot);
+            return () -> removalListener.onRemoval(key, value, cause);
+        }
+
+        private Runnable removal(final long key, final VALUE value) {
+            return removalListener == null ? null :
+                    () -> removalListener.onRemoval(key, value, RemovalListener.Cause.SIZE);
+        }
+
+        private VALUE get(final long key, final int hash) {
+            lock();
+            try {
+                final long now = now();
+                final int slot = find(key, hash, now);
+                if (slot < 0)
+                    return null;
+                onAccess(slot, hash, now);
+                return valueAt(slot);
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private boolean containsKey(final long key, final int hash) {
+            lock();
+            try {
+                return find(key, hash, now()) >= 0;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private VALUE put(final long key, final int hash, final VALUE value, final boolean onlyIfAbsent) {
+            if (value == null)
+                throw new NullPointerException("The value is null");
+            final int weight = weigh(key, value);
+            lock();
+            try {
+                final long now = now();
+                final int slot = find(key, hash, now);
+                if (slot < 0) {
+                    final int newSlot = insert(key, hash, now, weight);
+                    if (newSlot >= 0)
+                        values[newSlot] = value;
+                    else
+                        rejected(removal(key, value));
+                    return null;
+                }
+                final VALUE oldValue = valueAt(slot);
+                if (onlyIfAbsent) {
+                    onAccess(slot, hash, now);
+                    return oldValue;
+                }
+                if (oldValue != value)
+                    replaced(slot);
+                values[slot] = value;
+                onWrite(slot, hash, now);
+                reweigh(slot, weight, now);
+                return oldValue;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private VALUE computeIfAbsent(final long key, final int hash,
+                                      final LongFunction<? extends VALUE> mappingFunction) {
+            lock();
+            try {
+                final long now = now();
+                final int slot = find(key, hash, now);
+                if (slot >= 0) {
+                    stats.recordHit();
+                    onAccess(slot, hash, now);
+                    return valueAt(slot);
+                }
+                stats.recordMiss();
+                final long startTime = System.nanoTime();
+                final VALUE value;
+                try {
+                    value = mappingFunction.apply(key);
+                } finally {
+                    stats.recordLoad(System.nanoTime() - startTime);
+                }
+                // The reentrant lock lets the mapping function store the key itself, e.g. by a nested call
+                final long loadedNow = now();
+                final int loadedSlot = find(key, hash, loadedNow);
+                if (loadedSlot >= 0) {
+                    onAccess(loadedSlot, hash, loadedNow);
+                    return valueAt(loadedSlot);
+                }
+                if (value != null) {
+                    final int newSlot = insert(key, hash, loadedNow, weigh(key, value));
+                    if (newSlot >= 0)
+                        values[newSlot] = value;
+                    else
+                        rejected(removal(key, value));
+                }
+                return value;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+
+        private VALUE remove(final long key, final int hash) {
+            lock();
+            try {
+                final int slot = find(key, hash, now());
+                if (slot < 0)
+                    return null;
+                final VALUE value = valueAt(slot);
+                retire(slot, RemovalListener.Cause.EXPLICIT);
+                return value;
+            } finally {
+                unlockAndNotify();
+            }
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.LoggerUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only key/value log split in memory-mapped segment files.
+ * <p>
+ * A record is: key length, value length (-1 for a deletion), CRC32, key bytes, value bytes.
+ * The index (key to record location) is kept on the heap and rebuilt by scanning the segments when opening.
+ * A scan stops at the first empty or corrupted record, so a partially written record is ignored.
+ * <p>
+ * The number of segments may be bounded: the oldest segment is then dropped with all its records.
+ * The segments are unmapped before their file is deleted, if the JVM exposes the cleaner of the mapped buffers,
+ * otherwise the deletion of the files is retried on each compaction and when the store is closed.
+ *
+ * @param <KEY> the type of the keys
+ */
+@ThreadSafe
+class MappedLogStore<KEY> implements Closeable {
+
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static int HEADER_SIZE = 12;
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(MappedLogStore.class);
+
+    @FunctionalInterface
+    interface KeyDecoder<KEY> {
+
+        KEY decode(byte[] bytes) throws IOException, ReflectiveOperationException;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final KeyDecoder<KEY> keyDecoder;
+
+    private final ReentrantLock lock;
+    private final TreeMap<Long, Segment> segments;
+    private final Map<KEY, Location> index;
+    private final List<Path> obsoleteFiles;
+    private Segment current;
+
+    MappedLogStore(final Path directory, final int segmentSize, final KeyDecoder<KEY> keyDecoder)
+            throws IOException, ReflectiveOperationException {
+        this(directory, segmentSize, 0, keyDecoder);
+    }
+
+    /**
+     * @param maxSegments the maximum number of segments, at least 2, or 0 for no bound
+     */
+    MappedLogStore(final Path directory, final int segmentSize, final int maxSegments,
+                   final KeyDecoder<KEY> keyDecoder) throws IOException, ReflectiveOperationException {
+        if (maxSegments == 1 || maxSegments < 0)
+            throw new IllegalArgumentException("The maximum number of segments should be 0 or at least 2");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.keyDecoder = keyDecoder;
+        this.lock = new ReentrantLock();
+        this.segments = new TreeMap<>();
+        this.index = new HashMap<>();
+        this.obsoleteFiles = new ArrayList<>();
+        Files.createDirectories(directory);
+        final List<Long> ids = new ArrayList<>();
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> ids.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        ids.sort(Long::compare);
+        for (final long id : ids)
+            load(openSegment(id, 0));
+        current = segments.isEmpty() ? openSegment(0, segmentSize) : segments.lastEntry().getValue();
+        trim();
+    }
+
+    private Path segmentPath(final long id) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%012d", id) + SEGMENT_SUFFIX);
+    }
+
+    private Segment openSegment(final long id, final int size) throws IOException {
+        final Segment segment = new Segment(id, segmentPath(id), size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void load(final Segment segment) throws IOException, ReflectiveOperationException {
+        final MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.limit()) {
+            final int keyLength = buffer.getInt(position);
+            final int valueLength = buffer.getInt(position + 4);
+            if (keyLength <= 0 || valueLength < -1)
+                break;
+            final int recordSize = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (recordSize < 0 || position + recordSize > buffer.limit())
+                break;
+            final byte[] keyBytes = read(buffer, position + HEADER_SIZE, keyLength);
+            final byte[] valueBytes = valueLength > 0 ? read(buffer, position + HEADER_SIZE + keyLength, valueLength) :
+                    new byte[0];
+            if (buffer.getInt(position + 8) != checksum(keyBytes, valueBytes))
+                break;
+            final KEY key = keyDecoder.decode(keyBytes);
+            if (valueLength >= 0)
+                supersede(index.put(key, new Location(segment, position, keyLength, valueLength)));
+            else
+                supersede(index.remove(key));
+            segment.written += recordSize;
+            if (valueLength >= 0)
+                segment.live += recordSize;
+            position += recordSize;
+        }
+        segment.position = position;
+    }
+
+    private static byte[] read(final MappedByteBuffer buffer, final int position, final int length) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    private static int checksum(final byte[] keyBytes, final byte[] valueBytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(valueBytes);
+        return (int) crc.getValue();
+    }
+
+    private void supersede(final Location location) {
+        if (location != null)
+            location.segment.live -= location.size();
+    }
+
+    private Location append(final byte[] keyBytes, final byte[] valueBytes, final boolean deletion)
+            throws IOException {
+        final int recordSize = HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (current.position + recordSize > current.buffer.limit())
+            current = openSegment(current.id + 1, Math.max(segmentSize, recordSize));
+        final ByteBuffer buffer = current.buffer.duplicate();
+        final int position = current.position;
+        buffer.position(position + 8);
+        buffer.putInt(checksum(keyBytes, valueBytes));
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        buffer.putInt(position + 4, deletion ? -1 : valueBytes.length);
+        buffer.putInt(position, keyBytes.length);
+        current.position += recordSize;
+        current.written += recordSize;
+        if (!deletion)
+            current.live += recordSize;
+        return new Location(current, position, keyBytes.length, deletion ? -1 : valueBytes.length);
+    }
+
+    void put(final KEY key, final byte[] keyBytes, final byte[] valueBytes)
+            throws IOException, ReflectiveOperationException {
+        lock.lock();
+        try {
+            supersede(index.put(key, append(keyBytes, valueBytes, false)));
+            trim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    byte[] get(final KEY key) {
+        lock.lock();
+        try {
+            final Location location = index.get(key);
+            return location == null ? null : location.readValue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the key and return the value it was mapped to.
+     *
+     * @param key      the key to remove
+     * @param keyBytes the serialized key, written in the deletion record
+     * @return the serialized value or null if the key was not found
+     * @throws IOException if the deletion record cannot be written
+     */
+    byte[] remove(final KEY key, final byte[] keyBytes) throws IOException {
+        lock.lock();
+        try {
+            final Location location = index.remove(key);
+            if (location == null)
+                return null;
+            supersede(location);
+            final byte[] valueBytes = location.readValue();
+            append(keyBytes, new byte[0], true);
+            return valueBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean containsKey(final KEY key) {
+        lock.lock();
+        try {
+            return index.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrite the live records of the segments whose ratio of superseded bytes reaches the threshold,
+     * and delete their files. The segment being written is never compacted.
+     *
+     * @param garbageRatio the minimum ratio of superseded bytes
+     * @return the number of compacted segments
+     * @throws IOException                  if any I/O error occurs
+     * @throws ReflectiveOperationException if a key cannot be decoded
+     */
+    int compact(final double garbageRatio) throws IOException, ReflectiveOperationException {
+        lock.lock();
+        try {
+            int compacted = 0;
+            for (final Segment segment : new ArrayList<>(segments.values())) {
+                if (segment == current || segment.written == 0 ||
+                        segment.written - segment.live < garbageRatio * segment.written)
+                    continue;
+                rewrite(segment, segment == segments.firstEntry().getValue());
+                compacted++;
+            }
+            trim();
+            deleteObsoleteFiles();
+            return compacted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rewrite(final Segment segment, final boolean oldest)
+            throws IOException, ReflectiveOperationException {
+        final MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position < segment.position) {
+            final int keyLength = buffer.getInt(position);
+            final int valueLength = buffer.getInt(position + 4);
+            final byte[] keyBytes = read(buffer, position + HEADER_SIZE, keyLength);
+            final KEY key = keyDecoder.decode(keyBytes);
+            final Location location = index.get(key);
+            if (valueLength >= 0) {
+                if (location != null && location.segment == segment && location.position == position)
+                    index.put(key, append(keyBytes, location.readValue(), false));
+            } else if (!oldest && location == null) {
+                // The deletion is still needed while an older segment may contain the key
+                append(keyBytes, new byte[0], true);
+            }
+            position += HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+        delete(segment);
+    }
+
+    /**
+     * Drop the oldest segments, with their records, while there are more segments than the maximum.
+     * Must be called while holding the lock, never while a segment is being read.
+     */
+    private void trim() throws IOException, ReflectiveOperationException {
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            final Segment oldest = segments.firstEntry().getValue();
+            final MappedByteBuffer buffer = oldest.buffer;
+            int position = 0;
+            while (position < oldest.position) {
+                final int keyLength = buffer.getInt(position);
+                final int valueLength = buffer.getInt(position + 4);
+                if (valueLength >= 0) {
+                    final KEY key = keyDecoder.decode(read(buffer, position + HEADER_SIZE, keyLength));
+                    final Location location = index.get(key);
+                    if (location != null && location.segment == oldest && location.position == position)
+                        index.remove(key);
+                }
+                position += HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            }
+            delete(oldest);
+        }
+    }
+
+    /**
+     * Remove a segment which is not referenced by the index anymore, and delete its file
+     */
+    private void delete(final Segment segment) throws IOException {
+        segments.remove(segment.id);
+        segment.close();
+        if (segment.unmap())
+            Files.deleteIfExists(segment.path);
+        else
+            obsoleteFiles.add(segment.path);
+    }
+
+    /**
+     * Retry to delete the files of the segments which could not be unmapped.
+     * The deletion fails on the platforms which do not allow deleting a mapped file,
+     * until the garbage collector releases the mapping.
+     */
+    private void deleteObsoleteFiles() {
+        obsoleteFiles.removeIf(path -> {
+            try {
+                Files.deleteIfExists(path);
+                return true;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, e, () -> "Cannot delete the segment " + path);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Flush the segments to the disk
+     */
+    void force() {
+        lock.lock();
+        try {
+            for (final Segment segment : segments.values())
+                segment.buffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            for (final Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.close();
+                segment.unmap();
+            }
+            segments.clear();
+            index.clear();
+            deleteObsoleteFiles();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private long written;
+        private long live;
+
+        private Segment(final long id, final Path path, final int size) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Release the mapping. The buffer must not be accessed anymore.
+         *
+         * @return true if the buffer has been unmapped, false if the mapping is released by the garbage collector
+         */
+        private boolean unmap() {
+            return Unmapper.unmap(buffer);
+        }
+    }
+
+    /**
+     * Invoke the cleaner of a mapped buffer: sun.misc.Unsafe#invokeCleaner on Java 9+,
+     * or the cleaner of the DirectByteBuffer on Java 8.
+     */
+    private static final class Unmapper {
+
+        private final static Object UNSAFE;
+        private final static Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.FINE, e, () -> "Unsafe.invokeCleaner is not available");
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private static boolean unmap(final MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                    return true;
+                }
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner == null)
+                    return false;
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return true;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.FINE, e, () -> "Cannot unmap the buffer");
+                return false;
+            }
+        }
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+        private final int position;
+        private final int keyLength;
+        private final int valueLength;
+
+        private Location(final Segment segment, final int position, final int keyLength, final int valueLength) {
+            this.segment = segment;
+            this.position = position;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        private int size() {
+            return HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+
+        private byte[] readValue() {
+            return read(segment.buffer, position + HEADER_SIZE + keyLength, valueLength);
+        }
+    }
+}
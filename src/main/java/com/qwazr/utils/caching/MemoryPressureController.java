@@ -0,0 +1,363 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.RuntimeUtils;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shrinks the registered caches when the heap is under pressure, and lets them grow back when there is room again.
+ * <p>
+ * The heap occupancy is checked after each garbage collection, and when the old generation crosses
+ * its collection usage threshold, which is set to the high-water mark.
+ * The young generation pools (eden, survivor), which do not support a usage threshold, are ignored.
+ * The occupancy is the usage of the old generation measured after the last collection,
+ * or {@link RuntimeUtils#getMemoryUsage()} divided by the maximum heap size if the JVM does not report it.
+ * <p>
+ * Above the high-water mark, the capacity ratio of all the caches is multiplied by the shrink factor, down to the
+ * minimum ratio. Below the low-water mark, it is divided by the shrink factor, up to the nominal capacity.
+ * A young collection does not measure the old generation again: on the notifications, the caches are only shrunk
+ * after an old generation collection, and only once per collection.
+ * <p>
+ * The caches are resized from the thread of the JVM notifications: only the caches guarding their own mutations
+ * are accepted, e.g. a {@link CacheMap} must be wrapped in a {@link KeyLockedCache}.
+ */
+@ThreadSafe
+public class MemoryPressureController implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(MemoryPressureController.class);
+
+    private final double highWaterMark;
+    private final double lowWaterMark;
+    private final double shrinkFactor;
+    private final double minimumRatio;
+    private final DoubleSupplier occupancySupplier;
+    private final Set<ResizableCache> caches;
+    private final NotificationListener listener;
+    private final List<NotificationEmitter> emitters;
+    private final Map<MemoryPoolMXBean, Long> previousThresholds;
+    private double capacityRatio;
+    private long shrinkCollectionCount;
+
+    protected MemoryPressureController(final Builder builder) {
+        if (!(builder.lowWaterMark > 0 && builder.lowWaterMark < builder.highWaterMark && builder.highWaterMark < 1))
+            throw new IllegalArgumentException("The water marks should verify 0 < low < high < 1");
+        if (!(builder.shrinkFactor > 0 && builder.shrinkFactor < 1))
+            throw new IllegalArgumentException("The shrink factor should be in ]0, 1[: " + builder.shrinkFactor);
+        if (!(builder.minimumRatio > 0 && builder.minimumRatio <= 1))
+            throw new IllegalArgumentException("The minimum ratio should be in ]0, 1]: " + builder.minimumRatio);
+        highWaterMark = builder.highWaterMark;
+        lowWaterMark = builder.lowWaterMark;
+        shrinkFactor = builder.shrinkFactor;
+        minimumRatio = builder.minimumRatio;
+        occupancySupplier = builder.occupancySupplier == null ?
+                MemoryPressureController::getOldGenerationOccupancy :
+                builder.occupancySupplier;
+        caches = new CopyOnWriteArraySet<>();
+        capacityRatio = 1;
+        shrinkCollectionCount = -1;
+        listener = this::handleNotification;
+        emitters = new ArrayList<>();
+        previousThresholds = new LinkedHashMap<>();
+        if (builder.listen)
+            listen();
+    }
+
+    private void listen() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (!isTenured(pool))
+                continue;
+            final long max = pool.getUsage().getMax();
+            if (max <= 0)
+                continue;
+            previousThresholds.put(pool, pool.getCollectionUsageThreshold());
+            pool.setCollectionUsageThreshold((long) (max * highWaterMark));
+        }
+        addListener(ManagementFactory.getMemoryMXBean());
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            addListener(gc);
+    }
+
+    private void addListener(final Object bean) {
+        if (!(bean instanceof NotificationEmitter))
+            return;
+        final NotificationEmitter emitter = (NotificationEmitter) bean;
+        emitter.addNotificationListener(listener, null, null);
+        emitters.add(emitter);
+    }
+
+    private void handleNotification(final Notification notification, final Object handback) {
+        final String type = notification.getType();
+        try {
+            final boolean oldGeneration;
+            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type))
+                oldGeneration = true;
+            else if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(type))
+                // The concurrent collectors report "end of GC cycle", which also collects the old generation
+                oldGeneration = !"end of minor GC".equals(GarbageCollectionNotificationInfo.from(
+                        (CompositeData) notification.getUserData()).getGcAction());
+            else
+                return;
+            onCollection(oldGeneration, getCollectionCount());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Memory pressure check failure");
+        }
+    }
+
+    private static long getCollectionCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    /**
+     * The young generation pools support a collection usage threshold, but not a usage threshold.
+     *
+     * @param pool the memory pool
+     * @return true if the pool is the old generation, or the single pool of a non generational heap
+     */
+    static boolean isTenured(final MemoryPoolMXBean pool) {
+        return pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() &&
+                pool.isCollectionUsageThresholdSupported();
+    }
+
+    /**
+     * @return the highest post-collection usage ratio of the old generation pools
+     */
+    static double getOldGenerationOccupancy() {
+        double occupancy = -1;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (!isTenured(pool))
+                continue;
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getMax() <= 0)
+                continue;
+            occupancy = Math.max(occupancy, (double) usage.getUsed() / usage.getMax());
+        }
+        return occupancy >= 0 ? occupancy : (double) RuntimeUtils.getMemoryUsage() / Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Register a cache, which is immediately resized to the current capacity ratio.
+     *
+     * @param cache the cache to resize
+     * @throws IllegalArgumentException if the cache is not {@link ResizableCache#isConcurrentlyResizable()}
+     */
+    public synchronized void register(final ResizableCache cache) {
+        Objects.requireNonNull(cache, "The cache is null");
+        if (!cache.isConcurrentlyResizable())
+            throw new IllegalArgumentException(
+                    "The cache does not guard its mutations, it should be wrapped: " + cache.getClass().getName());
+        if (caches.add(cache) && capacityRatio < 1)
+            cache.resize(capacityRatio);
+    }
+
+    /**
+     * Unregister a cache, which is restored to its nominal capacity.
+     *
+     * @param cache the cache
+     */
+    public synchronized void unregister(final ResizableCache cache) {
+        if (caches.remove(cache) && capacityRatio < 1)
+            cache.resize(1);
+    }
+
+    /**
+     * @return the ratio of the nominal capacity currently applied to the caches
+     */
+    public synchronized double getCapacityRatio() {
+        return capacityRatio;
+    }
+
+    /**
+     * @return the current heap occupancy, between 0 and 1
+     */
+    public double getOccupancy() {
+        return occupancySupplier.getAsDouble();
+    }
+
+    /**
+     * Compare the heap occupancy with the water marks, and resize the caches if needed.
+     * Unlike the notifications, each call may shrink the caches: it should not be called more often than the
+     * old generation is collected.
+     *
+     * @return the new capacity ratio
+     */
+    public synchronized double check() {
+        return check(true);
+    }
+
+    /**
+     * Resize the caches after a garbage collection.
+     * The caches are not shrunk again until an old generation collection has followed the previous shrink:
+     * the occupancy measured before does not reflect it yet.
+     *
+     * @param oldGeneration   true if the collection has measured the old generation again
+     * @param collectionCount the total number of collections, which identifies the collection
+     * @return the new capacity ratio
+     */
+    synchronized double onCollection(final boolean oldGeneration, final long collectionCount) {
+        final double previousRatio = capacityRatio;
+        final double newRatio = check(oldGeneration && collectionCount != shrinkCollectionCount);
+        if (newRatio < previousRatio)
+            shrinkCollectionCount = collectionCount;
+        return newRatio;
+    }
+
+    private double check(final boolean shrinkable) {
+        final double occupancy = getOccupancy();
+        final double newRatio;
+        if (occupancy >= highWaterMark) {
+            if (!shrinkable)
+                return capacityRatio;
+            newRatio = Math.max(minimumRatio, capacityRatio * shrinkFactor);
+        } else if (occupancy <= lowWaterMark)
+            // The rounding errors must not prevent the return to the nominal capacity
+            newRatio = capacityRatio / shrinkFactor > 1 - 1e-9 ? 1 : capacityRatio / shrinkFactor;
+        else
+            return capacityRatio;
+        if (newRatio == capacityRatio)
+            return capacityRatio;
+        LOGGER.fine(() -> "Heap occupancy " + occupancy + ": cache capacity ratio " + capacityRatio + " -> " +
+                newRatio);
+        capacityRatio = newRatio;
+        for (final ResizableCache cache : caches) {
+            try {
+                cache.resize(newRatio);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cache resize failure");
+            }
+        }
+        return capacityRatio;
+    }
+
+    /**
+     * Stop listening the notifications, restore the collection usage thresholds,
+     * and restore the nominal capacity of the caches.
+     */
+    @Override
+    public synchronized void close() {
+        for (final NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                LOGGER.log(Level.FINE, e, e::getMessage);
+            }
+        }
+        emitters.clear();
+        previousThresholds.forEach(MemoryPoolMXBean::setCollectionUsageThreshold);
+        previousThresholds.clear();
+        if (capacityRatio < 1)
+            for (final ResizableCache cache : caches)
+                cache.resize(1);
+        capacityRatio = 1;
+        caches.clear();
+    }
+
+    public static Builder of() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private double highWaterMark = 0.85;
+        private double lowWaterMark = 0.6;
+        private double shrinkFactor = 0.75;
+        private double minimumRatio = 0.1;
+        private DoubleSupplier occupancySupplier;
+        private boolean listen = true;
+
+        /**
+         * @param highWaterMark the occupancy above which the caches are shrunk (default 0.85)
+         * @param lowWaterMark  the occupancy below which the caches grow back (default 0.6)
+         * @return this builder
+         */
+        public Builder waterMarks(final double highWaterMark, final double lowWaterMark) {
+            this.highWaterMark = highWaterMark;
+            this.lowWaterMark = lowWaterMark;
+            return this;
+        }
+
+        /**
+         * @param shrinkFactor the factor applied to the capacity ratio on each shrink (default 0.75)
+         * @return this builder
+         */
+        public Builder shrinkFactor(final double shrinkFactor) {
+            this.shrinkFactor = shrinkFactor;
+            return this;
+        }
+
+        /**
+         * @param minimumRatio the lowest capacity ratio (default 0.1)
+         * @return this builder
+         */
+        public Builder minimumRatio(final double minimumRatio) {
+            this.minimumRatio = minimumRatio;
+            return this;
+        }
+
+        /**
+         * Replace the measure of the heap occupancy
+         *
+         * @param occupancySupplier returns the occupancy, between 0 and 1
+         * @return this builder
+         */
+        public Builder occupancy(final DoubleSupplier occupancySupplier) {
+            this.occupancySupplier = occupancySupplier;
+            return this;
+        }
+
+        /**
+         * @param listen false to not subscribe to the JVM notifications, {@link #check()} must then be called
+         *               explicitly (default true)
+         * @return this builder
+         */
+        public Builder listen(final boolean listen) {
+            this.listen = listen;
+            return this;
+        }
+
+        public MemoryPressureController build() {
+            return new MemoryPressureController(this);
+        }
+    }
+}
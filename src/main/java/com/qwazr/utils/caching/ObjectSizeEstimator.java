@@ -0,0 +1,187 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimate the heap size of objects, in bytes.
+ * <p>
+ * The layout of each class (shallow size and reference fields) is computed once by reflection and cached.
+ * The estimation assumes a 64 bits HotSpot JVM, with compressed references when the heap is smaller than 32GB.
+ * The fields of the JDK classes are not followed: the collections and the maps of the JDK are measured
+ * through their public API, with an estimation of their internal nodes.
+ */
+public class ObjectSizeEstimator {
+
+    private final static boolean COMPRESSED_REFERENCES =
+            !"32".equals(System.getProperty("sun.arch.data.model")) && Runtime.getRuntime().maxMemory() < (32L << 30);
+
+    final static int REFERENCE_SIZE = COMPRESSED_REFERENCES ? 4 : 8;
+    final static int OBJECT_HEADER_SIZE = COMPRESSED_REFERENCES ? 12 : 16;
+    final static int ARRAY_HEADER_SIZE = COMPRESSED_REFERENCES ? 16 : 24;
+
+    // The size of a HashMap.Node: header, hash, key, value and next references
+    private final static int MAP_ENTRY_SIZE = (int) align(OBJECT_HEADER_SIZE + 4 + REFERENCE_SIZE * 3);
+
+    private final static ClassValue<ClassLayout> LAYOUTS = new ClassValue<ClassLayout>() {
+        @Override
+        protected ClassLayout computeValue(final Class<?> type) {
+            return new ClassLayout(type);
+        }
+    };
+
+    static int toWeight(final long size) {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    static long align(final long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static int primitiveSize(final Class<?> type) {
+        if (type == long.class || type == double.class)
+            return 8;
+        if (type == int.class || type == float.class)
+            return 4;
+        if (type == short.class || type == char.class)
+            return 2;
+        if (type == byte.class || type == boolean.class)
+            return 1;
+        return REFERENCE_SIZE;
+    }
+
+    /**
+     * @param object the object to measure
+     * @return the size of the object itself, without the objects it references
+     */
+    public static long shallowSizeOf(final Object object) {
+        if (object == null)
+            return 0;
+        final Class<?> type = object.getClass();
+        if (type.isArray())
+            return align(ARRAY_HEADER_SIZE + (long) Array.getLength(object) * primitiveSize(type.getComponentType()));
+        if (object instanceof String)
+            return LAYOUTS.get(type).shallowSize + align(ARRAY_HEADER_SIZE + ((String) object).length() * 2L);
+        return LAYOUTS.get(type).shallowSize;
+    }
+
+    /**
+     * @param object the root of the object graph
+     * @return the size of the objects reachable from the root, each object being counted once
+     */
+    public static long deepSizeOf(final Object object) {
+        if (object == null)
+            return 0;
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(object);
+        long size = 0;
+        while (!stack.isEmpty()) {
+            final Object current = stack.pop();
+            if (!visited.add(current))
+                continue;
+            size += shallowSizeOf(current);
+            final Class<?> type = current.getClass();
+            if (type.isArray()) {
+                if (!type.getComponentType().isPrimitive())
+                    for (final Object element : (Object[]) current)
+                        push(stack, element);
+                continue;
+            }
+            final ClassLayout layout = LAYOUTS.get(type);
+            for (final Field field : layout.referenceFields) {
+                try {
+                    push(stack, field.get(current));
+                } catch (IllegalAccessException e) {
+                    // The field is skipped
+                }
+            }
+            if (!layout.jdkFields)
+                continue;
+            if (current instanceof Collection) {
+                final Collection<?> collection = (Collection<?>) current;
+                size += (long) collection.size() * REFERENCE_SIZE;
+                for (final Object element : collection)
+                    push(stack, element);
+            } else if (current instanceof Map) {
+                final Map<?, ?> map = (Map<?, ?>) current;
+                size += (long) map.size() * (MAP_ENTRY_SIZE + REFERENCE_SIZE);
+                for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                    push(stack, entry.getKey());
+                    push(stack, entry.getValue());
+                }
+            }
+        }
+        return size;
+    }
+
+    private static boolean isJdkClass(final Class<?> type) {
+        final String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.") ||
+                name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    private static void push(final ArrayDeque<Object> stack, final Object object) {
+        // Classes and enum constants are shared, they are not part of the object graph
+        if (object != null && !(object instanceof Class) && !(object instanceof Enum))
+            stack.push(object);
+    }
+
+    private static final class ClassLayout {
+
+        private final long shallowSize;
+        private final List<Field> referenceFields;
+        private final boolean jdkFields;
+
+        private ClassLayout(final Class<?> type) {
+            long size = OBJECT_HEADER_SIZE;
+            final List<Field> fields = new ArrayList<>();
+            boolean jdk = false;
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                final boolean jdkClass = isJdkClass(c);
+                jdk |= jdkClass;
+                for (final Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()))
+                        continue;
+                    final Class<?> fieldType = field.getType();
+                    size += primitiveSize(fieldType);
+                    if (fieldType.isPrimitive() || jdkClass)
+                        continue;
+                    try {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    } catch (RuntimeException e) {
+                        // Not accessible (module encapsulation or security manager): not followed
+                    }
+                }
+            }
+            this.shallowSize = align(size);
+            this.referenceFields = fields;
+            this.jdkFields = jdk;
+        }
+    }
+}
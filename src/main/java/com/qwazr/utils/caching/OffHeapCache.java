@@ -0,0 +1,493 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.SerializationUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A cache storing the values outside of the Java heap.
+ * <p>
+ * The values are serialized with {@link SerializationUtils#toExternalizorBytes(Serializable)}
+ * into chunks of direct {@link ByteBuffer} slabs. Like memcached, the chunks are grouped by size classes,
+ * and a slab is assigned to a size class when it is allocated.
+ * Only the index (the key and the address of the chunk) stays on the heap.
+ * When the memory limit is reached, the least recently used chunk of the size class is evicted
+ * using the clock (second chance) algorithm.
+ * <p>
+ * The index is a concurrent map, and each size class has its own lock, so that the accesses to values of
+ * different sizes do not contend. A thread never holds two size class locks: a slab moving from a size class
+ * to another is taken under the lock of the first one, then added under the lock of the second one.
+ *
+ * @param <KEY>   the type of the keys
+ * @param <VALUE> the type of the values
+ */
+@ThreadSafe
+public class OffHeapCache<KEY, VALUE extends Serializable> {
+
+    private final Class<VALUE> valueClass;
+    private final int slabSize;
+    private final int maxSlabs;
+    private final int[] chunkSizes;
+
+    private final ConcurrentHashMap<KEY, Entry<KEY>> index;
+    private final SlabClass<KEY>[] slabClasses;
+    private final AtomicInteger slabCount;
+
+    private final LongAdder evictionCount;
+
+    protected OffHeapCache(final Builder<KEY, VALUE> builder) {
+        this.valueClass = Objects.requireNonNull(builder.valueClass, "The value class is null");
+        this.slabSize = builder.slabSize;
+        if (slabSize < builder.minChunkSize)
+            throw new IllegalArgumentException("The slab size is smaller than the minimum chunk size");
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, builder.maximumMemory / slabSize);
+        if (maxSlabs < 1)
+            throw new IllegalArgumentException("The maximum memory is smaller than one slab");
+        this.chunkSizes = computeChunkSizes(builder.minChunkSize, slabSize, builder.growthFactor);
+        this.index = new ConcurrentHashMap<>();
+        @SuppressWarnings("unchecked")
+        final SlabClass<KEY>[] newSlabClasses = (SlabClass<KEY>[]) new SlabClass<?>[chunkSizes.length];
+        this.slabClasses = newSlabClasses;
+        for (int i = 0; i < chunkSizes.length; i++)
+            slabClasses[i] = new SlabClass<>(i, chunkSizes[i], slabSize / chunkSizes[i]);
+        this.slabCount = new AtomicInteger();
+        this.evictionCount = new LongAdder();
+    }
+
+    static int[] computeChunkSizes(final int minChunkSize, final int slabSize, final float growthFactor) {
+        if (growthFactor <= 1)
+            throw new IllegalArgumentException("The growth factor must be greater than 1");
+        final List<Integer> sizes = new ArrayList<>();
+        int size = (minChunkSize + 7) & ~7;
+        while (size < slabSize) {
+            sizes.add(size);
+            size = Math.max(size + 8, ((int) Math.min(slabSize, (long) (size * growthFactor)) + 7) & ~7);
+        }
+        sizes.add(slabSize);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int findSlabClass(final int length) {
+        final int pos = Arrays.binarySearch(chunkSizes, length);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+
+    /**
+     * @return true if a new slab can be allocated without exceeding the maximum memory
+     */
+    private boolean reserveSlab() {
+        int count;
+        do {
+            count = slabCount.get();
+            if (count >= maxSlabs)
+                return false;
+        } while (!slabCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Must be called while holding the lock of the size class of the entry
+     */
+    private void evicted(final Entry<KEY> entry) {
+        index.remove(entry.key, entry);
+        evictionCount.increment();
+    }
+
+    /**
+     * Take the last slab of the size class owning the most slabs, and evict its entries.
+     * Called, without holding any size class lock, when all the slabs are allocated
+     * and a size class does not own any slab.
+     *
+     * @return the slab, or null if no size class owns a slab (they are all moving)
+     */
+    private ByteBuffer reassignSlab() {
+        SlabClass<KEY> largest = slabClasses[0];
+        for (final SlabClass<KEY> slabClass : slabClasses)
+            if (slabClass.slabNumber > largest.slabNumber)
+                largest = slabClass;
+        largest.lock();
+        try {
+            if (largest.slabs.isEmpty())
+                return null;
+            final ByteBuffer slab = largest.removeLastSlab(this::evicted);
+            slab.clear();
+            return slab;
+        } finally {
+            largest.unlock();
+        }
+    }
+
+    /**
+     * Free the chunk of an entry removed from the index
+     */
+    private void free(final Entry<KEY> entry) {
+        final SlabClass<KEY> slabClass = slabClasses[entry.slabClass];
+        slabClass.lock();
+        try {
+            slabClass.free(entry);
+        } finally {
+            slabClass.unlock();
+        }
+    }
+
+    /**
+     * Serialize and store the value.
+     *
+     * @param key   the key
+     * @param value the value to store
+     * @return false if the serialized value is larger than a slab and was not stored
+     * @throws IOException                  if the serialization failed
+     * @throws ReflectiveOperationException if the serialization failed
+     */
+    public boolean put(final KEY key, final VALUE value) throws IOException, ReflectiveOperationException {
+        Objects.requireNonNull(key, "The key is null");
+        Objects.requireNonNull(value, "The value is null");
+        final byte[] bytes = SerializationUtils.toExternalizorBytes(value);
+        final int classIndex = findSlabClass(bytes.length);
+        if (classIndex == chunkSizes.length) {
+            remove(key);
+            return false;
+        }
+        final SlabClass<KEY> slabClass = slabClasses[classIndex];
+        ByteBuffer reassignedSlab = null;
+        for (; ; ) {
+            final Entry<KEY> previous;
+            slabClass.lock();
+            try {
+                if (reassignedSlab != null) {
+                    slabClass.addSlab(reassignedSlab);
+                    reassignedSlab = null;
+                }
+                int address = slabClass.allocate();
+                if (address == -1 && reserveSlab()) {
+                    slabClass.addSlab(ByteBuffer.allocateDirect(slabSize));
+                    address = slabClass.allocate();
+                }
+                if (address == -1 && !slabClass.slabs.isEmpty()) {
+                    evicted(slabClass.evict());
+                    address = slabClass.allocate();
+                }
+                if (address == -1)
+                    previous = null;
+                else {
+                    final Entry<KEY> entry = new Entry<>(key, classIndex, address, bytes.length);
+                    slabClass.write(entry, bytes);
+                    // Indexed under the lock, so that an eviction of the entry always finds it in the index
+                    previous = index.put(key, entry);
+                    if (previous == null)
+                        return true;
+                    if (previous.slabClass == classIndex) {
+                        slabClass.free(previous);
+                        return true;
+                    }
+                }
+            } finally {
+                slabClass.unlock();
+            }
+            if (previous != null) {
+                free(previous);
+                return true;
+            }
+            // The size class does not own any slab: one is taken from another size class, out of our lock
+            reassignedSlab = reassignSlab();
+        }
+    }
+
+    /**
+     * Read and deserialize the value.
+     *
+     * @param key the key
+     * @return the value or null if the key is not in the cache
+     * @throws IOException                  if the deserialization failed
+     * @throws ReflectiveOperationException if the deserialization failed
+     */
+    public VALUE get(final KEY key) throws IOException, ReflectiveOperationException {
+        final Entry<KEY> entry = index.get(key);
+        if (entry == null)
+            return null;
+        final SlabClass<KEY> slabClass = slabClasses[entry.slabClass];
+        final byte[] bytes;
+        slabClass.lock();
+        try {
+            // The entry may have been evicted or replaced since the lookup
+            if (!slabClass.owns(entry))
+                return null;
+            entry.referenced = true;
+            bytes = slabClass.read(entry);
+        } finally {
+            slabClass.unlock();
+        }
+        return SerializationUtils.fromExternalizorBytes(bytes, valueClass);
+    }
+
+    public boolean containsKey(final KEY key) {
+        return index.containsKey(key);
+    }
+
+    public boolean remove(final KEY key) {
+        final Entry<KEY> entry = index.remove(key);
+        if (entry == null)
+            return false;
+        free(entry);
+        return true;
+    }
+
+    /**
+     * Remove all the entries and release the slabs
+     */
+    public void clear() {
+        for (final SlabClass<KEY> slabClass : slabClasses) {
+            slabClass.lock();
+            try {
+                slabClass.forEachOwner(entry -> index.remove(entry.key, entry));
+                slabCount.addAndGet(-slabClass.reset());
+            } finally {
+                slabClass.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of bytes allocated for the slabs
+     */
+    public long getAllocatedMemory() {
+        return (long) slabCount.get() * slabSize;
+    }
+
+    public long getMaxMemory() {
+        return (long) maxSlabs * slabSize;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public static <KEY, VALUE extends Serializable> Builder<KEY, VALUE> of(final Class<VALUE> valueClass) {
+        return new Builder<>(valueClass);
+    }
+
+    public static class Builder<KEY, VALUE extends Serializable> {
+
+        private final Class<VALUE> valueClass;
+        private long maximumMemory = 64L << 20;
+        private int slabSize = 1 << 20;
+        private int minChunkSize = 64;
+        private float growthFactor = 1.25f;
+
+        private Builder(final Class<VALUE> valueClass) {
+            this.valueClass = valueClass;
+        }
+
+        /**
+         * @param maximumMemory the maximum number of off-heap bytes (default 64MB)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> maximumMemory(final long maximumMemory) {
+            this.maximumMemory = maximumMemory;
+            return this;
+        }
+
+        /**
+         * @param slabSize the size of a slab, which is also the size of the largest value (default 1MB)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> slabSize(final int slabSize) {
+            this.slabSize = slabSize;
+            return this;
+        }
+
+        /**
+         * @param minChunkSize the size of the smallest chunk (default 64 bytes)
+         * @param growthFactor the ratio between the chunk sizes of two consecutive size classes (default 1.25)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> chunkSizes(final int minChunkSize, final float growthFactor) {
+            this.minChunkSize = minChunkSize;
+            this.growthFactor = growthFactor;
+            return this;
+        }
+
+        public OffHeapCache<KEY, VALUE> build() {
+            return new OffHeapCache<>(this);
+        }
+    }
+
+    private static final class Entry<KEY> {
+
+        private final KEY key;
+        private final int slabClass;
+        private final int address;
+        private final int length;
+        private boolean referenced;
+
+        private Entry(final KEY key, final int slabClass, final int address, final int length) {
+            this.key = key;
+            this.slabClass = slabClass;
+            this.address = address;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The slabs sharing the same chunk size. The address of a chunk is slab * chunksPerSlab + chunk.
+     * The methods must be called while holding the lock.
+     */
+    private static final class SlabClass<KEY> extends ReentrantLock {
+
+        private static final long serialVersionUID = 6047915823149706350L;
+
+        private final int index;
+        private final int chunkSize;
+        private final int chunksPerSlab;
+        private final List<ByteBuffer> slabs;
+        private Entry<KEY>[] owners;
+        private int[] freeChunks;
+        private int freeCount;
+        private int clockHand;
+        /**
+         * The number of slabs, readable without the lock to pick the size class giving a slab
+         */
+        private volatile int slabNumber;
+
+        private SlabClass(final int index, final int chunkSize, final int chunksPerSlab) {
+            this.index = index;
+            this.chunkSize = chunkSize;
+            this.chunksPerSlab = chunksPerSlab;
+            this.slabs = new ArrayList<>();
+            reset();
+        }
+
+        /**
+         * @return the number of the released slabs
+         */
+        private int reset() {
+            final int released = slabs.size();
+            slabs.clear();
+            @SuppressWarnings("unchecked")
+            final Entry<KEY>[] noOwners = (Entry<KEY>[]) new Entry<?>[0];
+            owners = noOwners;
+            freeChunks = new int[0];
+            freeCount = 0;
+            clockHand = 0;
+            slabNumber = 0;
+            return released;
+        }
+
+        private boolean owns(final Entry<KEY> entry) {
+            return entry.slabClass == index && entry.address < owners.length && owners[entry.address] == entry;
+        }
+
+        private void forEachOwner(final Consumer<Entry<KEY>> consumer) {
+            for (final Entry<KEY> entry : owners)
+                if (entry != null)
+                    consumer.accept(entry);
+        }
+
+        private void addSlab(final ByteBuffer slab) {
+            final int first = slabs.size() * chunksPerSlab;
+            slabs.add(slab);
+            slabNumber = slabs.size();
+            owners = Arrays.copyOf(owners, first + chunksPerSlab);
+            freeChunks = Arrays.copyOf(freeChunks, owners.length);
+            for (int address = first + chunksPerSlab - 1; address >= first; address--)
+                freeChunks[freeCount++] = address;
+        }
+
+        private ByteBuffer removeLastSlab(final Consumer<Entry<KEY>> onEvicted) {
+            final int first = (slabs.size() - 1) * chunksPerSlab;
+            for (int address = first; address < owners.length; address++)
+                if (owners[address] != null)
+                    onEvicted.accept(owners[address]);
+            owners = Arrays.copyOf(owners, first);
+            int count = 0;
+            for (int i = 0; i < freeCount; i++)
+                if (freeChunks[i] < first)
+                    freeChunks[count++] = freeChunks[i];
+            freeCount = count;
+            if (clockHand >= first)
+                clockHand = 0;
+            slabNumber = slabs.size() - 1;
+            return slabs.remove(slabs.size() - 1);
+        }
+
+        private int allocate() {
+            return freeCount == 0 ? -1 : freeChunks[--freeCount];
+        }
+
+        /**
+         * Does nothing if the chunk was already freed, e.g. by an eviction concurrent with a removal
+         */
+        private void free(final Entry<KEY> entry) {
+            if (!owns(entry))
+                return;
+            owners[entry.address] = null;
+            freeChunks[freeCount++] = entry.address;
+        }
+
+        /**
+         * Find and free the first chunk which was not referenced since the last pass of the clock hand
+         */
+        private Entry<KEY> evict() {
+            for (; ; ) {
+                final Entry<KEY> entry = owners[clockHand];
+                clockHand = (clockHand + 1) % owners.length;
+                if (entry == null)
+                    continue;
+                if (entry.referenced)
+                    entry.referenced = false;
+                else {
+                    free(entry);
+                    return entry;
+                }
+            }
+        }
+
+        private ByteBuffer slice(final int address) {
+            final ByteBuffer buffer = slabs.get(address / chunksPerSlab).duplicate();
+            buffer.position((address % chunksPerSlab) * chunkSize);
+            return buffer;
+        }
+
+        private void write(final Entry<KEY> entry, final byte[] bytes) {
+            owners[entry.address] = entry;
+            slice(entry.address).put(bytes);
+        }
+
+        private byte[] read(final Entry<KEY> entry) {
+            final byte[] bytes = new byte[entry.length];
+            slice(entry.address).get(bytes);
+            return bytes;
+        }
+    }
+}
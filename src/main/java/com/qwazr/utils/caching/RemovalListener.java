@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+/**
+ * Notified when an entry is removed from a cache.
+ *
+ * @param <KEY>   the type of the keys
+ * @param <VALUE> the type of the values
+ */
+@FunctionalInterface
+public interface RemovalListener<KEY, VALUE> {
+
+    void onRemoval(KEY key, VALUE value, Cause cause);
+
+    enum Cause {
+
+        /**
+         * The entry was removed by the user
+         */
+        EXPLICIT,
+
+        /**
+         * The value was replaced by the user
+         */
+        REPLACED,
+
+        /**
+         * The entry was evicted to respect the maximum size or weight
+         */
+        SIZE,
+
+        /**
+         * The entry was evicted because its time to live expired
+         */
+        EXPIRED;
+
+        public boolean wasEvicted() {
+            return this == SIZE || this == EXPIRED;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+/**
+ * A cache whose capacity can be reduced below its nominal capacity, and restored,
+ * e.g. by a {@link MemoryPressureController}.
+ */
+public interface ResizableCache {
+
+    /**
+     * Resize the cache. The entries exceeding the new capacity are evicted.
+     *
+     * @param capacityRatio the ratio of the nominal capacity, between 0 (exclusive) and 1
+     */
+    void resize(double capacityRatio);
+
+    /**
+     * A {@link MemoryPressureController} calls {@link #resize(double)} from the thread of the JVM notifications,
+     * it only accepts the caches which guard their own mutations.
+     *
+     * @return true if {@link #resize(double)} may run concurrently with the other operations of the cache
+     */
+    default boolean isConcurrentlyResizable() {
+        return true;
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.SerializationUtils;
+import com.qwazr.utils.concurrent.PeriodicThread;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A two-tier cache: a bounded in-memory tier in front of a persistent disk tier.
+ * <p>
+ * The entries evicted from the memory tier are demoted to the disk tier,
+ * and a hit on the disk tier promotes the entry back to the memory tier.
+ * The demotion is written while holding the lock of the memory segment of the key,
+ * so that a concurrent put or remove of the key is applied after it.
+ * The promotion, the put and the remove of a key are serialized by a striped lock,
+ * so that a removed key is never promoted back, and a promoting key is never missed by a concurrent get.
+ * The disk tier is an append-only log of memory-mapped segment files which is reloaded when the cache is opened.
+ * Closing the cache demotes the whole memory tier, so that the next instance starts warm.
+ * The segments with too many superseded records are compacted in the background,
+ * and the disk tier may be bounded: the oldest segment is then dropped.
+ * <p>
+ * The keys are serialized with the Java serialization,
+ * the values with {@link SerializationUtils#toExternalizorBytes(Serializable)}.
+ *
+ * @param <KEY>   the type of the keys
+ * @param <VALUE> the type of the values
+ */
+@ThreadSafe
+public class TieredCache<KEY extends Serializable, VALUE extends Serializable> implements Closeable {
+
+    private final static Logger LOGGER = LoggerUtils.getLogger(TieredCache.class);
+
+    private final static int LOCK_STRIPES = 64;
+
+    private final Class<VALUE> valueClass;
+    private final ConcurrentCacheMap<KEY, VALUE> memory;
+    private final MappedLogStore<KEY> disk;
+    private final double compactionRatio;
+    private final Compactor compactor;
+    private final ReentrantLock[] locks;
+
+    protected TieredCache(final Builder<KEY, VALUE> builder) throws IOException, ReflectiveOperationException {
+        this.valueClass = Objects.requireNonNull(builder.valueClass, "The value class is null");
+        final int maxSegments = builder.maximumDiskSize == 0 ? 0 :
+                (int) Math.min(Integer.MAX_VALUE, Math.max(2, builder.maximumDiskSize / builder.segmentSize));
+        this.disk = new MappedLogStore<>(Objects.requireNonNull(builder.directory, "The directory is null"),
+                builder.segmentSize, maxSegments, SerializationUtils::fromDefaultBytes);
+        final ConcurrentCacheMap.Builder<KEY, VALUE> memoryBuilder = ConcurrentCacheMap.of();
+        if (builder.weigher != null)
+            memoryBuilder.maximumWeight(builder.maximumMemoryWeight, builder.weigher);
+        else
+            memoryBuilder.maximumSize(builder.maximumMemorySize);
+        this.memory = memoryBuilder.evictionListener(this::onEviction).build();
+        this.compactionRatio = builder.compactionRatio;
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        if (builder.compactionPeriodSeconds > 0) {
+            compactor = new Compactor(builder.compactionPeriodSeconds);
+            final Thread thread = new Thread(compactor, "TieredCache compactor " + builder.directory);
+            thread.setDaemon(true);
+            thread.start();
+        } else
+            compactor = null;
+    }
+
+    private void onEviction(final KEY key, final VALUE value, final RemovalListener.Cause cause) {
+        if (cause != RemovalListener.Cause.SIZE)
+            return;
+        try {
+            demote(key, value);
+        } catch (IOException | ReflectiveOperationException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot demote the key " + key);
+        }
+    }
+
+    private void demote(final KEY key, final VALUE value) throws IOException, ReflectiveOperationException {
+        disk.put(key, SerializationUtils.toDefaultBytes(key), SerializationUtils.toExternalizorBytes(value));
+    }
+
+    /**
+     * Return the value from the memory tier, or promote it from the disk tier.
+     *
+     * @param key the key
+     * @return the value or null if neither tier contains the key
+     * @throws IOException                  if the value cannot be read from the disk tier
+     * @throws ReflectiveOperationException if the value cannot be deserialized
+     */
+    public VALUE get(final KEY key) throws IOException, ReflectiveOperationException {
+        final VALUE value = memory.get(key);
+        if (value != null)
+            return value;
+        final ReentrantLock lock = lock(key);
+        lock.lock();
+        try {
+            // The key may have been promoted while we were waiting for the lock
+            final VALUE current = memory.get(key);
+            if (current != null || !disk.containsKey(key))
+                return current;
+            final byte[] valueBytes = disk.remove(key, SerializationUtils.toDefaultBytes(key));
+            if (valueBytes == null)
+                return memory.get(key);
+            final VALUE promoted = SerializationUtils.fromExternalizorBytes(valueBytes, valueClass);
+            final VALUE previous = memory.putIfAbsent(key, promoted);
+            return previous != null ? previous : promoted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(final KEY key, final VALUE value) throws IOException {
+        final ReentrantLock lock = lock(key);
+        lock.lock();
+        try {
+            memory.put(key, value);
+            if (disk.containsKey(key))
+                disk.remove(key, SerializationUtils.toDefaultBytes(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(final KEY key) throws IOException {
+        final ReentrantLock lock = lock(key);
+        lock.lock();
+        try {
+            memory.remove(key);
+            if (disk.containsKey(key))
+                disk.remove(key, SerializationUtils.toDefaultBytes(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock lock(final KEY key) {
+        final int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    public int getMemorySize() {
+        return memory.size();
+    }
+
+    public int getDiskSize() {
+        return disk.size();
+    }
+
+    public int getDiskSegmentCount() {
+        return disk.getSegmentCount();
+    }
+
+    /**
+     * Compact the disk segments whose ratio of superseded records reaches the compaction ratio.
+     *
+     * @return the number of compacted segments
+     * @throws IOException                  if any I/O error occurs
+     * @throws ReflectiveOperationException if a key cannot be deserialized
+     */
+    public int compact() throws IOException, ReflectiveOperationException {
+        return disk.compact(compactionRatio);
+    }
+
+    /**
+     * Demote the memory tier to the disk tier, and close the disk tier.
+     *
+     * @throws IOException if any I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (compactor != null)
+            compactor.shutdown();
+        try {
+            for (final Map.Entry<KEY, VALUE> entry : memory.entrySet())
+                demote(entry.getKey(), entry.getValue());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot demote the memory tier", e);
+        } finally {
+            disk.close();
+        }
+    }
+
+    public static <KEY extends Serializable, VALUE extends Serializable> Builder<KEY, VALUE> of(
+            final Path directory, final Class<VALUE> valueClass) {
+        return new Builder<>(directory, valueClass);
+    }
+
+    public static class Builder<KEY extends Serializable, VALUE extends Serializable> {
+
+        private final Path directory;
+        private final Class<VALUE> valueClass;
+        private int maximumMemorySize = 1000;
+        private long maximumMemoryWeight;
+        private Weigher<? super KEY, ? super VALUE> weigher;
+        private int segmentSize = 64 << 20;
+        private long maximumDiskSize;
+        private double compactionRatio = 0.5;
+        private int compactionPeriodSeconds = 60;
+
+        private Builder(final Path directory, final Class<VALUE> valueClass) {
+            this.directory = directory;
+            this.valueClass = valueClass;
+        }
+
+        /**
+         * @param maximumMemorySize the maximum number of entries in the memory tier (default 1000)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> maximumMemorySize(final int maximumMemorySize) {
+            this.maximumMemorySize = maximumMemorySize;
+            return this;
+        }
+
+        /**
+         * Bound the memory tier by a total weight instead of a number of entries.
+         *
+         * @param maximumMemoryWeight the maximum total weight of the memory tier
+         * @param weigher             the weigher, e.g. {@link Weigher#deepSize()} to bound the memory in bytes
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> maximumMemoryWeight(final long maximumMemoryWeight,
+                                                       final Weigher<? super KEY, ? super VALUE> weigher) {
+            this.maximumMemoryWeight = maximumMemoryWeight;
+            this.weigher = Objects.requireNonNull(weigher, "The weigher is null");
+            return this;
+        }
+
+        /**
+         * @param segmentSize the size of a disk segment file (default 64MB)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> segmentSize(final int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Bound the disk tier. The bound is rounded to a number of segments, at least 2.
+         * When it is exceeded, the oldest segment is dropped with all its records.
+         *
+         * @param maximumDiskSize the maximum size of the segment files in bytes, 0 for no bound (default)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> maximumDiskSize(final long maximumDiskSize) {
+            if (maximumDiskSize < 0)
+                throw new IllegalArgumentException("The maximum disk size should be positive: " + maximumDiskSize);
+            this.maximumDiskSize = maximumDiskSize;
+            return this;
+        }
+
+        /**
+         * @param compactionRatio         the ratio of superseded records compacting a segment (default 0.5)
+         * @param compactionPeriodSeconds the period of the background compaction, 0 to disable it (default 60)
+         * @return this builder
+         */
+        public Builder<KEY, VALUE> compaction(final double compactionRatio, final int compactionPeriodSeconds) {
+            this.compactionRatio = compactionRatio;
+            this.compactionPeriodSeconds = compactionPeriodSeconds;
+            return this;
+        }
+
+        public TieredCache<KEY, VALUE> build() throws IOException, ReflectiveOperationException {
+            return new TieredCache<>(this);
+        }
+    }
+
+    private class Compactor extends PeriodicThread {
+
+        private Compactor(final int monitoringPeriodSeconds) {
+            super(monitoringPeriodSeconds);
+        }
+
+        @Override
+        protected void runner() {
+            try {
+                compact();
+            } catch (IOException | ReflectiveOperationException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Compaction failure");
+            }
+        }
+    }
+}
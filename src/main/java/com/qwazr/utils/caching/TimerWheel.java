@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A hierarchical timing wheel which schedules expirations in O(1).
+ * <p>
+ * The wheels have a resolution of about one second, one minute, one hour and one day.
+ * The deadline of a value is read again when its bucket expires: if the deadline was extended
+ * (e.g. the value was accessed since its scheduling) the value is rescheduled instead of expired.
+ * This lets the owner extend a deadline by updating a volatile field, without touching the wheel.
+ *
+ * @param <T> the type of the scheduled values
+ */
+@NotThreadSafe
+public class TimerWheel<T> {
+
+    private final static int[] BUCKETS = {64, 64, 32, 4, 1};
+
+    private final static long[] SPANS = {
+            1L << 30, // 1.07s
+            1L << 36, // 1.14m
+            1L << 42, // 1.22h
+            1L << 47, // 1.63d
+            1L << 49, // 6.5d
+            1L << 49};
+
+    private final static int[] SHIFTS = {
+            Long.numberOfTrailingZeros(SPANS[0]),
+            Long.numberOfTrailingZeros(SPANS[1]),
+            Long.numberOfTrailingZeros(SPANS[2]),
+            Long.numberOfTrailingZeros(SPANS[3]),
+            Long.numberOfTrailingZeros(SPANS[4])};
+
+    private final ToLongFunction<T> deadlineFunction;
+    private final long origin;
+    private final Timer<T>[][] wheels;
+    private long nanos;
+    private int size;
+
+    /**
+     * @param deadlineFunction returns the deadline of a value, in nanoseconds
+     * @param currentTimeNanos the current time, in nanoseconds
+     */
+    public TimerWheel(final ToLongFunction<T> deadlineFunction, final long currentTimeNanos) {
+        this.deadlineFunction = Objects.requireNonNull(deadlineFunction, "The deadline function is null");
+        this.origin = currentTimeNanos;
+        this.nanos = 0;
+        this.size = 0;
+        @SuppressWarnings("unchecked") final Timer<T>[][] tmp = (Timer<T>[][]) new Timer<?>[BUCKETS.length][];
+        wheels = tmp;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            @SuppressWarnings("unchecked") final Timer<T>[] wheel = (Timer<T>[]) new Timer<?>[BUCKETS[i]];
+            wheels[i] = wheel;
+            for (int j = 0; j < BUCKETS[i]; j++)
+                wheels[i][j] = new Timer<>(null);
+        }
+    }
+
+    /**
+     * @return the number of scheduled values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule the value at the deadline returned by the deadline function.
+     *
+     * @param value the value to schedule
+     * @return the timer, which can be passed to {@link #deschedule(Timer)}
+     */
+    public Timer<T> schedule(final T value) {
+        final Timer<T> timer = new Timer<>(value);
+        link(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Remove the timer from the wheel. Does nothing if the timer is already expired or descheduled.
+     *
+     * @param timer the timer to remove
+     */
+    public void deschedule(final Timer<T> timer) {
+        if (timer == null || timer.next == null)
+            return;
+        unlink(timer);
+        size--;
+    }
+
+    /**
+     * Move the clock forward and expire the values whose deadline is reached.
+     *
+     * @param currentTimeNanos the current time, in nanoseconds
+     * @param onExpired        called for each expired value
+     * @return the number of expired values
+     */
+    public int advance(final long currentTimeNanos, final Consumer<T> onExpired) {
+        final long previousNanos = nanos;
+        final long currentNanos = currentTimeNanos - origin;
+        if (currentNanos <= previousNanos)
+            return 0;
+        nanos = currentNanos;
+        int expired = 0;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            final long previousTicks = previousNanos >>> SHIFTS[i];
+            final long delta = (currentNanos >>> SHIFTS[i]) - previousTicks;
+            if (delta <= 0)
+                break;
+            expired += expire(i, previousTicks, delta, onExpired);
+        }
+        return expired;
+    }
+
+    private int expire(final int level, final long previousTicks, final long delta, final Consumer<T> onExpired) {
+        final Timer<T>[] wheel = wheels[level];
+        final int mask = wheel.length - 1;
+        final int steps = (int) Math.min(1 + delta, wheel.length);
+        final int start = (int) (previousTicks & mask);
+        int expired = 0;
+        for (int i = start; i < start + steps; i++) {
+            final Timer<T> sentinel = wheel[i & mask];
+            Timer<T> timer = sentinel.next;
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (timer != sentinel) {
+                final Timer<T> next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                if (deadlineFunction.applyAsLong(timer.value) - origin > nanos)
+                    link(timer);
+                else {
+                    size--;
+                    expired++;
+                    onExpired.accept(timer.value);
+                }
+                timer = next;
+            }
+        }
+        return expired;
+    }
+
+    private void link(final Timer<T> timer) {
+        final Timer<T> sentinel = findBucket(Math.max(deadlineFunction.applyAsLong(timer.value) - origin, nanos));
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private void unlink(final Timer<T> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private Timer<T> findBucket(final long time) {
+        final long duration = time - nanos;
+        final int last = wheels.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < SPANS[i + 1]) {
+                final long ticks = time >>> SHIFTS[i];
+                return wheels[i][(int) (ticks & (wheels[i].length - 1))];
+            }
+        }
+        return wheels[last][0];
+    }
+
+    public static final class Timer<T> {
+
+        private final T value;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        private Timer(final T value) {
+            this.value = value;
+            this.prev = this;
+            this.next = this;
+        }
+
+        public T getValue() {
+            return value;
+        }
+    }
+}
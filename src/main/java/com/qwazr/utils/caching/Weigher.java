@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.SerializationUtils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+
+/**
+ * Compute the weight of a cache entry, used to bound a cache by a total weight instead of a number of entries.
+ *
+ * @param <KEY>   the type of the keys
+ * @param <VALUE> the type of the values
+ */
+@FunctionalInterface
+public interface Weigher<KEY, VALUE> {
+
+    /**
+     * @param key   the key of the entry
+     * @param value the value of the entry
+     * @return the weight of the entry, which must be positive or zero
+     */
+    int weigh(KEY key, VALUE value);
+
+    /**
+     * @param <KEY>   the type of the keys
+     * @param <VALUE> the type of the values
+     * @return a weigher returning the estimated shallow size of the key and the value, in bytes
+     * @see ObjectSizeEstimator#shallowSizeOf(Object)
+     */
+    static <KEY, VALUE> Weigher<KEY, VALUE> shallowSize() {
+        return (key, value) -> ObjectSizeEstimator.toWeight(
+                ObjectSizeEstimator.shallowSizeOf(key) + ObjectSizeEstimator.shallowSizeOf(value));
+    }
+
+    /**
+     * @param <KEY>   the type of the keys
+     * @param <VALUE> the type of the values
+     * @return a weigher returning the estimated size of the object graphs of the key and the value, in bytes
+     * @see ObjectSizeEstimator#deepSizeOf(Object)
+     */
+    static <KEY, VALUE> Weigher<KEY, VALUE> deepSize() {
+        return (key, value) -> ObjectSizeEstimator.toWeight(ObjectSizeEstimator.deepSizeOf(key) + ObjectSizeEstimator.deepSizeOf(value));
+    }
+
+    /**
+     * The value is serialized on each weighing: this weigher is more accurate for the off-heap footprint,
+     * but more expensive than {@link #deepSize()}.
+     *
+     * @param <KEY>   the type of the keys
+     * @param <VALUE> the type of the values
+     * @return a weigher returning the length of the value serialized
+     * with {@link SerializationUtils#toDefaultBytes(Serializable)}
+     */
+    static <KEY, VALUE extends Serializable> Weigher<KEY, VALUE> serializedSize() {
+        return (key, value) -> {
+            try {
+                return SerializationUtils.toDefaultBytes(value).length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+}
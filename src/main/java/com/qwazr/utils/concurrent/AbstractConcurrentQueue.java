@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * The producer side shared by {@link ConcurrentQueue} and {@link ConcurrentBatchQueue}:
+ * the items are put in a blocking queue, and one break item per consumer stops the consumers on close.
+ *
+ * @param <T> the type of the items
+ */
+abstract class AbstractConcurrentQueue<T> implements Consumer<T>, Closeable {
+
+	final BlockingQueue<T> queue;
+	final T breakItem;
+	private final List<Future<?>> futures;
+
+	AbstractConcurrentQueue(final BlockingQueue<T> queue, final T breakItem) {
+		this.queue = queue;
+		this.breakItem = breakItem;
+		this.futures = new ArrayList<>();
+	}
+
+	/**
+	 * Called by the constructor of the subclass, once its own fields are set.
+	 *
+	 * @param executor     the executor running the consumers
+	 * @param threadNumber the number of consumers
+	 */
+	final void startConsumers(final ExecutorService executor, final int threadNumber) {
+		for (int i = 0; i < threadNumber; i++)
+			futures.add(executor.submit(newConsumerTask()));
+	}
+
+	/**
+	 * @return a task taking the items from the queue until it takes the break item
+	 */
+	abstract Runnable newConsumerTask();
+
+	@Override
+	public void close() {
+		try {
+			for (int i = 0; i < futures.size(); i++)
+				queue.put(breakItem);
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+		futures.clear();
+	}
+
+	@Override
+	final public void accept(final T entry) {
+		try {
+			queue.put(entry);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
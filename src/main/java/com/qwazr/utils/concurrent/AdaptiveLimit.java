@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A concurrency limit following the capacity of the downstream system.
+ * <p>
+ * The latency and the failure of each task are sampled, and the number of permits of the pool is adjusted live,
+ * between the minimum and the maximum limits. The latency is compared to the minimum latency of the previous
+ * window of samples, which stands for the latency without contention.
+ * <ul>
+ * <li>AIMD: a failure or a latency above the tolerance multiplies the limit by the backoff ratio.
+ * Otherwise, the limit grows by one while at least half of the permits are used.</li>
+ * <li>Gradient: the limit is scaled by the ratio of the tolerated latency to the sampled latency,
+ * plus a small queue allowance (the square root of the limit), and smoothed.</li>
+ * </ul>
+ * The pool reports the outcome of each task it runs, as its own error handling may hide the failures.
+ * A limit is attached to a single pool, see {@link BlockingExecutorService#BlockingExecutorService(AdaptiveLimit)}
+ * and {@link TaskPool#of(AdaptiveLimit)}.
+ */
+@ThreadSafe
+public final class AdaptiveLimit {
+
+    private final int minimum;
+    private final int maximum;
+    private final boolean gradient;
+    private final double backoffRatio;
+    private final double tolerance;
+    private final double smoothing;
+    private final int windowSize;
+    private final ResizableSemaphore semaphore;
+    private final AtomicBoolean attached;
+
+    private double limit;
+    private int permits;
+    private long minLatency;
+    private long windowMinLatency;
+    private int windowSamples;
+
+    private AdaptiveLimit(final Builder builder) {
+        if (builder.minimum < 1 || builder.maximum < builder.minimum)
+            throw new IllegalArgumentException("Wrong limits: " + builder.minimum + " - " + builder.maximum);
+        this.minimum = builder.minimum;
+        this.maximum = builder.maximum;
+        this.gradient = builder.gradient;
+        this.backoffRatio = builder.backoffRatio;
+        this.tolerance = builder.tolerance;
+        this.smoothing = builder.smoothing;
+        this.windowSize = builder.windowSize;
+        this.permits = Math.max(minimum, Math.min(maximum, builder.initial));
+        this.limit = permits;
+        this.minLatency = Long.MAX_VALUE;
+        this.windowMinLatency = Long.MAX_VALUE;
+        this.windowSamples = 0;
+        this.semaphore = new ResizableSemaphore(permits, builder.fair);
+        this.attached = new AtomicBoolean();
+    }
+
+    /**
+     * @return the current number of permits
+     */
+    public synchronized int getLimit() {
+        return permits;
+    }
+
+    public int getMinimum() {
+        return minimum;
+    }
+
+    public int getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @param unit the unit of the returned value
+     * @return the reference latency without contention, or -1 before the first window of samples
+     */
+    public synchronized long getMinLatency(final TimeUnit unit) {
+        final long latency = minLatency != Long.MAX_VALUE ? minLatency : windowMinLatency;
+        return latency == Long.MAX_VALUE ? -1 : unit.convert(latency, TimeUnit.NANOSECONDS);
+    }
+
+    Semaphore attach() {
+        if (!attached.compareAndSet(false, true))
+            throw new IllegalStateException("The adaptive limit is already attached to a pool");
+        return semaphore;
+    }
+
+    /**
+     * Record the latency of a task and adjust the limit.
+     *
+     * @param latencyNanos the duration of the task
+     * @param failed       true if the task failed
+     */
+    synchronized void sample(final long latencyNanos, final boolean failed) {
+        windowMinLatency = Math.min(windowMinLatency, latencyNanos);
+        if (++windowSamples >= windowSize) {
+            // The reference follows the downstream system when its latency without contention changes
+            minLatency = windowMinLatency;
+            windowMinLatency = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+        final long reference = minLatency != Long.MAX_VALUE ? minLatency : windowMinLatency;
+        final double toleratedLatency = Math.max(1, reference) * tolerance;
+        if (gradient) {
+            final double ratio = failed ? 0.5 : Math.max(0.5, Math.min(1, toleratedLatency / latencyNanos));
+            final double newLimit = limit * ratio + Math.sqrt(limit);
+            limit = limit * (1 - smoothing) + newLimit * smoothing;
+        } else {
+            if (failed || latencyNanos > toleratedLatency)
+                limit = limit * backoffRatio;
+            else if ((permits - semaphore.availablePermits()) * 2 >= permits)
+                limit = limit + 1;
+        }
+        limit = Math.max(minimum, Math.min(maximum, limit));
+        final int newPermits = (int) limit;
+        if (newPermits > permits)
+            semaphore.release(newPermits - permits);
+        else if (newPermits < permits)
+            semaphore.reducePermits(permits - newPermits);
+        permits = newPermits;
+    }
+
+    @Override
+    public String toString() {
+        return "limit: " + getLimit() + " [" + minimum + " - " + maximum + "]";
+    }
+
+    public static Builder of() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int minimum = 1;
+        private int initial = TaskPool.DEFAULT_MAX_CONCURRENT_TASKS;
+        private int maximum = TaskPool.DEFAULT_MAX_CONCURRENT_TASKS * 8;
+        private boolean gradient = false;
+        private double backoffRatio = 0.9;
+        private double tolerance = 2;
+        private double smoothing = 0.2;
+        private int windowSize = 1000;
+        private boolean fair = false;
+
+        /**
+         * @param minimum the minimum limit (default 1)
+         * @param initial the initial limit (default: the number of processors + 1)
+         * @param maximum the maximum limit (default: 8 times the initial default)
+         * @return this builder
+         */
+        public Builder limits(final int minimum, final int initial, final int maximum) {
+            this.minimum = minimum;
+            this.initial = initial;
+            this.maximum = maximum;
+            return this;
+        }
+
+        /**
+         * Use the additive increase, multiplicative decrease algorithm (the default).
+         *
+         * @param backoffRatio the ratio applied to the limit on a failure or a slow task (default 0.9)
+         * @param tolerance    the tolerated ratio of the latency to the minimum latency (default 2)
+         * @return this builder
+         */
+        public Builder aimd(final double backoffRatio, final double tolerance) {
+            this.gradient = false;
+            this.backoffRatio = backoffRatio;
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Use the gradient algorithm.
+         *
+         * @param tolerance the tolerated ratio of the latency to the minimum latency (default 2)
+         * @param smoothing the weight of a new sample in the limit (default 0.2)
+         * @return this builder
+         */
+        public Builder gradient(final double tolerance, final double smoothing) {
+            this.gradient = true;
+            this.tolerance = tolerance;
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * @param windowSize the number of samples after which the minimum latency is renewed (default 1000)
+         * @return this builder
+         */
+        public Builder windowSize(final int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * @param fair true to grant the permits in the order of the requests (default false)
+         * @return this builder
+         */
+        public Builder fair(final boolean fair) {
+            this.fair = fair;
+            return this;
+        }
+
+        public AdaptiveLimit build() {
+            return new AdaptiveLimit(this);
+        }
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 3718026498536042117L;
+
+        private ResizableSemaphore(final int permits, final boolean fair) {
+            super(permits, fair);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -15,19 +15,31 @@
  */
 package com.qwazr.utils.concurrent;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.Nonnull;
 import javax.validation.constraints.NotNull;
-import org.apache.commons.lang3.NotImplementedException;
 
 public class BlockingExecutorService implements ExecutorService {
 
@@ -38,26 +50,79 @@ public class BlockingExecutorService implements ExecutorService {
         }
     }
 
+    /**
+     * The submission could not get a permit in time
+     */
+    public static class PermitTimeoutException extends RejectedExecutionException {
+
+        private static final long serialVersionUID = -5128402371638437261L;
+
+        private PermitTimeoutException(final long timeout, final TimeUnit unit) {
+            super("No permit available within " + timeout + " " + unit);
+        }
+    }
+
     private final Semaphore semaphore;
+    private final AdaptiveLimit adaptiveLimit;
     private final ExecutorService executorService;
+    private final LongAdder shedTasks;
+    private final Queue<AsyncTask<?>> asyncTasks;
 
-    protected BlockingExecutorService(@Nonnull final ExecutorService executorService, final int poolSize) {
+    private BlockingExecutorService(final ExecutorService executorService, final Semaphore semaphore,
+                                    final AdaptiveLimit adaptiveLimit) {
         this.executorService = Objects.requireNonNull(executorService, "The executorService is null");
-        this.semaphore = new Semaphore(poolSize);
+        this.semaphore = semaphore;
+        this.adaptiveLimit = adaptiveLimit;
+        this.shedTasks = new LongAdder();
+        this.asyncTasks = new ConcurrentLinkedQueue<>();
+    }
+
+    protected BlockingExecutorService(@Nonnull final ExecutorService executorService, final int poolSize) {
+        this(executorService, new Semaphore(poolSize), null);
+    }
+
+    /**
+     * The number of permits follows the adaptive limit, which samples the latency and the outcome of every task.
+     *
+     * @param executorService the executor running the tasks
+     * @param adaptiveLimit   the limit, which must not be shared with another pool
+     */
+    protected BlockingExecutorService(@Nonnull final ExecutorService executorService,
+                                      @Nonnull final AdaptiveLimit adaptiveLimit) {
+        this(executorService, adaptiveLimit.attach(), adaptiveLimit);
+    }
+
+    public BlockingExecutorService(@Nonnull final AdaptiveLimit adaptiveLimit) {
+        this(Executors.newFixedThreadPool(adaptiveLimit.getMaximum()), adaptiveLimit);
     }
 
     public BlockingExecutorService(final int poolSize) {
         this(Executors.newFixedThreadPool(poolSize), poolSize);
     }
 
+    /**
+     * The running tasks complete, but the asynchronous tasks still waiting for a permit are failed.
+     */
     @Override
     public void shutdown() {
         executorService.shutdown();
+        rejectAsyncTasks();
     }
 
     @Override
     public List<Runnable> shutdownNow() {
-        return executorService.shutdownNow();
+        final List<Runnable> tasks = executorService.shutdownNow();
+        rejectAsyncTasks();
+        return tasks;
+    }
+
+    /**
+     * Fail the asynchronous tasks waiting for a permit, the executor will not run them.
+     */
+    private void rejectAsyncTasks() {
+        AsyncTask<?> asyncTask;
+        while ((asyncTask = asyncTasks.poll()) != null)
+            asyncTask.future.completeExceptionally(new RejectedExecutionException("The executor is shutdown"));
     }
 
     @Override
@@ -79,21 +144,251 @@ public class BlockingExecutorService implements ExecutorService {
         return semaphore.availablePermits();
     }
 
-    @Override
-    public <T> Future<T> submit(Callable<T> task) {
+    /**
+     * Give back a permit, and start the waiting asynchronous tasks while permits are available.
+     * The emptiness is checked again after a permit is given back,
+     * so that a task queued while this thread was holding the permit is not left behind.
+     */
+    private void release() {
+        semaphore.release();
+        while (!asyncTasks.isEmpty()) {
+            if (!semaphore.tryAcquire())
+                return;
+            final AsyncTask<?> asyncTask = asyncTasks.poll();
+            if (asyncTask == null) {
+                semaphore.release();
+                continue;
+            }
+            try {
+                executorService.execute(asyncTask);
+            } catch (RejectedExecutionException e) {
+                semaphore.release();
+                asyncTask.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Sample the latency and the outcome of a task in the adaptive limit, if any.
+     *
+     * @param startNanos the nano time when the task started
+     * @param failed     true if the task threw an exception
+     */
+    private void sample(final long startNanos, final boolean failed) {
+        if (adaptiveLimit != null)
+            adaptiveLimit.sample(System.nanoTime() - startNanos, failed);
+    }
+
+    /**
+     * Give back the permit of a task, after sampling it.
+     */
+    private void release(final long startNanos, final boolean failed) {
+        sample(startNanos, failed);
+        release();
+    }
+
+    /**
+     * @return the task which gives back its permit when it ends
+     */
+    private <T> Callable<T> releasing(final Callable<T> task) {
+        return () -> {
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final T result = task.call();
+                failed = false;
+                return result;
+            } finally {
+                release(start, failed);
+            }
+        };
+    }
+
+    private <T> Future<T> submitWithPermit(final Callable<T> task) {
+        try {
+            return executorService.submit(releasing(task));
+        } catch (RejectedExecutionException | NullPointerException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Submit the task only if a permit is available right now.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the future of the result, or an empty optional if no permit is available
+     */
+    public <T> Optional<Future<T>> trySubmit(@NotNull final Callable<T> task) {
+        Objects.requireNonNull(task);
+        return semaphore.tryAcquire() ? Optional.of(submitWithPermit(task)) : Optional.empty();
+    }
+
+    public Optional<Future<?>> trySubmit(@NotNull final Runnable task) {
+        Objects.requireNonNull(task);
+        return semaphore.tryAcquire() ? Optional.of(submitWithPermit(Executors.callable(task))) : Optional.empty();
+    }
+
+    /**
+     * Execute the command only if a permit is available right now.
+     *
+     * @param command the command
+     * @return true if the command was submitted, false if no permit is available
+     */
+    public boolean tryExecute(@NotNull final Runnable command) {
+        Objects.requireNonNull(command);
+        if (!semaphore.tryAcquire())
+            return false;
+        submitWithPermit(Executors.callable(command));
+        return true;
+    }
+
+    /**
+     * Submit the task, waiting at most the given time for a permit.
+     *
+     * @param task    the task
+     * @param timeout the maximum time to wait for a permit
+     * @param unit    the unit of the timeout
+     * @param <T>     the type of the result
+     * @return the future of the result
+     * @throws PermitTimeoutException if no permit was available in time
+     */
+    public <T> Future<T> submit(@NotNull final Callable<T> task, final long timeout, @NotNull final TimeUnit unit) {
         Objects.requireNonNull(task);
         try {
-            semaphore.acquire();
+            if (!semaphore.tryAcquire(timeout, unit))
+                throw new PermitTimeoutException(timeout, unit);
+        } catch (InterruptedException e) {
+            throw new BlockingInterruptionException(e);
+        }
+        return submitWithPermit(task);
+    }
+
+    public Future<?> submit(@NotNull final Runnable task, final long timeout, @NotNull final TimeUnit unit) {
+        Objects.requireNonNull(task);
+        return submit(Executors.callable(task), timeout, unit);
+    }
+
+    /**
+     * Submit the task without blocking the caller: the task is queued until a permit is released.
+     * Cancelling the returned future before the task starts prevents it from running.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the future of the result
+     */
+    public <T> CompletableFuture<T> submitAsync(@NotNull final Callable<T> task) {
+        Objects.requireNonNull(task);
+        final AsyncTask<T> asyncTask = new AsyncTask<>(task);
+        asyncTasks.add(asyncTask);
+        // Checked after queuing, so that a task queued concurrently with the shutdown is not left behind
+        if (executorService.isShutdown())
+            rejectAsyncTasks();
+        else if (semaphore.tryAcquire())
+            release();
+        return asyncTask.future;
+    }
+
+    public CompletableFuture<?> submitAsync(@NotNull final Runnable task) {
+        Objects.requireNonNull(task);
+        return submitAsync(Executors.callable(task));
+    }
+
+    private final class AsyncTask<T> implements Runnable {
+
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future;
+
+        private AsyncTask(final Callable<T> callable) {
+            this.callable = callable;
+            this.future = new CompletableFuture<>();
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            boolean failed = false;
             try {
-                return executorService.submit(() -> {
+                if (!future.isDone())
+                    future.complete(callable.call());
+            } catch (Throwable t) {
+                failed = true;
+                future.completeExceptionally(t);
+            } finally {
+                release(start, failed);
+            }
+        }
+    }
+
+    /**
+     * @return the number of the tasks dropped because their deadline was reached before they could run
+     */
+    public long getShedTasks() {
+        return shedTasks.sum();
+    }
+
+    /**
+     * Submit a task which is shed if the deadline is reached while it is waiting for a permit or a thread:
+     * the returned future then fails with a {@link Deadline.ExceededException}.
+     * The running task can read its remaining budget from {@link Deadline#current()}.
+     *
+     * @param deadline the deadline of the task
+     * @param task     the task
+     * @param <T>      the type of the result
+     * @return the future of the result
+     */
+    public <T> Future<T> submit(@NotNull final Deadline deadline, @NotNull final Callable<T> task) {
+        Objects.requireNonNull(deadline);
+        Objects.requireNonNull(task);
+        try {
+            if (!semaphore.tryAcquire(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)) {
+                shedTasks.increment();
+                final CompletableFuture<T> future = new CompletableFuture<>();
+                future.completeExceptionally(deadline.exceeded());
+                return future;
+            }
+            try {
+                final Callable<T> running = releasing(() -> {
+                    final Deadline previous = deadline.enter();
                     try {
                         return task.call();
                     } finally {
-                        semaphore.release();
+                        Deadline.restore(previous);
                     }
                 });
+                return executorService.submit(() -> {
+                    if (!deadline.isExpired())
+                        return running.call();
+                    // A shed task is not sampled, it did not reach the downstream system
+                    shedTasks.increment();
+                    release();
+                    throw deadline.exceeded();
+                });
             } catch (RejectedExecutionException | NullPointerException e) {
-                semaphore.release();
+                release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            throw new BlockingInterruptionException(e);
+        }
+    }
+
+    @NotNull
+    public Future<?> submit(@NotNull final Deadline deadline, @NotNull final Runnable task) {
+        Objects.requireNonNull(task);
+        return submit(deadline, Executors.callable(task));
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        Objects.requireNonNull(task);
+        try {
+            semaphore.acquire();
+            try {
+                return executorService.submit(releasing(task));
+            } catch (RejectedExecutionException | NullPointerException e) {
+                release();
                 throw e;
             }
         } catch (InterruptedException e) {
@@ -107,15 +402,9 @@ public class BlockingExecutorService implements ExecutorService {
         try {
             semaphore.acquire();
             try {
-                return executorService.submit(() -> {
-                    try {
-                        task.run();
-                    } finally {
-                        semaphore.release();
-                    }
-                }, result);
+                return executorService.submit(releasing(Executors.callable(task, result)));
             } catch (RejectedExecutionException | NullPointerException e) {
-                semaphore.release();
+                release();
                 throw e;
             }
         } catch (InterruptedException e) {
@@ -130,15 +419,9 @@ public class BlockingExecutorService implements ExecutorService {
         try {
             semaphore.acquire();
             try {
-                return executorService.submit(() -> {
-                    try {
-                        task.run();
-                    } finally {
-                        semaphore.release();
-                    }
-                });
+                return executorService.submit(releasing(Executors.callable(task)));
             } catch (RejectedExecutionException | NullPointerException e) {
-                semaphore.release();
+                release();
                 throw e;
             }
         } catch (InterruptedException e) {
@@ -146,27 +429,220 @@ public class BlockingExecutorService implements ExecutorService {
         }
     }
 
+    /**
+     * Run the tasks, starting them as the permits become available: a completing task starts the next one,
+     * so the caller does not block on the semaphore for each task.
+     */
     @NotNull
     @Override
-    public <T> List<Future<T>> invokeAll(@NotNull Collection<? extends Callable<T>> tasks) {
-        throw new NotImplementedException();
+    public <T> List<Future<T>> invokeAll(@NotNull Collection<? extends Callable<T>> tasks)
+            throws InterruptedException {
+        return invokeAll(tasks, 0);
     }
 
     @NotNull
     @Override
-    public <T> List<Future<T>> invokeAll(@NotNull Collection<? extends Callable<T>> tasks, long timeout, @NotNull TimeUnit unit) {
-        throw new NotImplementedException();
+    public <T> List<Future<T>> invokeAll(@NotNull Collection<? extends Callable<T>> tasks, long timeout,
+                                         @NotNull TimeUnit unit) throws InterruptedException {
+        return invokeAll(tasks, System.nanoTime() + Math.max(1, unit.toNanos(timeout)));
+    }
+
+    private <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long deadlineNanos)
+            throws InterruptedException {
+        final Batch<T> batch = new Batch<>(tasks, false);
+        try {
+            while (batch.received < batch.tasks.size())
+                batch.next(deadlineNanos);
+        } catch (TimeoutException e) {
+            batch.cancelAll();
+        } catch (InterruptedException | RuntimeException e) {
+            batch.cancelAll();
+            throw e;
+        }
+        return new ArrayList<>(batch.tasks);
     }
 
+    /**
+     * Run the tasks as the permits become available, and return the first successful result.
+     * The first task which succeeds cancels the other ones, running or not yet started.
+     */
     @NotNull
     @Override
-    public <T> T invokeAny(@NotNull Collection<? extends Callable<T>> tasks) {
-        throw new NotImplementedException();
+    public <T> T invokeAny(@NotNull Collection<? extends Callable<T>> tasks)
+            throws InterruptedException, ExecutionException {
+        try {
+            return invokeAny(tasks, 0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
-    public <T> T invokeAny(@NotNull Collection<? extends Callable<T>> tasks, long timeout, @NotNull TimeUnit unit) {
-        throw new NotImplementedException();
+    public <T> T invokeAny(@NotNull Collection<? extends Callable<T>> tasks, long timeout, @NotNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return invokeAny(tasks, System.nanoTime() + Math.max(1, unit.toNanos(timeout)));
+    }
+
+    private <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long deadlineNanos)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (tasks.isEmpty())
+            throw new IllegalArgumentException("No task");
+        final Batch<T> batch = new Batch<>(tasks, true);
+        try {
+            ExecutionException lastException = null;
+            while (batch.received < batch.tasks.size()) {
+                final Batch<T>.Task task = batch.next(deadlineNanos);
+                if (task.isCancelled())
+                    continue;
+                try {
+                    return task.get();
+                } catch (ExecutionException e) {
+                    lastException = e;
+                }
+            }
+            throw lastException != null ? lastException :
+                    new ExecutionException(new CancellationException("All the tasks were cancelled"));
+        } finally {
+            batch.cancelAll();
+        }
+    }
+
+    /**
+     * The tasks of an invokeAll or invokeAny call. The pending tasks are started by the completing tasks
+     * as long as a permit can be acquired without waiting. The caller waits for a permit only when
+     * none of the tasks is running, because no completion could start the pending tasks then.
+     */
+    private final class Batch<T> {
+
+        private final List<Task> tasks;
+        private final Queue<Task> pending;
+        private final BlockingQueue<Task> completed;
+        private final AtomicInteger running;
+        private final boolean cancelOnSuccess;
+        private volatile boolean cancelled;
+        private int received;
+
+        private Batch(final Collection<? extends Callable<T>> callables, final boolean cancelOnSuccess) {
+            this.tasks = new ArrayList<>(callables.size());
+            for (final Callable<T> callable : callables)
+                tasks.add(new Task(Objects.requireNonNull(callable)));
+            this.pending = new ConcurrentLinkedQueue<>(tasks);
+            this.completed = new LinkedBlockingQueue<>();
+            this.running = new AtomicInteger();
+            this.cancelOnSuccess = cancelOnSuccess;
+            dispatch();
+        }
+
+        private void dispatch() {
+            while (!cancelled && !pending.isEmpty()) {
+                if (!semaphore.tryAcquire())
+                    return;
+                if (!start())
+                    release();
+            }
+        }
+
+        /**
+         * Start the next pending task with a permit already acquired.
+         *
+         * @return false if there was no pending task
+         */
+        private boolean start() {
+            final Task task = pending.poll();
+            if (task == null)
+                return false;
+            running.incrementAndGet();
+            try {
+                executorService.execute(() -> {
+                    final long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        sample(start, task.failed);
+                        finish(task);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                task.fail(e);
+                finish(task);
+            }
+            return true;
+        }
+
+        private void finish(final Task task) {
+            running.decrementAndGet();
+            release();
+            dispatch();
+            // Signaled last, so that the caller sees an up to date running count
+            completed.add(task);
+        }
+
+        /**
+         * Wait for the next completed task.
+         *
+         * @param deadlineNanos the deadline as a nano time, 0 to wait forever
+         * @return the completed task
+         * @throws InterruptedException if the caller is interrupted
+         * @throws TimeoutException     if the deadline is reached
+         */
+        private Task next(final long deadlineNanos) throws InterruptedException, TimeoutException {
+            for (; ; ) {
+                Task task = completed.poll();
+                if (task == null) {
+                    if (running.get() == 0 && !pending.isEmpty()) {
+                        if (deadlineNanos == 0)
+                            semaphore.acquire();
+                        else if (!semaphore.tryAcquire(remaining(deadlineNanos), TimeUnit.NANOSECONDS))
+                            throw new TimeoutException();
+                        if (!start())
+                            release();
+                        continue;
+                    }
+                    task = deadlineNanos == 0 ? completed.take() :
+                            completed.poll(remaining(deadlineNanos), TimeUnit.NANOSECONDS);
+                    if (task == null)
+                        throw new TimeoutException();
+                }
+                received++;
+                return task;
+            }
+        }
+
+        private long remaining(final long deadlineNanos) {
+            return deadlineNanos - System.nanoTime();
+        }
+
+        private void cancelAll() {
+            cancelled = true;
+            for (final Task task : tasks)
+                task.cancel(true);
+        }
+
+        private final class Task extends FutureTask<T> {
+
+            private volatile boolean failed;
+
+            private Task(final Callable<T> callable) {
+                super(callable);
+            }
+
+            @Override
+            protected void setException(final Throwable throwable) {
+                failed = true;
+                super.setException(throwable);
+            }
+
+            @Override
+            protected void set(final T value) {
+                super.set(value);
+                if (cancelOnSuccess)
+                    cancelAll();
+            }
+
+            private void fail(final Throwable throwable) {
+                setException(throwable);
+            }
+        }
     }
 
     @Override
@@ -176,14 +652,17 @@ public class BlockingExecutorService implements ExecutorService {
             semaphore.acquire();
             try {
                 executorService.execute(() -> {
+                    final long start = System.nanoTime();
+                    boolean failed = true;
                     try {
                         command.run();
+                        failed = false;
                     } finally {
-                        semaphore.release();
+                        release(start, failed);
                     }
                 });
             } catch (RejectedExecutionException | NullPointerException e) {
-                semaphore.release();
+                release();
                 throw e;
             }
         } catch (InterruptedException e) {
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Iterate over the results of the tasks in their completion order.
+ * <p>
+ * The tasks are submitted lazily by the consuming thread: no more than bufferSize tasks are running or
+ * waiting to be consumed. The consumer drives the producer, so the memory does not grow with the number of tasks.
+ * A failed task throws its {@link java.util.concurrent.CompletionException} when its result is consumed.
+ *
+ * @param <RESULT> the type of the results
+ */
+@NotThreadSafe
+final class CompletionOrderIterator<RESULT> implements Iterator<RESULT> {
+
+    private final TaskPool pool;
+    private final Iterator<? extends Supplier<RESULT>> tasks;
+    private final int bufferSize;
+    private final BlockingQueue<CompletableFuture<RESULT>> completed;
+    private int outstanding;
+
+    CompletionOrderIterator(final TaskPool pool, final Iterator<? extends Supplier<RESULT>> tasks,
+                            final int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("The buffer size must be positive: " + bufferSize);
+        this.pool = pool;
+        this.tasks = tasks;
+        this.bufferSize = bufferSize;
+        this.completed = new LinkedBlockingQueue<>();
+        this.outstanding = 0;
+    }
+
+    private void fill() {
+        while (outstanding < bufferSize && tasks.hasNext()) {
+            final CompletableFuture<RESULT> future = pool.submit(tasks.next());
+            outstanding++;
+            future.whenComplete((result, error) -> completed.add(future));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return outstanding > 0;
+    }
+
+    @Override
+    public RESULT next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        final CompletableFuture<RESULT> future;
+        try {
+            future = completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        outstanding--;
+        return future.join();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Like {@link ConcurrentQueue}, but the consumers receive the items by batches.
+ * <p>
+ * A consumer waits for a first item, then drains the queue until the batch is full or until the linger time
+ * is elapsed. The batch is delivered as soon as it is full: the linger time only delays the partial batches.
+ * The break item stops a consumer once the items queued before it are delivered.
+ *
+ * @param <T> the type of the items
+ */
+abstract public class ConcurrentBatchQueue<T> extends AbstractConcurrentQueue<T> {
+
+	private final int maxBatchSize;
+	private final long maxLingerNanos;
+
+	/**
+	 * @param executor     the executor running the consumers
+	 * @param threadNumber the number of consumers
+	 * @param queue        the queue strategy, e.g. an {@link ArrayBlockingQueue} or a {@link RingBufferQueue}
+	 * @param maxBatchSize the maximum number of items in a batch
+	 * @param maxLinger    the maximum time to wait for more items before delivering a partial batch
+	 * @param lingerUnit   the unit of the linger time
+	 * @param breakItem    the item stopping a consumer (compared by reference)
+	 */
+	protected ConcurrentBatchQueue(final ExecutorService executor, final int threadNumber, final BlockingQueue<T> queue,
+			final int maxBatchSize, final long maxLinger, final TimeUnit lingerUnit, final T breakItem) {
+		super(queue, breakItem);
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException("The batch size must be positive: " + maxBatchSize);
+		this.maxBatchSize = maxBatchSize;
+		this.maxLingerNanos = lingerUnit.toNanos(maxLinger);
+		startConsumers(executor, threadNumber);
+	}
+
+	/**
+	 * @param executor     the executor running the consumers
+	 * @param threadNumber the number of consumers
+	 * @param capacity     the number of items the queue can hold before the producers are blocked
+	 * @param maxBatchSize the maximum number of items in a batch
+	 * @param maxLinger    the maximum time to wait for more items before delivering a partial batch
+	 * @param lingerUnit   the unit of the linger time
+	 * @param breakItem    the item stopping a consumer (compared by reference)
+	 */
+	protected ConcurrentBatchQueue(final ExecutorService executor, final int threadNumber, final int capacity,
+			final int maxBatchSize, final long maxLinger, final TimeUnit lingerUnit, final T breakItem) {
+		this(executor, threadNumber, new ArrayBlockingQueue<>(capacity), maxBatchSize, maxLinger, lingerUnit,
+				breakItem);
+	}
+
+	protected abstract Consumer<List<T>> getNewConsumer();
+
+	@Override
+	final Runnable newConsumerTask() {
+		return new BatchConsumer();
+	}
+
+	private class BatchConsumer implements Runnable {
+
+		private final Consumer<List<T>> consumer = getNewConsumer();
+
+		@Override
+		final public void run() {
+			try {
+				for (; ; ) {
+					final T first = queue.take();
+					if (first == breakItem)
+						return;
+					final List<T> batch = new ArrayList<>(Math.min(maxBatchSize, queue.size() + 1));
+					batch.add(first);
+					fill(batch);
+					if (!deliver(batch))
+						return;
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void fill(final List<T> batch) throws InterruptedException {
+			final long deadline = System.nanoTime() + maxLingerNanos;
+			while (batch.size() < maxBatchSize) {
+				final int drained = batch.size();
+				queue.drainTo(batch, maxBatchSize - drained);
+				for (int i = drained; i < batch.size(); i++)
+					if (batch.get(i) == breakItem)
+						return;
+				if (batch.size() >= maxBatchSize)
+					return;
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return;
+				final T next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				if (next == null)
+					return;
+				batch.add(next);
+				if (next == breakItem)
+					return;
+			}
+		}
+
+		/**
+		 * Deliver the items preceding the break item, if any.
+		 * The items drained after the break item (e.g. the break items of the other consumers) are queued again.
+		 *
+		 * @return false if the batch contained the break item
+		 */
+		private boolean deliver(final List<T> batch) throws InterruptedException {
+			int breakIndex = -1;
+			for (int i = 0; i < batch.size(); i++) {
+				if (batch.get(i) == breakItem) {
+					breakIndex = i;
+					break;
+				}
+			}
+			if (breakIndex == -1) {
+				consumer.accept(batch);
+				return true;
+			}
+			for (int i = breakIndex + 1; i < batch.size(); i++)
+				queue.put(batch.get(i));
+			if (breakIndex > 0)
+				consumer.accept(new ArrayList<>(batch.subList(0, breakIndex)));
+			return false;
+		}
+	}
+}
@@ -15,51 +15,45 @@
  */
 package com.qwazr.utils.concurrent;
 
-import java.io.Closeable;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
-abstract public class ConcurrentQueue<T> implements Consumer<T>, Closeable {
+abstract public class ConcurrentQueue<T> extends AbstractConcurrentQueue<T> {
 
-	private final ArrayBlockingQueue<T> queue;
-	private final List<Future> futures;
-	private final T breakItem;
+	/**
+	 * @param executor     the executor running the consumers
+	 * @param threadNumber the number of consumers
+	 * @param queue        the queue strategy, e.g. an {@link ArrayBlockingQueue} or a {@link RingBufferQueue}
+	 * @param breakItem    the item stopping a consumer (compared by reference)
+	 */
+	protected ConcurrentQueue(final ExecutorService executor, final int threadNumber, final BlockingQueue<T> queue,
+			final T breakItem) {
+		super(queue, breakItem);
+		startConsumers(executor, threadNumber);
+	}
+
+	/**
+	 * @param executor     the executor running the consumers
+	 * @param threadNumber the number of consumers
+	 * @param capacity     the number of items the queue can hold before the producers are blocked
+	 * @param breakItem    the item stopping a consumer (compared by reference)
+	 */
+	protected ConcurrentQueue(final ExecutorService executor, final int threadNumber, final int capacity,
+			final T breakItem) {
+		this(executor, threadNumber, new ArrayBlockingQueue<>(capacity), breakItem);
+	}
 
 	protected ConcurrentQueue(final ExecutorService executor, final int threadNumber, final T breakItem) {
-		this.futures = new ArrayList<>();
-		this.breakItem = breakItem;
-		this.queue = new ArrayBlockingQueue<>(threadNumber);
-		for (int i = 0; i < threadNumber; i++)
-			futures.add(executor.submit(new ItemConsumer()));
+		this(executor, threadNumber, threadNumber, breakItem);
 	}
 
 	protected abstract Consumer<T> getNewConsumer();
 
 	@Override
-	public void close() {
-		try {
-			for (int i = 0; i < futures.size(); i++)
-				queue.put(breakItem);
-			for (Future future : futures)
-				future.get();
-		} catch (InterruptedException | ExecutionException e) {
-			throw new RuntimeException(e);
-		}
-		futures.clear();
-	}
-
-	@Override
-	final public void accept(final T entry) {
-		try {
-			queue.put(entry);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
+	final Runnable newConsumerTask() {
+		return new ItemConsumer();
 	}
 
 	private class ItemConsumer implements Runnable {
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time after which the result of a task is useless, e.g. because its client has timed out.
+ * <p>
+ * A task submitted with a deadline is shed if it is still waiting when the deadline is reached.
+ * While the task runs, its deadline is available from {@link #current()}, so that it can check its remaining budget.
+ */
+public final class Deadline {
+
+    public static class ExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 2263154906870185390L;
+
+        private ExceededException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The deadline which never expires
+     */
+    public final static Deadline NONE = new Deadline(0, false);
+
+    private final static ThreadLocal<Deadline> CURRENT = ThreadLocal.withInitial(() -> NONE);
+
+    private final long nanoTime;
+    private final boolean finite;
+
+    private Deadline(final long nanoTime, final boolean finite) {
+        this.nanoTime = nanoTime;
+        this.finite = finite;
+    }
+
+    public static Deadline after(final long duration, final TimeUnit unit) {
+        final long nanos = unit.toNanos(duration);
+        final long now = System.nanoTime();
+        // The duration is capped to avoid the overflow of the nano time
+        return new Deadline(now + Math.min(nanos, Long.MAX_VALUE >> 1), true);
+    }
+
+    /**
+     * @return the deadline of the task running in the current thread, or {@link #NONE}
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    public boolean isFinite() {
+        return finite;
+    }
+
+    public boolean isExpired() {
+        return finite && nanoTime - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @param unit the unit of the returned value
+     * @return the remaining time before the deadline, zero if expired, Long.MAX_VALUE if infinite
+     */
+    public long remaining(final TimeUnit unit) {
+        if (!finite)
+            return Long.MAX_VALUE;
+        return unit.convert(Math.max(0, nanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    ExceededException exceeded() {
+        return new ExceededException("The deadline is exceeded");
+    }
+
+    /**
+     * Run an action once this finite deadline is reached, on a single daemon thread shared by all the deadlines.
+     *
+     * @param action a short action, e.g. the completion of a future
+     * @return the scheduled action, to be cancelled if it is no longer needed
+     */
+    ScheduledFuture<?> onExpiry(final Runnable action) {
+        return Timer.SCHEDULER.schedule(action, remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Make this deadline the current one of the calling thread.
+     *
+     * @return the previous deadline, to be passed to {@link #restore(Deadline)}
+     */
+    Deadline enter() {
+        final Deadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void restore(final Deadline previous) {
+        if (previous == NONE)
+            CURRENT.remove();
+        else
+            CURRENT.set(previous);
+    }
+
+    @Override
+    public String toString() {
+        return finite ? "remaining: " + remaining(TimeUnit.MILLISECONDS) + "ms" : "none";
+    }
+
+    /**
+     * Lazily started on the first scheduled action
+     */
+    private final static class Timer {
+
+        private final static ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "deadline-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            // The actions are cancelled as soon as their task starts, they should not pile up until their deadline
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+    }
+}
@@ -15,11 +15,56 @@
  */
 package com.qwazr.utils.concurrent;
 
+import com.qwazr.utils.LoggerUtils;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ExecutorUtils {
 
+    private final static Logger LOGGER = LoggerUtils.getLogger(ExecutorUtils.class);
+
+    private final static Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method method;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = method;
+    }
+
+    /**
+     * @return true if the JVM supports the virtual threads (JDK 21+)
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor starting a new virtual thread for each task.
+     * The JDK is detected at runtime, so that this class still runs on older JVMs.
+     *
+     * @return the executor, or an empty optional if the virtual threads are not supported
+     */
+    public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null)
+            return Optional.empty();
+        try {
+            return Optional.of((ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot create the virtual thread executor");
+            return Optional.empty();
+        }
+    }
+
     public static void close(final ExecutorService executorService, final long timeOut, final TimeUnit timeUnit)
             throws InterruptedException {
         if (executorService == null)
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The queue of the tasks waiting for a permit of a {@link TaskPool}.
+ * <p>
+ * The tenants are served by weighted fair queuing: each dispatch advances the virtual time of the tenant
+ * by the inverse of its weight, and the active tenant with the smallest virtual time is served next.
+ * A tenant becoming active again starts at the current virtual time, so an idle period earns no credit.
+ * Within a tenant, the highest priority is served first, then the oldest task.
+ * A task whose future is completed while it is queued (cancelled, or its deadline reached) is skipped.
+ * <p>
+ * The idle tenants with the default weight are dropped each time the number of tenants doubles,
+ * so that a stream of distinct tenant keys does not grow the map without bound. Their statistics are lost.
+ */
+@ThreadSafe
+final class FairTaskQueue {
+
+    private final static double DEFAULT_WEIGHT = 1;
+    private final static int MIN_SWEEP_THRESHOLD = 64;
+
+    private final ReentrantLock lock;
+    private final Map<String, Tenant> tenants;
+    private final PriorityQueue<Tenant> active;
+    private final AtomicInteger size;
+    private double virtualTime;
+    private long sequence;
+    private int sweepThreshold;
+
+    FairTaskQueue() {
+        lock = new ReentrantLock();
+        tenants = new HashMap<>();
+        active = new PriorityQueue<>(Comparator.comparingDouble((Tenant tenant) -> tenant.pass)
+                .thenComparingLong(tenant -> tenant.activation));
+        size = new AtomicInteger();
+        sweepThreshold = MIN_SWEEP_THRESHOLD;
+    }
+
+    /**
+     * Must be called under the lock, after a tenant is added
+     */
+    private void sweepIdleTenants() {
+        if (tenants.size() <= sweepThreshold)
+            return;
+        tenants.values().removeIf(tenant -> tenant.queue.isEmpty() && tenant.weight == DEFAULT_WEIGHT);
+        // Amortized: the next sweep waits for the number of tenants to double again
+        sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, tenants.size() * 2);
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    void weight(final String tenantKey, final double weight) {
+        if (!(weight > 0))
+            throw new IllegalArgumentException("The weight must be positive: " + weight);
+        lock.lock();
+        try {
+            tenants.computeIfAbsent(tenantKey, Tenant::new).weight = weight;
+            sweepIdleTenants();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void offer(final String tenantKey, final int priority, final Runnable runnable,
+               final CompletableFuture<?> future) {
+        lock.lock();
+        try {
+            final Tenant tenant = tenants.computeIfAbsent(tenantKey, Tenant::new);
+            if (tenant.queue.isEmpty()) {
+                tenant.pass = Math.max(tenant.pass, virtualTime);
+                tenant.activation = sequence;
+                active.add(tenant);
+            }
+            tenant.queue.add(new Entry(priority, sequence++, System.nanoTime(), runnable, future));
+            size.incrementAndGet();
+            sweepIdleTenants();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param skipped called, out of the lock, with the future of each skipped entry
+     * @return the next entry to run, or null if the queue is empty
+     */
+    Entry poll(final Consumer<CompletableFuture<?>> skipped) {
+        List<CompletableFuture<?>> skippedFutures = null;
+        lock.lock();
+        try {
+            Tenant tenant;
+            Entry entry;
+            for (; ; ) {
+                tenant = active.poll();
+                if (tenant == null)
+                    return null;
+                entry = tenant.queue.poll();
+                size.decrementAndGet();
+                if (!entry.future.isDone())
+                    break;
+                // A skipped entry does not advance the virtual time of its tenant
+                if (!tenant.queue.isEmpty())
+                    active.add(tenant);
+                if (skippedFutures == null)
+                    skippedFutures = new ArrayList<>();
+                skippedFutures.add(entry.future);
+            }
+            virtualTime = tenant.pass;
+            tenant.pass += 1 / tenant.weight;
+            if (!tenant.queue.isEmpty())
+                active.add(tenant);
+            final long waitNanos = System.nanoTime() - entry.enqueueNanos;
+            tenant.dispatchedTasks++;
+            tenant.totalWaitNanos += waitNanos;
+            tenant.maxWaitNanos = Math.max(tenant.maxWaitNanos, waitNanos);
+            return entry;
+        } finally {
+            lock.unlock();
+            if (skippedFutures != null)
+                skippedFutures.forEach(skipped);
+        }
+    }
+
+    Map<String, TaskPool.TenantStats> stats() {
+        lock.lock();
+        try {
+            final Map<String, TaskPool.TenantStats> stats = new LinkedHashMap<>();
+            tenants.forEach((key, tenant) -> stats.put(key,
+                    new TaskPool.TenantStats(tenant.weight, tenant.queue.size(), tenant.dispatchedTasks,
+                            tenant.totalWaitNanos, tenant.maxWaitNanos)));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static final class Entry {
+
+        private final int priority;
+        private final long sequence;
+        private final long enqueueNanos;
+        final Runnable runnable;
+        final CompletableFuture<?> future;
+
+        private Entry(final int priority, final long sequence, final long enqueueNanos, final Runnable runnable,
+                      final CompletableFuture<?> future) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.enqueueNanos = enqueueNanos;
+            this.runnable = runnable;
+            this.future = future;
+        }
+    }
+
+    private static final class Tenant {
+
+        private final Queue<Entry> queue;
+        private double weight;
+        private double pass;
+        private long activation;
+        private long dispatchedTasks;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        private Tenant(final String key) {
+            queue = new PriorityQueue<>(Comparator.comparingInt((Entry entry) -> -entry.priority)
+                    .thenComparingLong(entry -> entry.sequence));
+            weight = DEFAULT_WEIGHT;
+        }
+    }
+}
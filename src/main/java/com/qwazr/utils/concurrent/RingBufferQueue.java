@@ -0,0 +1,289 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free multi-producer multi-consumer queue backed by a ring buffer.
+ * <p>
+ * Each slot carries a sequence telling whether it is free for the producer of a given turn, or filled for the
+ * consumer of this turn. A producer (or a consumer) claims a slot by a compare-and-set of the producer
+ * (or consumer) cursor, and publishes it by updating the sequence of the slot. The cursors are padded,
+ * so that the producers and the consumers do not invalidate each other's cache line.
+ * <p>
+ * There is no lock to signal the waiting threads: a blocking operation retries following the wait strategy.
+ * The capacity is rounded up to the next power of two.
+ *
+ * @param <T> the type of the items
+ */
+@ThreadSafe
+public class RingBufferQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+    public enum WaitStrategy {
+
+        /**
+         * Spin on the CPU: the lowest latency, one core burnt per waiting thread
+         */
+        BUSY_SPIN,
+
+        /**
+         * Spin shortly, then yield the CPU to the other threads
+         */
+        YIELD,
+
+        /**
+         * Spin shortly, yield, then park the thread for a short period: the lowest CPU usage
+         */
+        PARK
+    }
+
+    private final static int SPIN_TRIES = 100;
+    private final static int YIELD_TRIES = 100;
+    private final static long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<T> items;
+    private final Sequence producer;
+    private final Sequence consumer;
+    private final WaitStrategy waitStrategy;
+
+    public RingBufferQueue(final int capacity, final WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Wrong capacity: " + capacity);
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+            sequences.set(i, i);
+        this.items = new AtomicReferenceArray<>(this.capacity);
+        this.producer = new Sequence();
+        this.consumer = new Sequence();
+        this.waitStrategy = Objects.requireNonNull(waitStrategy, "The wait strategy is null");
+    }
+
+    public RingBufferQueue(final int capacity) {
+        this(capacity, WaitStrategy.YIELD);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean offer(final T item) {
+        Objects.requireNonNull(item, "The item is null");
+        long position = producer.value;
+        for (; ; ) {
+            final int index = (int) position & mask;
+            final long delta = sequences.get(index) - position;
+            if (delta == 0) {
+                if (producer.compareAndSet(position, position + 1)) {
+                    items.lazySet(index, item);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = producer.value;
+            } else if (delta < 0)
+                return false; // The slot is still filled by the previous turn: the queue is full
+            else
+                position = producer.value;
+        }
+    }
+
+    @Override
+    public T poll() {
+        long position = consumer.value;
+        for (; ; ) {
+            final int index = (int) position & mask;
+            final long delta = sequences.get(index) - (position + 1);
+            if (delta == 0) {
+                if (consumer.compareAndSet(position, position + 1)) {
+                    final T item = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.set(index, position + capacity);
+                    return item;
+                }
+                position = consumer.value;
+            } else if (delta < 0)
+                return null; // The slot is not yet published: the queue is empty
+            else
+                position = consumer.value;
+        }
+    }
+
+    @Override
+    public T peek() {
+        final long position = consumer.value;
+        final int index = (int) position & mask;
+        return sequences.get(index) == position + 1 ? items.get(index) : null;
+    }
+
+    /**
+     * Wait following the wait strategy.
+     *
+     * @param tries the number of the previous tries
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private void idle(final int tries) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES)
+            Thread.onSpinWait();
+        else if (waitStrategy == WaitStrategy.YIELD || tries < SPIN_TRIES + YIELD_TRIES)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(this, PARK_NANOS);
+    }
+
+    @Override
+    public void put(final T item) throws InterruptedException {
+        int tries = 0;
+        while (!offer(item))
+            idle(tries++);
+    }
+
+    @Override
+    public boolean offer(final T item, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (!offer(item)) {
+            if (deadline - System.nanoTime() <= 0)
+                return false;
+            idle(tries++);
+        }
+        return true;
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        int tries = 0;
+        T item;
+        while ((item = poll()) == null)
+            idle(tries++);
+        return item;
+    }
+
+    @Override
+    public T poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        T item;
+        while ((item = poll()) == null) {
+            if (deadline - System.nanoTime() <= 0)
+                return null;
+            idle(tries++);
+        }
+        return item;
+    }
+
+    @Override
+    public int size() {
+        final long head = consumer.value;
+        final long tail = producer.value;
+        return (int) Math.max(0, Math.min(capacity, tail - head));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(final Collection<? super T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super T> collection, final int maxElements) {
+        Objects.requireNonNull(collection, "The collection is null");
+        if (collection == this)
+            throw new IllegalArgumentException("Cannot drain to itself");
+        int count = 0;
+        T item;
+        while (count < maxElements && (item = poll()) != null) {
+            collection.add(item);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return a weakly consistent snapshot of the queued items
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final List<T> snapshot = new ArrayList<>(size());
+        final long tail = producer.value;
+        for (long position = consumer.value; position < tail; position++) {
+            final int index = (int) position & mask;
+            final T item = items.get(index);
+            if (item != null && sequences.get(index) == position + 1)
+                snapshot.add(item);
+        }
+        return snapshot.iterator();
+    }
+
+    @Override
+    public String toString() {
+        return "RingBufferQueue - capacity: " + capacity + " - size: " + size() + " - wait: " + waitStrategy;
+    }
+
+    /**
+     * The padding, in the superclasses, keeps the cursor alone in its cache line,
+     * as the fields of a superclass are laid out before the fields of a subclass.
+     */
+    @SuppressWarnings("unused")
+    private static class LeftPadding {
+
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class SequenceValue extends LeftPadding {
+
+        protected volatile long value;
+    }
+
+    @SuppressWarnings("unused")
+    private static class RightPadding extends SequenceValue {
+
+        protected long p9, p10, p11, p12, p13, p14, p15;
+    }
+
+    private static final class Sequence extends RightPadding {
+
+        private final static AtomicLongFieldUpdater<SequenceValue> UPDATER =
+                AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+        private boolean compareAndSet(final long expected, final long update) {
+            return UPDATER.compareAndSet(this, expected, update);
+        }
+    }
+}
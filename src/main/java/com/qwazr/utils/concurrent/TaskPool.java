@@ -18,18 +18,24 @@ package com.qwazr.utils.concurrent;
 import com.qwazr.utils.LoggerUtils;
 
 import java.io.Closeable;
-import java.util.Set;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterators;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,8 +54,123 @@ public interface TaskPool extends Closeable {
 
     <RESULT> CompletableFuture<RESULT> submit(final Supplier<RESULT> task);
 
+    default CompletableFuture<?> submit(final Deadline deadline, final Runnable task) {
+        return submit(deadline, (Supplier<?>) () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Submit a task which is shed if it is still waiting for a permit or a thread when the deadline is reached:
+     * its future then completes with a {@link Deadline.ExceededException}. The running task can read its remaining
+     * budget from {@link Deadline#current()}.
+     * The default implementation only sheds the task whose deadline is already reached when it is submitted.
+     *
+     * @param deadline the deadline of the task
+     * @param task     the task
+     * @param <RESULT> the type of the result
+     * @return the future of the result
+     */
+    default <RESULT> CompletableFuture<RESULT> submit(final Deadline deadline, final Supplier<RESULT> task) {
+        if (deadline.isExpired()) {
+            final CompletableFuture<RESULT> future = new CompletableFuture<>();
+            future.completeExceptionally(deadline.exceeded());
+            return future;
+        }
+        return submit(task);
+    }
+
+    /**
+     * Submit the tasks and stream their results in completion order.
+     * The tasks are submitted while the stream is consumed, and no more than bufferSize results are
+     * pending at any time: a slow consumer slows down the submission instead of buffering the results.
+     *
+     * @param tasks      the tasks to submit
+     * @param bufferSize the maximum number of the submitted tasks whose result is not yet consumed
+     * @param <RESULT>   the type of the results
+     * @return a sequential stream of the results
+     */
+    default <RESULT> Stream<RESULT> submitAll(final Iterable<? extends Supplier<RESULT>> tasks, final int bufferSize) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                new CompletionOrderIterator<>(this, tasks.iterator(), bufferSize), 0), false);
+    }
+
+    default <RESULT> Stream<RESULT> submitAll(final Iterable<? extends Supplier<RESULT>> tasks) {
+        return submitAll(tasks, DEFAULT_MAX_CONCURRENT_TASKS * 2);
+    }
+
+    default CompletableFuture<?> submit(final String tenant, final int priority, final Runnable task) {
+        return submit(tenant, priority, (Supplier<?>) () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Queue a task without blocking the caller. The queued tasks are scheduled by weighted fair queuing
+     * across the tenants, and by strict priority within a tenant, under the same concurrency limit.
+     *
+     * @param tenant   the tenant key
+     * @param priority the priority within the tenant, the highest runs first
+     * @param task     the task
+     * @param <RESULT> the type of the result
+     * @return the future of the result
+     */
+    default <RESULT> CompletableFuture<RESULT> submit(final String tenant, final int priority,
+                                                      final Supplier<RESULT> task) {
+        return submit(tenant, priority, Deadline.NONE, task);
+    }
+
+    /**
+     * Queue a task with a deadline,
+     * see {@link #submit(String, int, Supplier)} and {@link #submit(Deadline, Supplier)}.
+     * The default implementation ignores the tenant and the priority.
+     *
+     * @param tenant   the tenant key
+     * @param priority the priority within the tenant, the highest runs first
+     * @param deadline the deadline of the task
+     * @param task     the task
+     * @param <RESULT> the type of the result
+     * @return the future of the result
+     */
+    default <RESULT> CompletableFuture<RESULT> submit(final String tenant, final int priority,
+                                                      final Deadline deadline, final Supplier<RESULT> task) {
+        return submit(deadline, task);
+    }
+
+    /**
+     * Set the share of a tenant: a tenant with a weight of 2 is served twice as often as a tenant
+     * with the default weight of 1, when both have queued tasks.
+     * The default implementation, which does not schedule per tenant, ignores the weight.
+     *
+     * @param tenant the tenant key
+     * @param weight the weight, which must be positive
+     * @return this pool
+     */
+    default TaskPool tenantWeight(final String tenant, final double weight) {
+        return this;
+    }
+
+    /**
+     * @return a snapshot of the queue depth and of the wait times of each tenant
+     */
+    default Map<String, TenantStats> getTenantStats() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return the number of the tasks submitted and not yet completed, including the queued ones
+     */
     int getConcurrentTasks();
 
+    /**
+     * @return the number of the tasks dropped because their deadline was reached before they could run
+     */
+    default long getShedTasks() {
+        return 0;
+    }
+
     TaskPool shutdown();
 
     boolean isShutdown();
@@ -75,6 +196,39 @@ public interface TaskPool extends Closeable {
         return of(DEFAULT_LOGGER, maxConcurrentTasks);
     }
 
+    /**
+     * Create a pool running each task on its own virtual thread, the concurrency being capped by the permits.
+     * Blocking I/O tasks do not pin a platform thread, so a large number of concurrent tasks needs no thread
+     * pool tuning. On a JDK without the virtual threads, the pool falls back to a cached thread pool.
+     *
+     * @param logger             the logger used to report the failures
+     * @param maxConcurrentTasks the maximum number of concurrent tasks
+     * @return a new task pool
+     */
+    static TaskPool ofVirtual(final Logger logger, final int maxConcurrentTasks) {
+        return new WithExecutor(logger, ExecutorUtils.newVirtualThreadPerTaskExecutor()
+                .orElseGet(Executors::newCachedThreadPool), maxConcurrentTasks);
+    }
+
+    static TaskPool ofVirtual(final int maxConcurrentTasks) {
+        return ofVirtual(DEFAULT_LOGGER, maxConcurrentTasks);
+    }
+
+    /**
+     * Create a pool whose concurrency follows the adaptive limit, see {@link AdaptiveLimit}.
+     *
+     * @param logger        the logger used to report the failures
+     * @param adaptiveLimit the limit, which must not be shared with another pool
+     * @return a new task pool
+     */
+    static TaskPool of(final Logger logger, final AdaptiveLimit adaptiveLimit) {
+        return new WithExecutor(logger, adaptiveLimit);
+    }
+
+    static TaskPool of(final AdaptiveLimit adaptiveLimit) {
+        return of(DEFAULT_LOGGER, adaptiveLimit);
+    }
+
     static TaskPool of(final Logger logger, final ExecutorService executorService) {
         return new Base(logger, executorService);
     }
@@ -91,20 +245,48 @@ public interface TaskPool extends Closeable {
         return of(DEFAULT_LOGGER, executorService, maxConcurrentTasks);
     }
 
+    /**
+     * The in-flight tasks are tracked in a concurrent map: a future is registered before the task is submitted,
+     * and unregisters itself when the task is done. The submitters never hold a lock while waiting for a permit.
+     * Each future is mapped to an internal completion signal, completed after the unregistration,
+     * which {@link #awaitCompletion()} waits for: a cancelled future completes before its task is done.
+     * <p>
+     * The shutdown is a compare-and-set of the state. A submitter registers its future before reading the state,
+     * so that a task accepted concurrently with the shutdown is always visible to {@link #awaitCompletion()}.
+     */
     class Base implements TaskPool {
 
-        private final AtomicBoolean shutdown;
+        private final static int RUNNING = 0;
+        private final static int SHUTDOWN = 1;
+
+        private final AtomicInteger state;
         private final Semaphore tasksSemaphore;
+        private final AdaptiveLimit adaptiveLimit;
         private final Logger logger;
         private final ExecutorService executorService;
-        private final Set<CompletableFuture> futures;
-
-        protected Base(final Logger logger, final ExecutorService executorService, final int maxConcurrentTasks) {
-            this.shutdown = new AtomicBoolean(false);
-            this.tasksSemaphore = new Semaphore(maxConcurrentTasks, true);
+        private final Map<CompletableFuture<?>, CompletableFuture<Void>> futures;
+        private final FairTaskQueue queue;
+        private final LongAdder shedTasks;
+
+        private Base(final Logger logger, final ExecutorService executorService, final Semaphore tasksSemaphore,
+                     final AdaptiveLimit adaptiveLimit, final int maxConcurrentTasks) {
+            this.state = new AtomicInteger(RUNNING);
+            this.tasksSemaphore = tasksSemaphore;
+            this.adaptiveLimit = adaptiveLimit;
             this.logger = logger;
             this.executorService = executorService;
-            this.futures = ConcurrentHashMap.newKeySet(maxConcurrentTasks);
+            this.futures = new ConcurrentHashMap<>(maxConcurrentTasks);
+            this.queue = new FairTaskQueue();
+            this.shedTasks = new LongAdder();
+        }
+
+        protected Base(final Logger logger, final ExecutorService executorService, final int maxConcurrentTasks) {
+            this(logger, executorService, new Semaphore(maxConcurrentTasks, true), null, maxConcurrentTasks);
+        }
+
+        protected Base(final Logger logger, final ExecutorService executorService,
+                       final AdaptiveLimit adaptiveLimit) {
+            this(logger, executorService, adaptiveLimit.attach(), adaptiveLimit, adaptiveLimit.getMaximum());
         }
 
         protected Base(final Logger logger, final ExecutorService executorService) {
@@ -115,68 +297,257 @@ public interface TaskPool extends Closeable {
             return executorService;
         }
 
+        private void register(final CompletableFuture<?> future) {
+            futures.put(future, new CompletableFuture<>());
+        }
+
+        private void unregister(final CompletableFuture<?> future) {
+            final CompletableFuture<Void> done = futures.remove(future);
+            if (done != null)
+                done.complete(null);
+        }
+
         public int getConcurrentTasks() {
-            futures.removeIf(Future::isDone);
             return futures.size();
         }
 
         @Override
         public <RESULT> CompletableFuture<RESULT> submit(final Supplier<RESULT> task) {
-            synchronized (shutdown) {
-                if (shutdown.get())
-                    throw new IllegalStateException("The task pool is shutdown");
-                try {
+            return submit(Deadline.NONE, task);
+        }
+
+        @Override
+        public <RESULT> CompletableFuture<RESULT> submit(final Deadline deadline, final Supplier<RESULT> task) {
+            Objects.requireNonNull(deadline, "The deadline is null");
+            final CompletableFuture<RESULT> future = new CompletableFuture<>();
+            register(future);
+            if (state.get() != RUNNING) {
+                unregister(future);
+                throw new IllegalStateException("The task pool is shutdown");
+            }
+            try {
+                if (!deadline.isFinite())
                     tasksSemaphore.acquire();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                else if (!tasksSemaphore.tryAcquire(deadline.remaining(TimeUnit.NANOSECONDS),
+                        TimeUnit.NANOSECONDS)) {
+                    shedTasks.increment();
+                    future.completeExceptionally(deadline.exceeded());
+                    unregister(future);
+                    return future;
+                }
+            } catch (InterruptedException e) {
+                unregister(future);
+                future.completeExceptionally(e);
+                throw new RuntimeException(e);
+            }
+            try {
+                executorService.execute(() -> run(deadline, task, future));
+                return future;
+            } catch (RuntimeException e) {
+                tasksSemaphore.release();
+                unregister(future);
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public <RESULT> CompletableFuture<RESULT> submit(final String tenant, final int priority,
+                                                         final Deadline deadline, final Supplier<RESULT> task) {
+            Objects.requireNonNull(tenant, "The tenant is null");
+            Objects.requireNonNull(deadline, "The deadline is null");
+            final CompletableFuture<RESULT> future = new CompletableFuture<>();
+            register(future);
+            if (state.get() != RUNNING) {
+                unregister(future);
+                throw new IllegalStateException("The task pool is shutdown");
+            }
+            final Runnable runnable = () -> run(deadline, task, future);
+            queue.offer(tenant, priority, deadline.isFinite() ? expiring(deadline, future, runnable) : runnable,
+                    future);
+            dispatch();
+            return future;
+        }
+
+        /**
+         * The future of a queued task is completed as soon as its deadline is reached, the queue skips it then.
+         *
+         * @return the task, which cancels the timeout when it starts
+         */
+        private Runnable expiring(final Deadline deadline, final CompletableFuture<?> future, final Runnable task) {
+            final ScheduledFuture<?> timeout = deadline.onExpiry(() -> {
+                if (future.completeExceptionally(deadline.exceeded()))
+                    shedTasks.increment();
+            });
+            // Also cancelled when the future is cancelled while queued
+            future.whenComplete((result, failure) -> timeout.cancel(false));
+            return () -> {
+                timeout.cancel(false);
+                task.run();
+            };
+        }
+
+        /**
+         * Start the queued tasks while permits are available. The emptiness is checked again after a permit
+         * is given back, so that a task queued while this thread was holding the permit is not left behind.
+         */
+        private void dispatch() {
+            while (!queue.isEmpty()) {
+                if (!tasksSemaphore.tryAcquire())
+                    return;
+                final FairTaskQueue.Entry entry = queue.poll(this::unregister);
+                if (entry == null) {
+                    tasksSemaphore.release();
+                    continue;
                 }
                 try {
-                    final CompletableFuture<RESULT> future = CompletableFuture.supplyAsync(task, executorService);
-                    futures.removeIf(Future::isDone);
-                    futures.add(future);
-                    return future.whenComplete((result, throwable) -> tasksSemaphore.release());
+                    executorService.execute(entry.runnable);
                 } catch (RuntimeException e) {
                     tasksSemaphore.release();
-                    throw e;
+                    entry.future.completeExceptionally(e);
+                    unregister(entry.future);
+                    logger.log(Level.WARNING, e, () -> "Cannot execute a queued task");
                 }
             }
         }
 
+        @Override
+        public TaskPool tenantWeight(final String tenant, final double weight) {
+            queue.weight(Objects.requireNonNull(tenant, "The tenant is null"), weight);
+            return this;
+        }
+
+        @Override
+        public Map<String, TenantStats> getTenantStats() {
+            return queue.stats();
+        }
+
+        @Override
+        public long getShedTasks() {
+            return shedTasks.sum();
+        }
+
+        private <RESULT> void run(final Deadline deadline, final Supplier<RESULT> task,
+                                  final CompletableFuture<RESULT> future) {
+            RESULT result = null;
+            Throwable failure = null;
+            if (deadline.isExpired()) {
+                // Unless the timeout of the queued task already shed it
+                if (!future.isDone())
+                    shedTasks.increment();
+                failure = deadline.exceeded();
+            } else {
+                final long start = System.nanoTime();
+                final Deadline previous = deadline.enter();
+                try {
+                    result = task.get();
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    Deadline.restore(previous);
+                }
+                // A shed task is not sampled, it did not reach the downstream system
+                if (adaptiveLimit != null)
+                    adaptiveLimit.sample(System.nanoTime() - start, failure != null);
+            }
+            // The permit is released before the future is completed, and the future is removed once completed
+            tasksSemaphore.release();
+            try {
+                if (failure != null)
+                    future.completeExceptionally(failure);
+                else
+                    future.complete(result);
+            } finally {
+                unregister(future);
+            }
+            dispatch();
+        }
+
         @Override
         public TaskPool shutdown() {
-            shutdown.set(true);
+            state.compareAndSet(RUNNING, SHUTDOWN);
             return this;
         }
 
         @Override
         public boolean isShutdown() {
-            return shutdown.get();
+            return state.get() != RUNNING;
         }
 
         @Override
         public TaskPool awaitCompletion() {
-            synchronized (shutdown) {
-                if (!isShutdown())
-                    throw new IllegalStateException("The pool must be shutdown first");
-                futures.forEach(future -> {
+            if (!isShutdown())
+                throw new IllegalStateException("The pool must be shutdown first");
+            while (!futures.isEmpty()) {
+                for (final Map.Entry<CompletableFuture<?>, CompletableFuture<Void>> entry : futures.entrySet()) {
+                    // The signal is completed once the future is unregistered: each future is reported once
+                    entry.getValue().join();
                     try {
-                        future.join();
+                        entry.getKey().join();
                     } catch (final CancellationException e) {
                         logger.log(Level.WARNING, e, () -> "Job cancelled");
                     } catch (final CompletionException e) {
                         logger.log(Level.WARNING, e, () -> "Job completion exception");
                     }
-                });
-                futures.clear();
+                }
             }
             return this;
         }
 
         @Override
         public void close() {
-            synchronized (shutdown()) {
-                shutdown().awaitCompletion();
-            }
+            shutdown().awaitCompletion();
+        }
+    }
+
+    final class TenantStats {
+
+        private final double weight;
+        private final int queueDepth;
+        private final long dispatchedTasks;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+
+        TenantStats(final double weight, final int queueDepth, final long dispatchedTasks, final long totalWaitNanos,
+                    final long maxWaitNanos) {
+            this.weight = weight;
+            this.queueDepth = queueDepth;
+            this.dispatchedTasks = dispatchedTasks;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the number of the tasks waiting for a permit
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getDispatchedTasks() {
+            return dispatchedTasks;
+        }
+
+        public long getTotalWaitTime(final TimeUnit unit) {
+            return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMeanWaitTime(final TimeUnit unit) {
+            return dispatchedTasks == 0 ? 0 : unit.convert(totalWaitNanos / dispatchedTasks, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaxWaitTime(final TimeUnit unit) {
+            return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "weight: " + weight + " - queue: " + queueDepth + " - dispatched: " + dispatchedTasks +
+                    " - mean wait: " + getMeanWaitTime(TimeUnit.MICROSECONDS) + "us";
         }
     }
 
@@ -189,6 +560,17 @@ public interface TaskPool extends Closeable {
             this.logger = logger;
         }
 
+        protected WithExecutor(final Logger logger, final ExecutorService executorService,
+                               final int maxConcurrentTasks) {
+            super(logger, executorService, maxConcurrentTasks);
+            this.logger = logger;
+        }
+
+        protected WithExecutor(final Logger logger, final AdaptiveLimit adaptiveLimit) {
+            super(logger, Executors.newFixedThreadPool(adaptiveLimit.getMaximum()), adaptiveLimit);
+            this.logger = logger;
+        }
+
         protected WithExecutor(final Logger logger) {
             super(logger, Executors.newCachedThreadPool());
             this.logger = logger;
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils;
+
+import com.qwazr.utils.concurrent.ExecutorUtils;
+import com.qwazr.utils.concurrent.ThreadUtils;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class AccessTimeCacheMapTest {
+
+    @Test
+    public void getOrCreateTest() {
+        final AccessTimeCacheMap<String, Integer> cache = new AccessTimeCacheMap<>(60);
+        final AtomicInteger counter = new AtomicInteger();
+        assertThat(cache.getOrCreate("a", counter::incrementAndGet), equalTo(1));
+        assertThat(cache.getOrCreate("a", counter::incrementAndGet), equalTo(1));
+        assertThat(cache.getOrCreate("b", counter::incrementAndGet), equalTo(2));
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.remove("a"), equalTo(1));
+        assertThat(cache.remove("a"), nullValue());
+        assertThat(cache.size(), equalTo(1));
+    }
+
+    @Test
+    public void expirationTest() {
+        final AccessTimeCacheMap<String, Integer> cache =
+                AccessTimeCacheMap.<String, Integer>of(Duration.ofMillis(100)).build();
+        final AtomicInteger counter = new AtomicInteger();
+        cache.getOrCreate("a", counter::incrementAndGet);
+        cache.getOrCreate("b", counter::incrementAndGet);
+        ThreadUtils.sleep(1200, TimeUnit.MILLISECONDS);
+        // Expired entries are never returned, even before the wheel removed them
+        assertThat(cache.getOrCreate("a", counter::incrementAndGet), equalTo(3));
+        cache.cleanUp();
+        assertThat(cache.size(), equalTo(1));
+    }
+
+    @Test
+    public void accessExtendsExpirationTest() {
+        final AccessTimeCacheMap<String, Integer> cache =
+                AccessTimeCacheMap.<String, Integer>of(Duration.ofMillis(500)).build();
+        final AtomicInteger counter = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            assertThat(cache.getOrCreate("a", counter::incrementAndGet), equalTo(1));
+            ThreadUtils.sleep(200, TimeUnit.MILLISECONDS);
+            cache.cleanUp();
+        }
+        assertThat(cache.size(), equalTo(1));
+    }
+
+    @Test
+    public void sweeperTest() {
+        try (final AccessTimeCacheMap<Integer, Integer> cache =
+                     AccessTimeCacheMap.<Integer, Integer>of(Duration.ofMillis(100)).sweeper(1).build()) {
+            for (int i = 0; i < 100; i++)
+                cache.getOrCreate(i, () -> 0);
+            assertThat(cache.size(), equalTo(100));
+            ThreadUtils.sleep(3500, TimeUnit.MILLISECONDS);
+            assertThat(cache.size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void refreshAheadTest() throws InterruptedException {
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+        try (final AccessTimeCacheMap<String, Integer> cache = AccessTimeCacheMap.<String, Integer>of(
+                Duration.ofMinutes(1))
+                .refreshAfterWrite(Duration.ofMillis(100), Duration.ofMinutes(1), executorService)
+                .build()) {
+            final AtomicInteger counter = new AtomicInteger();
+            final CountDownLatch refreshStarted = new CountDownLatch(1);
+            final CountDownLatch refreshRelease = new CountDownLatch(1);
+            assertThat(cache.getOrCreate("a", counter::incrementAndGet), equalTo(1));
+            ThreadUtils.sleep(200, TimeUnit.MILLISECONDS);
+            // The stale value is returned while a single refresh is running
+            for (int i = 0; i < 10; i++)
+                assertThat(cache.getOrCreate("a", () -> {
+                    refreshStarted.countDown();
+                    try {
+                        refreshRelease.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return counter.incrementAndGet();
+                }), equalTo(1));
+            refreshStarted.await();
+            refreshRelease.countDown();
+            while (cache.getOrCreate("a", () -> 0) == 1)
+                ThreadUtils.sleep(10, TimeUnit.MILLISECONDS);
+            assertThat(counter.get(), equalTo(2));
+            assertThat(cache.getOrCreate("a", () -> 0), equalTo(2));
+        } finally {
+            ExecutorUtils.close(executorService, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    @Test
+    public void refreshFailureAndHardTimeOutTest() throws InterruptedException {
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final CountDownLatch failed = new CountDownLatch(1);
+        try (final AccessTimeCacheMap<String, Integer> cache = AccessTimeCacheMap.<String, Integer>of(
+                Duration.ofMinutes(1))
+                .refreshAfterWrite(Duration.ofMillis(100), Duration.ofMillis(500), executorService)
+                .refreshFailureListener((key, e) -> {
+                    failure.set(e);
+                    failed.countDown();
+                })
+                .build()) {
+            assertThat(cache.getOrCreate("a", () -> 1), equalTo(1));
+            ThreadUtils.sleep(200, TimeUnit.MILLISECONDS);
+            // The failed refresh keeps the stale value
+            assertThat(cache.getOrCreate("a", () -> {
+                throw new IllegalStateException("refresh failure");
+            }), equalTo(1));
+            failed.await();
+            assertThat(failure.get(), instanceOf(IllegalStateException.class));
+            assertThat(cache.size(), equalTo(1));
+            // Past the hard time out, the value is computed again synchronously
+            ThreadUtils.sleep(400, TimeUnit.MILLISECONDS);
+            assertThat(cache.getOrCreate("a", () -> 2), equalTo(2));
+        } finally {
+            ExecutorUtils.close(executorService, 1, TimeUnit.MINUTES);
+        }
+    }
+}
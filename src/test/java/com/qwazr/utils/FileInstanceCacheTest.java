@@ -15,8 +15,10 @@
  */
 package com.qwazr.utils;
 
+import com.qwazr.utils.concurrent.ThreadUtils;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -24,6 +26,14 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Created by ekeller on 08/07/2017.
@@ -122,4 +132,100 @@ public class FileInstanceCacheTest {
 	public void writeOnlyErrorTest() throws IOException {
 		writeOnly().get();
 	}
+
+	@Test
+	public void atomicWriteTest() throws IOException {
+		final FileInstanceCache<String> cache =
+				FileInstanceCache.<String>of(cacheFilePath).writer(IOUtils::writeStringToFile).build();
+		cache.set("first");
+		cache.set("second");
+		Assert.assertEquals("second", IOUtils.readFileAsString(cacheFilePath.toFile()));
+		// No temporary file left behind
+		try (final Stream<Path> files = Files.list(cacheFilePath.getParent())) {
+			Assert.assertEquals(0, files.filter(
+					p -> p.getFileName().toString().startsWith(cacheFilePath.getFileName().toString()) &&
+							p.getFileName().toString().endsWith(".tmp")).count());
+		}
+	}
+
+	@Test
+	public void atomicWriteKeepsPermissionsTest() throws IOException {
+		Assume.assumeNotNull(Files.getFileAttributeView(cacheFilePath.getParent(), PosixFileAttributeView.class));
+		final FileInstanceCache<String> cache =
+				FileInstanceCache.<String>of(cacheFilePath).writer(IOUtils::writeStringToFile).build();
+		cache.set("first");
+		final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-rw-r--");
+		Files.setPosixFilePermissions(cacheFilePath, permissions);
+		cache.set("second");
+		Assert.assertEquals(permissions, Files.getPosixFilePermissions(cacheFilePath));
+	}
+
+	@Test
+	public void stalenessWindowTest() throws IOException {
+		IOUtils.writeStringToFile("first", cacheFilePath.toFile());
+		final FileInstanceCache<String> cache = FileInstanceCache.<String>of(cacheFilePath)
+				.reader(IOUtils::readFileAsString)
+				.stalenessWindow(Duration.ofMinutes(1))
+				.build();
+		Assert.assertEquals("first", cache.get());
+		IOUtils.writeStringToFile("second", cacheFilePath.toFile());
+		Files.setLastModifiedTime(cacheFilePath, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		// The file is not checked again during the staleness window
+		Assert.assertEquals("first", cache.get());
+	}
+
+	@Test
+	public void watchTest() throws IOException {
+		final Path directory = Files.createTempDirectory("filecachewatch");
+		final Path path = directory.resolve("cache.txt");
+		try {
+			IOUtils.writeStringToFile("first", path.toFile());
+			try (final FileInstanceCache<String> cache = FileInstanceCache.<String>of(path)
+					.reader(IOUtils::readFileAsString)
+					.watch()
+					.build()) {
+				// The directory is watched when build() returns: a single change is enough
+				IOUtils.writeStringToFile("second", path.toFile());
+				final long end = System.currentTimeMillis() + 30000;
+				while (!"second".equals(cache.get()) && System.currentTimeMillis() < end)
+					ThreadUtils.sleep(50, TimeUnit.MILLISECONDS);
+				Assert.assertEquals("second", cache.get());
+			}
+		} finally {
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	@Test
+	public void watcherEndedTest() throws IOException {
+		final Path directory = Files.createTempDirectory("filecachewatch");
+		final Path path = directory.resolve("cache.txt");
+		try {
+			IOUtils.writeStringToFile("first", path.toFile());
+			try (final FileInstanceCache<String> cache = FileInstanceCache.<String>of(path)
+					.reader(IOUtils::readFileAsString)
+					.watch()
+					.build()) {
+				Assert.assertEquals("first", cache.get());
+				final Consumer<Path> consumer = dir -> {
+				};
+				final DirectoryWatcher watcher =
+						DirectoryWatcher.register(path.toAbsolutePath().getParent(), false, consumer);
+				watcher.unregister(consumer);
+				watcher.close();
+				final long end = System.currentTimeMillis() + 30000;
+				while (watcher.isRunning() && System.currentTimeMillis() < end)
+					ThreadUtils.sleep(50, TimeUnit.MILLISECONDS);
+				Assert.assertFalse(watcher.isRunning());
+				// Without a running watcher, the last modified time is checked again
+				IOUtils.writeStringToFile("second", path.toFile());
+				Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+				Assert.assertEquals("second", cache.get());
+			}
+		} finally {
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(directory);
+		}
+	}
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.WaitFor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CacheInvalidationBusTest {
+
+    private final static CacheSnapshot.Codec<String> STRING_CODEC = CacheSnapshot.Codec.smile(String.class);
+    private final static CacheSnapshot.Codec<Long> LONG_CODEC = CacheSnapshot.Codec.smile(Long.class);
+
+    private final List<CacheInvalidationBus> buses = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        for (int i = 0; i < 3; i++)
+            buses.add(CacheInvalidationBus.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                    .linger(Duration.ofMillis(50))
+                    .build());
+        // Every node knows all the nodes, including itself
+        for (final CacheInvalidationBus bus : buses)
+            for (final CacheInvalidationBus peer : buses)
+                bus.addPeer(peer.getLocalAddress());
+    }
+
+    @After
+    public void cleanup() {
+        buses.forEach(CacheInvalidationBus::close);
+    }
+
+    @Test
+    public void invalidationTest() throws Exception {
+        final List<KeyLockedCache<String, Integer>> caches = new ArrayList<>();
+        final List<CacheInvalidationBus.Topic<String>> topics = new ArrayList<>();
+        final List<LongObjectCache<String>> longCaches = new ArrayList<>();
+        final List<CacheInvalidationBus.Topic<Long>> longTopics = new ArrayList<>();
+        for (final CacheInvalidationBus bus : buses) {
+            final KeyLockedCache<String, Integer> cache = new KeyLockedCache<>(new ConcurrentCacheMap<>(1000));
+            for (int i = 0; i < 500; i++)
+                cache.computeIfAbsent("k" + i, k -> 1);
+            caches.add(cache);
+            topics.add(bus.register("strings", STRING_CODEC, cache::remove));
+            final LongObjectCache<String> longCache = new LongObjectCache<>(100);
+            longCache.put(42L, "answer");
+            longCaches.add(longCache);
+            longTopics.add(bus.register("longs", LONG_CODEC, longCache::remove));
+        }
+
+        // The first node invalidates 200 keys, coalesced in a few datagrams
+        for (int i = 0; i < 200; i++)
+            topics.get(0).invalidate("k" + i);
+        longTopics.get(0).invalidate(42L);
+
+        WaitFor.of().timeOut(TimeUnit.SECONDS, 10).until(() -> caches.get(1).size() == 300 &&
+                caches.get(2).size() == 300 && longCaches.get(1).isEmpty() && longCaches.get(2).isEmpty());
+        assertThat(caches.get(1).computeIfAbsent("k0", k -> 2), equalTo(2));
+        assertThat(caches.get(2).computeIfAbsent("k200", k -> 2), equalTo(1));
+        // The sender ignores its own datagrams
+        assertThat(caches.get(0).size(), equalTo(500));
+        assertThat(longCaches.get(0).get(42L), equalTo("answer"));
+        assertThat(buses.get(0).getSentKeyCount(), equalTo(201L));
+        assertThat(buses.get(0).getSentDatagramCount(), lessThan(20L));
+        assertThat(buses.get(1).getReceivedKeyCount(), equalTo(201L));
+    }
+
+    @Test
+    public void unregisteredTopicTest() throws Exception {
+        final LongObjectCache<String> cache = new LongObjectCache<>(100);
+        cache.put(1L, "one");
+        buses.get(1).register("longs", LONG_CODEC, cache::remove);
+        buses.get(0).register("other", LONG_CODEC, key -> {
+        }).invalidate(1L);
+        WaitFor.of().timeOut(TimeUnit.SECONDS, 10).until(() -> buses.get(1).getReceivedKeyCount() == 1);
+        assertThat(cache.get(1L), equalTo("one"));
+        assertThat(cache.get(2L), nullValue());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.AccessTimeCacheMap;
+import com.qwazr.utils.concurrent.ExecutorUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CacheSnapshotTest {
+
+    private final static CacheSnapshot.Codec<String> KEY_CODEC = CacheSnapshot.Codec.smile(String.class);
+    private final static CacheSnapshot.Codec<OffHeapCacheTest.Item> VALUE_CODEC =
+            CacheSnapshot.Codec.externalizor(OffHeapCacheTest.Item.class);
+
+    private ExecutorService executorService;
+    private Path file;
+
+    @Before
+    public void setup() throws IOException {
+        executorService = Executors.newFixedThreadPool(4);
+        file = Files.createTempDirectory("cache-snapshot").resolve("snapshot");
+    }
+
+    @After
+    public void cleanup() throws InterruptedException, IOException {
+        ExecutorUtils.close(executorService, 1, TimeUnit.MINUTES);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.getParent());
+    }
+
+    @Test
+    public void cacheMapTest() throws IOException, ExecutionException, InterruptedException {
+        final CacheMap<String, OffHeapCacheTest.Item> cache = new CacheMap<>(1000);
+        for (int i = 0; i < 1000; i++)
+            cache.put("k" + i, new OffHeapCacheTest.Item("item" + i, i % 10));
+        // Only the 600 most recently inserted entries are kept
+        assertThat(cache.dumpSnapshot(file, 600, KEY_CODEC, VALUE_CODEC), equalTo(600));
+
+        final CacheMap<String, OffHeapCacheTest.Item> restored = new CacheMap<>(1000);
+        assertThat(restored.restoreSnapshot(file, KEY_CODEC, VALUE_CODEC, executorService).get(), equalTo(600));
+        assertThat(restored.size(), equalTo(600));
+        assertThat(restored.get("k399"), nullValue());
+        for (int i = 400; i < 1000; i++)
+            assertThat(restored.get("k" + i), equalTo(cache.get("k" + i)));
+    }
+
+    @Test
+    public void cacheMapOrderTest() throws IOException, ExecutionException, InterruptedException {
+        final CacheMap<Integer, Integer> cache = new CacheMap<>(2000);
+        for (int i = 1; i <= 2000; i++)
+            cache.put(i, i);
+        final CacheSnapshot.Codec<Integer> codec = CacheSnapshot.Codec.smile(Integer.class);
+        assertThat(cache.dumpSnapshot(file, 2000, codec, codec), equalTo(2000));
+        // A smaller cache keeps the most recently inserted entries, across several batches
+        final CacheMap<Integer, Integer> smaller = new CacheMap<>(1000);
+        assertThat(smaller.restoreSnapshot(file, codec, codec, executorService).get(), equalTo(2000));
+        assertThat(new ArrayList<>(smaller.keySet()),
+                equalTo(IntStream.rangeClosed(1001, 2000).boxed().collect(Collectors.toList())));
+        // The insertion order is kept: the next insertion evicts the eldest entry
+        final CacheMap<Integer, Integer> restored = new CacheMap<>(2000);
+        restored.restoreSnapshot(file, codec, codec, executorService).get();
+        restored.put(2001, 2001);
+        assertThat(restored.containsKey(1), equalTo(false));
+        assertThat(restored.containsKey(2000), equalTo(true));
+    }
+
+    @Test
+    public void keyLockedCacheTest() throws IOException, ExecutionException, InterruptedException {
+        final KeyLockedCache<String, OffHeapCacheTest.Item> cache = KeyLockedCache.<String, OffHeapCacheTest.Item>of()
+                .maximumSize(1000)
+                .build();
+        for (int i = 0; i < 500; i++)
+            cache.computeIfAbsent("k" + i, k -> new OffHeapCacheTest.Item(k, 5));
+        assertThat(cache.dumpSnapshot(file, 1000, KEY_CODEC, VALUE_CODEC), equalTo(500));
+
+        final KeyLockedCache<String, OffHeapCacheTest.Item> restored = new KeyLockedCache<>(new CacheMap<>(1000));
+        final OffHeapCacheTest.Item fresh = new OffHeapCacheTest.Item("fresh", 1);
+        restored.computeIfAbsent("k0", k -> fresh);
+        assertThat(restored.restoreSnapshot(file, KEY_CODEC, VALUE_CODEC, executorService).get(), equalTo(500));
+        assertThat(restored.size(), equalTo(500));
+        // The restore never replaces a value loaded in the meantime
+        assertThat(restored.computeIfAbsent("k0", k -> null), equalTo(fresh));
+        for (int i = 1; i < 500; i++)
+            assertThat(restored.computeIfAbsent("k" + i, k -> null), equalTo(new OffHeapCacheTest.Item("k" + i, 5)));
+        assertThat(restored.getLoadCount(), equalTo(1L));
+    }
+
+    @Test
+    public void accessTimeCacheMapTest() throws IOException, ExecutionException, InterruptedException {
+        try (final AccessTimeCacheMap<String, OffHeapCacheTest.Item> cache = new AccessTimeCacheMap<>(60)) {
+            for (int i = 0; i < 10; i++)
+                cache.getOrCreate("k" + i, () -> new OffHeapCacheTest.Item("item", 2));
+            // The most recently accessed entries are kept
+            cache.getOrCreate("k0", () -> null);
+            cache.getOrCreate("k1", () -> null);
+            assertThat(cache.dumpSnapshot(file, 2, KEY_CODEC, CacheSnapshot.Codec.smile(OffHeapCacheTest.Item.class)),
+                    equalTo(2));
+        }
+        try (final AccessTimeCacheMap<String, OffHeapCacheTest.Item> restored =
+                     AccessTimeCacheMap.<String, OffHeapCacheTest.Item>of(Duration.ofMinutes(1)).build()) {
+            assertThat(restored.restoreSnapshot(file, KEY_CODEC,
+                    CacheSnapshot.Codec.smile(OffHeapCacheTest.Item.class), executorService).get(), equalTo(2));
+            assertThat(restored.size(), equalTo(2));
+            assertThat(restored.getOrCreate("k0", () -> null), equalTo(new OffHeapCacheTest.Item("item", 2)));
+            assertThat(restored.getOrCreate("k1", () -> null), equalTo(new OffHeapCacheTest.Item("item", 2)));
+            assertThat(restored.getHitCount(), equalTo(2L));
+        }
+    }
+
+    @Test
+    public void notASnapshotTest() throws IOException, InterruptedException {
+        Files.write(file, new byte[]{1, 2, 3, 4, 5});
+        try {
+            new CacheMap<String, OffHeapCacheTest.Item>(10).restoreSnapshot(file, KEY_CODEC, VALUE_CODEC,
+                    executorService).get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IOException, equalTo(true));
+        }
+    }
+
+    @Test
+    public void failedDumpTest() throws IOException {
+        final CacheSnapshot.Codec<String> failingCodec = new CacheSnapshot.Codec<String>() {
+
+            @Override
+            public byte[] encode(final String object) throws IOException {
+                throw new IOException("encode failure");
+            }
+
+            @Override
+            public String decode(final byte[] bytes) {
+                return null;
+            }
+        };
+        try {
+            CacheSnapshot.dump(file, Collections.singletonMap("key", "value").entrySet(), 10, KEY_CODEC,
+                    failingCodec);
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("encode failure"));
+        }
+        // Neither the snapshot nor its temporary file are left behind
+        try (final Stream<Path> files = Files.list(file.getParent())) {
+            assertThat(files.count(), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void rejectedRestoreTest() throws IOException, InterruptedException {
+        CacheSnapshot.dump(file, Collections.singletonMap("key", "value").entrySet(), 10, KEY_CODEC, KEY_CODEC);
+        final CompletableFuture<Integer> future = CacheSnapshot.restore(file, KEY_CODEC, KEY_CODEC, (k, v) -> {
+        }, command -> {
+            throw new RejectedExecutionException("rejected");
+        });
+        try {
+            future.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof RejectedExecutionException, equalTo(true));
+        }
+    }
+}
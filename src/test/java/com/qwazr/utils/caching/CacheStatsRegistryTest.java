@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.qwazr.utils.AccessTimeCacheMap;
+import com.qwazr.utils.CollectionsUtils;
+import com.qwazr.utils.ObjectMappers;
+import com.qwazr.utils.XPathParser;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CacheStatsRegistryTest {
+
+    private static void feed(final Map<String, Integer> map) {
+        for (int i = 0; i < 20; i++)
+            map.put("k" + i, i);
+        map.get("k19");
+        map.get("k0");
+        map.computeIfAbsent("k19", k -> 0);
+        map.computeIfAbsent("new", k -> 0);
+    }
+
+    private static void check(final CacheStats stats) {
+        assertThat(stats.getSize(), equalTo(10L));
+        assertThat(stats.getHitCount(), equalTo(2L));
+        assertThat(stats.getMissCount(), equalTo(2L));
+        assertThat(stats.getHitRate(), equalTo(0.5));
+        assertThat(stats.getMissRate(), equalTo(0.5));
+        assertThat(stats.getEvictionCount(), equalTo(11L));
+        assertThat(stats.getLoadCount(), equalTo(1L));
+    }
+
+    @Test
+    public void mapsTest() {
+        final CacheMap<String, Integer> cacheMap = new CacheMap<>(10);
+        feed(cacheMap);
+        check(cacheMap);
+        final CollectionsUtils.EldestFixedSizeMap<String, Integer> eldestMap =
+                new CollectionsUtils.EldestFixedSizeMap<>(10);
+        feed(eldestMap);
+        check(eldestMap);
+    }
+
+    @Test
+    public void otherCachesTest() throws Exception {
+        final KeyLockedCache<String, Integer> keyLockedCache = KeyLockedCache.<String, Integer>of()
+                .maximumSize(100)
+                .build();
+        keyLockedCache.computeIfAbsent("a", k -> 1);
+        keyLockedCache.computeIfAbsent("a", k -> 1);
+        assertThat(keyLockedCache.getHitCount(), equalTo(1L));
+        assertThat(keyLockedCache.getMissCount(), equalTo(1L));
+        assertThat(keyLockedCache.getLoadCount(), equalTo(1L));
+        assertThat(keyLockedCache.getSize(), equalTo(1L));
+
+        final AccessTimeCacheMap<String, Integer> accessTimeCacheMap = new AccessTimeCacheMap<>(60);
+        accessTimeCacheMap.getOrCreate("a", () -> 1);
+        accessTimeCacheMap.getOrCreate("a", () -> 1);
+        assertThat(accessTimeCacheMap.getHitRate(), equalTo(0.5));
+        assertThat(accessTimeCacheMap.getLoadCount(), equalTo(1L));
+
+        final XPathParser xPathParser = new XPathParser();
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        document.appendChild(document.createElement("root"));
+        xPathParser.evaluateString(document, "/root");
+        xPathParser.evaluateString(document, "/root");
+        assertThat(xPathParser.getExpressionCacheStats().getSize(), equalTo(1L));
+        assertThat(xPathParser.getExpressionCacheStats().getHitCount(), equalTo(1L));
+        assertThat(xPathParser.getExpressionCacheStats().getLoadCount(), equalTo(1L));
+    }
+
+    @Test
+    public void registryTest() throws JMException, IOException {
+        final CacheStatsRegistry registry = new CacheStatsRegistry("com.qwazr.utils.caching.test");
+        final CacheMap<String, Integer> cacheMap = new CacheMap<>(10);
+        feed(cacheMap);
+        registry.register("cache-map", cacheMap);
+        registry.register("empty", new ConcurrentCacheMap<>(10));
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = registry.getObjectName("cache-map");
+        assertThat(mBeanServer.getAttribute(objectName, "HitCount"), equalTo(2L));
+        assertThat(mBeanServer.getAttribute(objectName, "HitRate"), equalTo(0.5));
+        assertThat(mBeanServer.getAttribute(objectName, "Size"), equalTo(10L));
+
+        final Map<String, CacheStats.Snapshot> snapshots = ObjectMappers.JSON.readValue(registry.toJson(),
+                new TypeReference<Map<String, CacheStats.Snapshot>>() {
+                });
+        assertThat(snapshots, equalTo(registry.getSnapshots()));
+        assertThat(snapshots.get("cache-map"), equalTo(CacheStats.Snapshot.of(cacheMap)));
+        assertThat(snapshots.get("empty").hitRate, equalTo(1.0));
+
+        assertThat(registry.unregister("cache-map"), equalTo(true));
+        assertThat(registry.unregister("cache-map"), equalTo(false));
+        assertThat(mBeanServer.isRegistered(objectName), equalTo(false));
+        assertThat(registry.get("cache-map"), nullValue());
+        registry.unregister("empty");
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.concurrent.ExecutorUtils;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentCacheMapTest {
+
+    @Test
+    public void maxSizeTest() {
+        final ConcurrentCacheMap<String, Integer> cache = new ConcurrentCacheMap<>(10);
+        assertThat(cache.getMaxSize(), equalTo(10));
+        for (int i = 1; i <= 10; i++) {
+            cache.put("k" + i, i);
+            assertThat(cache.size(), equalTo(i));
+            assertThat(cache.get("k" + i), equalTo(i));
+        }
+        for (int i = 11; i <= 100; i++) {
+            cache.put("k" + i, i);
+            assertThat(cache.size(), equalTo(10));
+        }
+    }
+
+    @Test
+    public void mapOperationsTest() {
+        final ConcurrentCacheMap<String, Integer> cache = new ConcurrentCacheMap<>(100);
+        assertThat(cache.putIfAbsent("a", 1), nullValue());
+        assertThat(cache.putIfAbsent("a", 2), equalTo(1));
+        assertThat(cache.put("a", 3), equalTo(1));
+        assertThat(cache.replace("a", 4), equalTo(3));
+        assertThat(cache.replace("a", 3, 5), equalTo(false));
+        assertThat(cache.replace("a", 4, 5), equalTo(true));
+        assertThat(cache.computeIfAbsent("b", k -> 6), equalTo(6));
+        assertThat(cache.computeIfAbsent("b", k -> 7), equalTo(6));
+        assertThat(cache.keySet().size(), equalTo(2));
+        assertThat(cache.remove("a", 4), equalTo(false));
+        assertThat(cache.remove("a", 5), equalTo(true));
+        assertThat(cache.remove("b"), equalTo(6));
+        assertThat(cache.isEmpty(), equalTo(true));
+        for (int i = 0; i < 50; i++)
+            cache.put("k" + i, i);
+        cache.clear();
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void concurrentWritesTest() throws InterruptedException, ExecutionException {
+        final ConcurrentCacheMap<Integer, Integer> cache = new ConcurrentCacheMap<>(1000, 8);
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int seed = t;
+                futures.add(executorService.submit(() -> {
+                    final Random random = new Random(seed);
+                    for (int i = 0; i < 100_000; i++) {
+                        final int key = random.nextInt(10_000);
+                        if (cache.get(key) == null)
+                            cache.put(key, key);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            ExecutorUtils.close(executorService, 1, TimeUnit.MINUTES);
+        }
+        assertThat(cache.size(), lessThanOrEqualTo(1000));
+        cache.forEach((key, value) -> assertThat(key, equalTo(value)));
+    }
+
+    /**
+     * Build the cumulative distribution of a Zipfian law
+     */
+    private static double[] zipf(final int items, final double exponent) {
+        final double[] cdf = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1.0d / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < items; i++)
+            cdf[i] /= sum;
+        return cdf;
+    }
+
+    private static double hitRatio(final Map<Integer, Integer> cache, final double[] cdf, final int operations) {
+        final Random random = new Random(1234);
+        int hits = 0;
+        for (int i = 0; i < operations; i++) {
+            int key = Arrays.binarySearch(cdf, random.nextDouble());
+            if (key < 0)
+                key = -key - 1;
+            if (cache.get(key) != null)
+                hits++;
+            else
+                cache.put(key, key);
+        }
+        return (double) hits / operations;
+    }
+
+    @Test
+    public void zipfianHitRatioTest() {
+        final double[] cdf = zipf(50_000, 0.9);
+        final double tinyLfu = hitRatio(new ConcurrentCacheMap<>(500), cdf, 500_000);
+        final double lru = hitRatio(new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Integer> eldest) {
+                return size() > 500;
+            }
+        }, cdf, 500_000);
+        final double fifo = hitRatio(new CacheMap<>(500), cdf, 500_000);
+        assertThat(tinyLfu, greaterThan(lru));
+        assertThat(tinyLfu, greaterThan(fifo));
+    }
+
+    @Test
+    public void evictionListenerTest() throws InterruptedException {
+        final AtomicReference<ConcurrentCacheMap<Integer, Integer>> cache = new AtomicReference<>();
+        final AtomicReference<Thread> writer = new AtomicReference<>();
+        final List<Integer> evicted = new CopyOnWriteArrayList<>();
+        final List<Boolean> blocked = new CopyOnWriteArrayList<>();
+        cache.set(ConcurrentCacheMap.<Integer, Integer>of()
+                .maximumSize(1)
+                .concurrencyLevel(1)
+                .evictionListener((key, value, cause) -> {
+                    evicted.add(key);
+                    if (writer.get() != null)
+                        return;
+                    // A write on the key waits for the end of the notification
+                    writer.set(new Thread(() -> cache.get().put(key, 10)));
+                    writer.get().start();
+                    try {
+                        writer.get().join(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    blocked.add(writer.get().isAlive());
+                })
+                .build());
+        cache.get().put(1, 1);
+        cache.get().put(2, 2);
+        writer.get().join();
+        assertThat(blocked, equalTo(Arrays.asList(true)));
+        assertThat(evicted.get(0), equalTo(1));
+        assertThat(cache.get().size(), equalTo(1));
+    }
+
+    @Test
+    public void maximumWeightTest() {
+        final List<String> evicted = new ArrayList<>();
+        final ConcurrentCacheMap<String, String> cache = ConcurrentCacheMap.<String, String>of()
+                .maximumWeight(100, (key, value) -> value.length())
+                .removalListener((key, value, cause) -> evicted.add(key))
+                .build();
+        assertThat(cache.getMaxSize(), equalTo(-1));
+        assertThat(cache.getMaxWeight(), equalTo(100L));
+        for (int i = 0; i < 20; i++)
+            cache.put("k" + i, "0123456789");
+        assertThat(cache.getWeightedSize(), lessThanOrEqualTo(100L));
+        assertThat(cache.size(), equalTo(10));
+        assertThat(evicted.size(), equalTo(10));
+        cache.put("big", new String(new char[60]));
+        assertThat(cache.getWeightedSize(), lessThanOrEqualTo(100L));
+    }
+
+    @Test
+    public void computeIfAbsentOutOfLockTest() throws InterruptedException, ExecutionException, TimeoutException {
+        // A single segment: a loader holding the segment lock would block the writer thread
+        final ConcurrentCacheMap<String, Integer> cache = new ConcurrentCacheMap<>(100, 1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(cache.computeIfAbsent("a", key -> {
+                try {
+                    executor.submit(() -> cache.put("b", 2)).get(10, TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    throw new IllegalStateException(e);
+                }
+                return 1;
+            }), equalTo(1));
+        } finally {
+            ExecutorUtils.close(executor, 1, TimeUnit.MINUTES);
+        }
+        assertThat(cache.get("b"), equalTo(2));
+        // The first stored value wins over a concurrent load
+        assertThat(cache.computeIfAbsent("c", key -> {
+            cache.put("c", 3);
+            return 4;
+        }), equalTo(3));
+        assertThat(cache.get("c"), equalTo(3));
+    }
+
+    @Test
+    public void expirationTest() {
+        final AtomicLong time = new AtomicLong();
+        final List<RemovalListener.Cause> causes = new ArrayList<>();
+        final ConcurrentCacheMap<String, Integer> cache = ConcurrentCacheMap.<String, Integer>of()
+                .maximumSize(100)
+                .expireAfterWrite(Duration.ofNanos(100))
+                .expireAfterAccess(Duration.ofNanos(50))
+                .ticker(time::get)
+                .removalListener((key, value, cause) -> causes.add(cause))
+                .build();
+        cache.put("write", 1);
+        cache.put("access", 2);
+        time.set(40);
+        assertThat(cache.get("write"), equalTo(1));
+        assertThat(cache.get("access"), equalTo(2));
+        time.set(80);
+        assertThat(cache.get("write"), equalTo(1));
+        assertThat(cache.containsKey("access"), equalTo(true));
+        time.set(100);
+        assertThat(cache.get("write"), nullValue());
+        assertThat(cache.get("access"), nullValue());
+        // The expired entries are still counted by the map until the maintenance, not by the entry set
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.entrySet().size(), equalTo(0));
+        assertThat(cache.entrySet().iterator().hasNext(), equalTo(false));
+        cache.cleanUp();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(causes, equalTo(Arrays.asList(RemovalListener.Cause.EXPIRED, RemovalListener.Cause.EXPIRED)));
+        cache.put("replaced", 3);
+        cache.put("replaced", 4);
+        cache.remove("replaced");
+        assertThat(causes.subList(2, 4),
+                equalTo(Arrays.asList(RemovalListener.Cause.REPLACED, RemovalListener.Cause.EXPLICIT)));
+    }
+}
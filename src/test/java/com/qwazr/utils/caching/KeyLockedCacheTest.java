@@ -17,27 +17,39 @@ package com.qwazr.utils.caching;
 
 import com.qwazr.utils.RandomUtils;
 import com.qwazr.utils.concurrent.ExecutorUtils;
+import com.qwazr.utils.concurrent.TaskPool;
 import com.qwazr.utils.concurrent.ThreadUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class KeyLockedCacheTest {
 
@@ -116,4 +128,160 @@ public class KeyLockedCacheTest {
         assertThat(cache.size(), equalTo(10));
     }
 
+    @Test
+    public void keyLockedCacheSingleFlightTest() throws InterruptedException, ExecutionException {
+        final KeyLockedCache<String, Integer> cache = new KeyLockedCache<>(new ConcurrentCacheMap<>(10));
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++)
+            futures.add(executorService.submit(() -> {
+                latch.await();
+                return cache.computeIfAbsent("key", k -> {
+                    ThreadUtils.sleep(200, TimeUnit.MILLISECONDS);
+                    return loads.incrementAndGet();
+                });
+            }));
+        latch.countDown();
+        for (Future<Integer> future : futures)
+            assertThat(future.get(), equalTo(1));
+        assertThat(loads.get(), equalTo(1));
+        assertThat(cache.getCurrentActiveKeys(), equalTo(0));
+        assertThat(cache.getMaxActiveKeys(), equalTo(1));
+    }
+
+    @Test
+    public void keyLockedCacheLoaderExceptionTest() {
+        final KeyLockedCache<String, Integer> cache = new KeyLockedCache<>(new CacheMap<>(10));
+        try {
+            cache.computeIfAbsent("key", k -> {
+                throw new IllegalStateException("loader failure");
+            });
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("loader failure"));
+        }
+        assertThat(cache.getCurrentActiveKeys(), equalTo(0));
+        assertThat(cache.computeIfAbsent("key", k -> 1), equalTo(1));
+    }
+
+    @Test(timeout = 10000)
+    public void keyLockedCacheRecursiveLoadTest() {
+        final KeyLockedCache<String, Integer> cache = new KeyLockedCache<>(new CacheMap<>(10));
+        try {
+            cache.computeIfAbsent("key", k -> cache.computeIfAbsent("key", k2 -> 1));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("Recursive load of the key: key"));
+        }
+        // Loading another key is allowed, and the failed key can be loaded again
+        assertThat(cache.computeIfAbsent("key", k -> cache.computeIfAbsent("other", k2 -> 2) + 1), equalTo(3));
+        assertThat(cache.getCurrentActiveKeys(), equalTo(0));
+    }
+
+    @Test
+    public void keyLockedCacheAsyncTest() throws InterruptedException, ExecutionException {
+        final KeyLockedCache<String, Integer> cache = new KeyLockedCache<>(new CacheMap<>(10));
+        final AtomicInteger loads = new AtomicInteger();
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        try (final TaskPool taskPool = TaskPool.of(executorService, 4)) {
+            for (int i = 0; i < 10; i++)
+                futures.add(cache.computeIfAbsentAsync("key", k -> taskPool.submit(() -> {
+                    ThreadUtils.sleep(500, TimeUnit.MILLISECONDS);
+                    return loads.incrementAndGet();
+                })));
+            for (CompletableFuture<Integer> future : futures)
+                assertThat(future.get(), equalTo(1));
+        }
+        assertThat(loads.get(), equalTo(1));
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.computeIfAbsentAsync("key", k -> CompletableFuture.completedFuture(2)).get(), equalTo(1));
+        assertThat(cache.getCurrentActiveKeys(), equalTo(0));
+    }
+
+    @Test
+    public void keyLockedCacheBuilderStatsTest() {
+        final List<RemovalListener.Cause> causes = new ArrayList<>();
+        final KeyLockedCache<Integer, Integer> cache = KeyLockedCache.<Integer, Integer>of()
+                .maximumSize(10)
+                .expireAfterWrite(Duration.ofMinutes(1))
+                .removalListener((key, value, cause) -> {
+                    synchronized (causes) {
+                        causes.add(cause);
+                    }
+                })
+                .build();
+        for (int i = 0; i < 20; i++)
+            assertThat(cache.computeIfAbsent(i, k -> k * 2), equalTo(i * 2));
+        for (int i = 0; i < 20; i++)
+            cache.computeIfAbsent(19, k -> 0);
+        assertThat(cache.size(), equalTo(10));
+
+        final KeyLockedCache.Stats stats = cache.getStats();
+        assertThat(stats.getHitCount(), equalTo(20L));
+        assertThat(stats.getMissCount(), equalTo(20L));
+        assertThat(stats.getLoadCount(), equalTo(20L));
+        assertThat(stats.getLoadFailureCount(), equalTo(0L));
+        assertThat(stats.getHitRate(), equalTo(0.5));
+        assertThat(stats.getEvictionCount(), equalTo(10L));
+        assertThat(stats.getTotalLoadTime(), greaterThan(0L));
+        assertThat(stats.getP99LoadTime(), lessThanOrEqualTo(stats.getTotalLoadTime()));
+        synchronized (causes) {
+            assertThat(causes.size(), equalTo(10));
+            causes.forEach(cause -> assertThat(cause, equalTo(RemovalListener.Cause.SIZE)));
+        }
+    }
+
+    @Test
+    public void keyLockedCacheExpirationTest() {
+        final KeyLockedCache<String, Integer> cache = KeyLockedCache.<String, Integer>of()
+                .expireAfterAccess(Duration.ofMillis(200))
+                .build();
+        final AtomicInteger loads = new AtomicInteger();
+        assertThat(cache.computeIfAbsent("key", k -> loads.incrementAndGet()), equalTo(1));
+        assertThat(cache.computeIfAbsent("key", k -> loads.incrementAndGet()), equalTo(1));
+        ThreadUtils.sleep(400, TimeUnit.MILLISECONDS);
+        assertThat(cache.computeIfAbsent("key", k -> loads.incrementAndGet()), equalTo(2));
+        assertThat(cache.getStats().getEvictionCount(), equalTo(1L));
+    }
+
+    @Test
+    public void keyLockedCacheGetAllTest() throws InterruptedException, ExecutionException {
+        final KeyLockedCache<String, Integer> cache = new KeyLockedCache<>(new ConcurrentCacheMap<>(100));
+        cache.computeIfAbsent("hit", k -> 0);
+
+        // A slow single load of the key "flight" is running while the batch is executed
+        final CountDownLatch loading = new CountDownLatch(1);
+        final Future<Integer> flight = executorService.submit(() -> cache.computeIfAbsent("flight", k -> {
+            loading.countDown();
+            ThreadUtils.sleep(300, TimeUnit.MILLISECONDS);
+            return 10;
+        }));
+        loading.await();
+
+        final List<Set<String>> batches = new ArrayList<>();
+        final Map<String, Integer> values = cache.getAll(Arrays.asList("a", "hit", "flight", "b", "a", "none"), keys -> {
+            batches.add(keys);
+            final Map<String, Integer> loaded = new HashMap<>();
+            keys.stream().filter(key -> !key.equals("none")).forEach(key -> loaded.put(key, key.length()));
+            return loaded;
+        });
+
+        assertThat(batches.size(), equalTo(1));
+        assertThat(batches.get(0), containsInAnyOrder("a", "b", "none"));
+        assertThat(values.keySet(), contains("a", "hit", "flight", "b"));
+        assertThat(values.get("hit"), equalTo(0));
+        assertThat(values.get("flight"), equalTo(10));
+        assertThat(values.get("a"), equalTo(1));
+        assertThat(flight.get(), equalTo(10));
+        assertThat(cache.getCurrentActiveKeys(), equalTo(0));
+
+        // Everything but the missing key is now served from the cache
+        final Map<String, Integer> cached = cache.getAll(Arrays.asList("a", "b", "flight"), keys -> {
+            fail("No load expected");
+            return null;
+        });
+        assertThat(cached.size(), equalTo(3));
+    }
+
 }
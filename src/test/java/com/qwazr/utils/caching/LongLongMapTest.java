@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class LongLongMapTest {
+
+    @Test
+    public void randomOperationsTest() {
+        final LongLongMap map = LongLongMap.of().concurrencyLevel(4).build();
+        final Map<Long, Long> reference = new HashMap<>();
+        final Random random = new Random(4321);
+        for (int i = 0; i < 200_000; i++) {
+            final long key = random.nextLong() % 3000;
+            switch (random.nextInt(3)) {
+                case 0:
+                    map.put(key, i);
+                    reference.put(key, (long) i);
+                    break;
+                case 1:
+                    assertThat(map.remove(key), equalTo(reference.remove(key) != null));
+                    break;
+                default:
+                    assertThat(map.getOrDefault(key, -1), equalTo(reference.getOrDefault(key, -1L)));
+                    break;
+            }
+        }
+        assertThat(map.size(), equalTo(reference.size()));
+        reference.forEach((key, value) -> assertThat(map.getOrDefault(key, -1), equalTo((long) value)));
+    }
+
+    @Test
+    public void boundedTest() {
+        final LongLongMap map = new LongLongMap(1000);
+        for (long i = 0; i < 10_000; i++)
+            assertThat(map.computeIfAbsent(i, key -> key * key), equalTo(i * i));
+        assertThat(map.size(), equalTo(1000));
+        assertThat(map.getLoadCount(), equalTo(10_000L));
+        assertThat(map.getEvictionCount(), equalTo(9_000L));
+        map.clear();
+        assertThat(map.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void nestedComputeIfAbsentTest() {
+        final LongLongMap map = new LongLongMap(100);
+        // The value stored by the nested call is kept, the key is stored once
+        assertThat(map.computeIfAbsent(7, key -> map.computeIfAbsent(7, k -> 1) + 1), equalTo(1L));
+        assertThat(map.size(), equalTo(1));
+        assertThat(map.remove(7), equalTo(true));
+        assertThat(map.getOrDefault(7, -1), equalTo(-1L));
+        assertThat(map.size(), equalTo(0));
+    }
+
+    @Test
+    public void putThenGetOnFullMapTest() {
+        final LongLongMap map = LongLongMap.of().maximumSize(1000).concurrencyLevel(1).build();
+        for (long i = 0; i < 1000; i++)
+            for (int j = 0; j < 3; j++)
+                map.computeIfAbsent(i, key -> key);
+        for (long i = 5000; i < 6000; i++) {
+            map.put(i, i * 2);
+            assertThat(map.getOrDefault(i, -1), equalTo(i * 2));
+        }
+        assertThat(map.size(), equalTo(1000));
+    }
+
+    @Test
+    public void expireAfterWriteTest() {
+        final AtomicLong ticker = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        final LongLongMap map = LongLongMap.of()
+                .expireAfterWrite(Duration.ofSeconds(10))
+                .ticker(ticker::get)
+                .removalListener((key, value, cause) -> {
+                    if (cause == RemovalListener.Cause.EXPIRED)
+                        expired.addAndGet(value);
+                })
+                .build();
+        map.put(1, 10);
+        map.put(2, 20);
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        map.put(2, 30);
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        assertThat(map.containsKey(1), equalTo(false));
+        assertThat(map.getOrDefault(2, 0), equalTo(30L));
+        assertThat(expired.get(), equalTo(10L));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.concurrent.ExecutorUtils;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class LongObjectCacheTest {
+
+    @Test
+    public void maxSizeTest() {
+        final LongObjectCache<String> cache = new LongObjectCache<>(10);
+        assertThat(cache.getMaxSize(), equalTo(10));
+        for (long i = 1; i <= 10; i++) {
+            cache.put(i, "v" + i);
+            assertThat(cache.size(), equalTo((int) i));
+            assertThat(cache.get(i), equalTo("v" + i));
+        }
+        for (long i = 11; i <= 100; i++) {
+            cache.put(i, "v" + i);
+            assertThat(cache.size(), equalTo(10));
+        }
+        assertThat(cache.getEvictionCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void putThenGetOnFullCacheTest() {
+        final LongObjectCache<String> cache = LongObjectCache.<String>of().maximumSize(100).concurrencyLevel(1).build();
+        for (long i = 0; i < 100; i++)
+            for (int j = 0; j < 3; j++)
+                cache.computeIfAbsent(i, key -> "v" + key);
+        assertThat(cache.size(), equalTo(100));
+        // A new key enters the admission window, even if the cached keys are more frequent
+        for (long i = 1000; i < 1100; i++) {
+            cache.put(i, "v" + i);
+            assertThat(cache.get(i), equalTo("v" + i));
+            assertThat(cache.size(), equalTo(100));
+        }
+    }
+
+    @Test
+    public void maximumWeightTest() {
+        final LongObjectCache<String> cache = LongObjectCache.<String>of()
+                .maximumWeight(100, (key, value) -> value.length())
+                .concurrencyLevel(1)
+                .build();
+        assertThat(cache.getMaxSize(), equalTo(-1));
+        assertThat(cache.getMaxWeight(), equalTo(100L));
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, "0123456789".substring(0, (int) (i % 10) + 1));
+            assertThat(cache.getWeightedSize(), lessThanOrEqualTo(100L));
+        }
+        cache.put(1L, "0123456789");
+        cache.put(1L, "01234567890123456789");
+        assertThat(cache.get(1L), equalTo("01234567890123456789"));
+        assertThat(cache.getWeightedSize(), lessThanOrEqualTo(100L));
+        // Heavier than the whole cache
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= 100; i++)
+            sb.append('x');
+        cache.put(2L, sb.toString());
+        assertThat(cache.containsKey(2L), equalTo(false));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void maximumSizeAndWeightTest() {
+        LongObjectCache.<String>of().maximumSize(10).maximumWeight(10, (key, value) -> 1).build();
+    }
+
+    @Test
+    public void unboundedRandomOperationsTest() {
+        final LongObjectCache<Long> cache = LongObjectCache.<Long>of().concurrencyLevel(1).build();
+        final Map<Long, Long> reference = new HashMap<>();
+        final Random random = new Random(1234);
+        for (int i = 0; i < 200_000; i++) {
+            // Negative and colliding keys included
+            final long key = random.nextInt(5000) - 2500L;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertThat(cache.put(key, (long) i), equalTo(reference.put(key, (long) i)));
+                    break;
+                case 1:
+                    assertThat(cache.remove(key), equalTo(reference.remove(key)));
+                    break;
+                default:
+                    assertThat(cache.get(key), equalTo(reference.get(key)));
+                    break;
+            }
+        }
+        assertThat(cache.size(), equalTo(reference.size()));
+        reference.forEach((key, value) -> assertThat(cache.get(key), equalTo(value)));
+        cache.clear();
+        assertThat(cache.isEmpty(), equalTo(true));
+        assertThat(cache.get(reference.keySet().iterator().next()), nullValue());
+    }
+
+    @Test
+    public void computeIfAbsentTest() {
+        final LongObjectCache<String> cache = new LongObjectCache<>(100);
+        assertThat(cache.computeIfAbsent(1L, Long::toString), equalTo("1"));
+        assertThat(cache.computeIfAbsent(1L, key -> "other"), equalTo("1"));
+        assertThat(cache.computeIfAbsent(2L, key -> null), nullValue());
+        assertThat(cache.containsKey(2L), equalTo(false));
+        assertThat(cache.putIfAbsent(1L, "other"), equalTo("1"));
+        assertThat(cache.getHitCount(), equalTo(1L));
+        assertThat(cache.getMissCount(), equalTo(2L));
+        assertThat(cache.getLoadCount(), equalTo(2L));
+    }
+
+    @Test
+    public void nestedComputeIfAbsentTest() {
+        final LongObjectCache<String> cache = new LongObjectCache<>(100);
+        // The value stored by the nested call is kept, the key is stored once
+        assertThat(cache.computeIfAbsent(7L, key -> cache.computeIfAbsent(7L, k -> "inner") + "-outer"),
+                equalTo("inner"));
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.get(7L), equalTo("inner"));
+        cache.remove(7L);
+        assertThat(cache.get(7L), nullValue());
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void expirationTest() {
+        final AtomicLong ticker = new AtomicLong();
+        final List<RemovalListener.Cause> causes = new ArrayList<>();
+        final LongObjectCache<String> cache = LongObjectCache.<String>of()
+                .expireAfterAccess(Duration.ofSeconds(10))
+                .ticker(ticker::get)
+                .removalListener((key, value, cause) -> causes.add(cause))
+                .build();
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        assertThat(cache.get(1L), equalTo("one"));
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        assertThat(cache.get(1L), equalTo("one"));
+        assertThat(cache.get(2L), nullValue());
+        cache.put(1L, "uno");
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        cache.cleanUp();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(causes.size(), equalTo(3));
+        assertThat(causes.get(0), equalTo(RemovalListener.Cause.EXPIRED));
+        assertThat(causes.get(1), equalTo(RemovalListener.Cause.REPLACED));
+        assertThat(causes.get(2), equalTo(RemovalListener.Cause.EXPIRED));
+    }
+
+    @Test
+    public void frequentKeysSurviveScanTest() {
+        final LongObjectCache<Long> cache = LongObjectCache.<Long>of().maximumSize(100).concurrencyLevel(1).build();
+        // The frequent keys are not flushed by the scans of one-hit keys
+        long scanKey = 1000;
+        for (int round = 0; round < 100; round++) {
+            for (long i = 0; i < 50; i++)
+                cache.computeIfAbsent(i, key -> key);
+            for (int i = 0; i < 1000; i++)
+                cache.computeIfAbsent(scanKey++, key -> key);
+        }
+        int retained = 0;
+        for (long i = 0; i < 50; i++)
+            if (cache.containsKey(i))
+                retained++;
+        assertThat(retained, greaterThan(40));
+        assertThat(cache.size(), lessThanOrEqualTo(100));
+    }
+
+    @Test
+    public void concurrentWritesTest() throws InterruptedException, ExecutionException {
+        final LongObjectCache<Long> cache = new LongObjectCache<>(10_000);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final long seed = t;
+                futures.add(executor.submit(() -> {
+                    final Random random = new Random(seed);
+                    for (int i = 0; i < 100_000; i++) {
+                        final long key = random.nextInt(20_000);
+                        final Long value = cache.computeIfAbsent(key, k -> k * 2);
+                        assertThat(value, equalTo(key * 2));
+                    }
+                }));
+            }
+            for (final Future<?> future : futures)
+                future.get();
+        } finally {
+            ExecutorUtils.close(executor, 1, TimeUnit.MINUTES);
+        }
+        assertThat(cache.size(), lessThanOrEqualTo(10_000));
+    }
+}
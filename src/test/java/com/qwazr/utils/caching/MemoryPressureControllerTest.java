@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.AccessTimeCacheMap;
+import com.qwazr.utils.concurrent.ThreadUtils;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class MemoryPressureControllerTest {
+
+    @Test
+    public void shrinkAndGrowTest() {
+        final AtomicReference<Double> occupancy = new AtomicReference<>(0.5);
+        final CacheMap<Integer, Integer> cacheMap = new CacheMap<>(1000);
+        // The CacheMap is not thread-safe, its resizing is guarded by the lock of the KeyLockedCache
+        final KeyLockedCache<Integer, Integer> lockedCacheMap = new KeyLockedCache<>(cacheMap);
+        final KeyLockedCache<Integer, Integer> keyLockedCache = KeyLockedCache.<Integer, Integer>of()
+                .maximumSize(1000)
+                .build();
+        for (int i = 0; i < 1000; i++) {
+            cacheMap.put(i, i);
+            keyLockedCache.computeIfAbsent(i, k -> k);
+        }
+        try (final MemoryPressureController controller = MemoryPressureController.of()
+                .listen(false)
+                .occupancy(occupancy::get)
+                .shrinkFactor(0.5)
+                .minimumRatio(0.2)
+                .build()) {
+            controller.register(lockedCacheMap);
+            controller.register(keyLockedCache);
+            assertThat(controller.check(), equalTo(1.0));
+
+            occupancy.set(0.9);
+            assertThat(controller.check(), equalTo(0.5));
+            assertThat(cacheMap.size(), equalTo(500));
+            assertThat(cacheMap.getCurrentMaxSize(), equalTo(500));
+            assertThat(keyLockedCache.size(), lessThanOrEqualTo(500));
+            // The eldest entries are evicted first
+            assertThat(cacheMap.containsKey(499), equalTo(false));
+            assertThat(cacheMap.containsKey(500), equalTo(true));
+
+            assertThat(controller.check(), equalTo(0.25));
+            assertThat(controller.check(), equalTo(0.2));
+            assertThat(controller.check(), equalTo(0.2));
+            assertThat(cacheMap.size(), equalTo(200));
+
+            // Between the water marks, the capacity is kept
+            occupancy.set(0.7);
+            assertThat(controller.check(), equalTo(0.2));
+
+            occupancy.set(0.3);
+            assertThat(controller.check(), equalTo(0.4));
+            assertThat(controller.check(), equalTo(0.8));
+            assertThat(controller.check(), equalTo(1.0));
+            assertThat(cacheMap.getCurrentMaxSize(), equalTo(1000));
+            for (int i = 0; i < 1000; i++) {
+                cacheMap.put(i, i);
+                keyLockedCache.computeIfAbsent(i, k -> k);
+            }
+            assertThat(cacheMap.size(), equalTo(1000));
+            assertThat(keyLockedCache.size(), greaterThan(500));
+            assertThat(cacheMap.getEvictionCount(), equalTo(800L));
+        }
+    }
+
+    @Test
+    public void collectionNotificationsTest() {
+        final AtomicReference<Double> occupancy = new AtomicReference<>(0.9);
+        try (final MemoryPressureController controller = MemoryPressureController.of()
+                .listen(false)
+                .occupancy(occupancy::get)
+                .shrinkFactor(0.5)
+                .minimumRatio(0.1)
+                .build()) {
+            assertThat(controller.onCollection(true, 1), equalTo(0.5));
+            // The same collection, and the young collections, do not shrink the caches again
+            assertThat(controller.onCollection(true, 1), equalTo(0.5));
+            for (int i = 2; i < 10; i++)
+                assertThat(controller.onCollection(false, i), equalTo(0.5));
+            // The next old generation collection does
+            assertThat(controller.onCollection(true, 10), equalTo(0.25));
+            // Any collection lets the caches grow back
+            occupancy.set(0.3);
+            assertThat(controller.onCollection(false, 11), equalTo(0.5));
+        }
+    }
+
+    @Test
+    public void accessTimeCacheMapTest() {
+        final AtomicReference<Double> occupancy = new AtomicReference<>(0.9);
+        try (final AccessTimeCacheMap<Integer, Integer> cache =
+                     AccessTimeCacheMap.<Integer, Integer>of(Duration.ofSeconds(100)).build();
+             final MemoryPressureController controller = MemoryPressureController.of()
+                     .listen(false)
+                     .occupancy(occupancy::get)
+                     .shrinkFactor(0.1)
+                     .minimumRatio(0.01)
+                     .build()) {
+            cache.getOrCreate(1, () -> 1);
+            ThreadUtils.sleep(1500, TimeUnit.MILLISECONDS);
+            cache.getOrCreate(2, () -> 2);
+            controller.register(cache);
+            assertThat(controller.check(), closeTo(0.1, 1e-9));
+            assertThat(cache.size(), equalTo(2));
+            // The time out becomes 1s: the first entry is removed, not the second one
+            assertThat(controller.check(), closeTo(0.01, 1e-9));
+            assertThat(cache.size(), equalTo(1));
+            assertThat(cache.getEvictionCount(), equalTo(1L));
+            occupancy.set(0.1);
+            controller.check();
+            controller.check();
+            assertThat(controller.getCapacityRatio(), equalTo(1.0));
+            assertThat(cache.getOrCreate(2, () -> 3), equalTo(2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notThreadSafeCacheTest() {
+        try (final MemoryPressureController controller = MemoryPressureController.of().listen(false).build()) {
+            controller.register(new CacheMap<Integer, Integer>(100));
+        }
+    }
+
+    @Test
+    public void tenuredPoolsTest() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getName().contains("Eden") || pool.getName().contains("Survivor"))
+                assertThat(pool.getName(), MemoryPressureController.isTenured(pool), equalTo(false));
+    }
+
+    @Test
+    public void notificationsTest() {
+        final CacheMap<Integer, Integer> cacheMap = new CacheMap<>(100);
+        try (final MemoryPressureController controller = MemoryPressureController.of().build()) {
+            controller.register(new KeyLockedCache<>(cacheMap));
+            assertThat(controller.getOccupancy(), both(greaterThanOrEqualTo(0.0)).and(lessThan(1.0)));
+            System.gc();
+        }
+        assertThat(cacheMap.getCurrentMaxSize(), equalTo(100));
+    }
+}
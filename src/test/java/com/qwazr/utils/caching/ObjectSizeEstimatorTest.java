@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class ObjectSizeEstimatorTest {
+
+    static class Leaf {
+        long a;
+        int b;
+        byte c;
+    }
+
+    static class Node {
+        final Leaf leaf = new Leaf();
+        final int[] data;
+        final List<String> names = new ArrayList<>();
+        Node self = this;
+
+        Node(final int size) {
+            data = new int[size];
+        }
+    }
+
+    @Test
+    public void shallowSizeTest() {
+        assertThat(ObjectSizeEstimator.shallowSizeOf(null), equalTo(0L));
+        assertThat(ObjectSizeEstimator.shallowSizeOf(new Leaf()),
+                equalTo(ObjectSizeEstimator.align(ObjectSizeEstimator.OBJECT_HEADER_SIZE + 8 + 4 + 1)));
+        assertThat(ObjectSizeEstimator.shallowSizeOf(new long[10]),
+                equalTo(ObjectSizeEstimator.align(ObjectSizeEstimator.ARRAY_HEADER_SIZE + 80)));
+        assertThat(ObjectSizeEstimator.shallowSizeOf(new Object[10]),
+                equalTo(ObjectSizeEstimator.align(
+                        ObjectSizeEstimator.ARRAY_HEADER_SIZE + 10 * ObjectSizeEstimator.REFERENCE_SIZE)));
+        assertThat(ObjectSizeEstimator.shallowSizeOf("0123456789"),
+                greaterThan(ObjectSizeEstimator.shallowSizeOf("")));
+    }
+
+    @Test
+    public void deepSizeTest() {
+        final Node small = new Node(10);
+        final Node large = new Node(10_000);
+        assertThat(ObjectSizeEstimator.deepSizeOf(large) - ObjectSizeEstimator.deepSizeOf(small),
+                equalTo(ObjectSizeEstimator.shallowSizeOf(large.data) - ObjectSizeEstimator.shallowSizeOf(small.data)));
+        // The cycle (self) is counted once, the leaf is included
+        assertThat(ObjectSizeEstimator.deepSizeOf(small), greaterThanOrEqualTo(
+                ObjectSizeEstimator.shallowSizeOf(small) + ObjectSizeEstimator.shallowSizeOf(small.leaf) +
+                        ObjectSizeEstimator.shallowSizeOf(small.data)));
+        final long emptySize = ObjectSizeEstimator.deepSizeOf(small);
+        small.names.add("a long string which is counted");
+        assertThat(ObjectSizeEstimator.deepSizeOf(small),
+                greaterThan(emptySize + ObjectSizeEstimator.shallowSizeOf(small.names.get(0)) - 1));
+
+        final Map<String, int[]> map = new HashMap<>();
+        for (int i = 0; i < 10; i++)
+            map.put("key" + i, new int[1000]);
+        assertThat(ObjectSizeEstimator.deepSizeOf(map),
+                greaterThan(10 * ObjectSizeEstimator.shallowSizeOf(new int[1000])));
+    }
+
+    @Test
+    public void weightBoundedCacheTest() {
+        final ConcurrentCacheMap<Integer, int[]> cache = ConcurrentCacheMap.<Integer, int[]>of()
+                .maximumWeight(1 << 20, Weigher.deepSize())
+                .build();
+        for (int i = 0; i < 1000; i++)
+            cache.put(i, new int[i * 10]);
+        assertThat(cache.getWeightedSize(), lessThanOrEqualTo(1L << 20));
+        assertThat(cache.size(), greaterThan(0));
+
+        final Weigher<String, String> serialized = Weigher.serializedSize();
+        assertThat(serialized.weigh("key", "0123456789"), greaterThan(10));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import com.qwazr.utils.concurrent.ExecutorUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class OffHeapCacheTest {
+
+    public static class Item implements Serializable {
+
+        public String name;
+        public int[] data;
+
+        public Item() {
+        }
+
+        Item(final String name, final int size) {
+            this.name = name;
+            this.data = new int[size];
+            for (int i = 0; i < size; i++)
+                data[i] = i;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Item))
+                return false;
+            final Item item = (Item) o;
+            return Objects.equals(name, item.name) && Arrays.equals(data, item.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(name);
+        }
+    }
+
+    @Test
+    public void chunkSizesTest() {
+        final int[] sizes = OffHeapCache.computeChunkSizes(64, 1024, 1.25f);
+        assertThat(sizes[0], equalTo(64));
+        assertThat(sizes[sizes.length - 1], equalTo(1024));
+        for (int i = 1; i < sizes.length; i++) {
+            assertThat(sizes[i], greaterThan(sizes[i - 1]));
+            assertThat(sizes[i] % 8, equalTo(0));
+        }
+    }
+
+    @Test
+    public void putGetRemoveTest() throws IOException, ReflectiveOperationException {
+        final OffHeapCache<String, Item> cache = OffHeapCache.<String, Item>of(Item.class).build();
+        final Item item = new Item("a", 100);
+        assertThat(cache.put("a", item), equalTo(true));
+        assertThat(cache.get("a"), equalTo(item));
+        assertThat(cache.put("a", new Item("b", 10)), equalTo(true));
+        assertThat(cache.get("a"), equalTo(new Item("b", 10)));
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.remove("a"), equalTo(true));
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.remove("a"), equalTo(false));
+        // Larger than a slab
+        assertThat(cache.put("big", new Item("big", 1 << 20)), equalTo(false));
+        assertThat(cache.containsKey("big"), equalTo(false));
+    }
+
+    @Test
+    public void evictionTest() throws IOException, ReflectiveOperationException {
+        final OffHeapCache<Integer, Item> cache = OffHeapCache.<Integer, Item>of(Item.class)
+                .slabSize(16 * 1024)
+                .maximumMemory(4 * 16 * 1024)
+                .build();
+        for (int i = 0; i < 2000; i++) {
+            assertThat(cache.put(i, new Item("item" + i, 50)), equalTo(true));
+            // Keep the first item hot
+            assertThat(cache.get(0), equalTo(new Item("item0", 50)));
+        }
+        assertThat(cache.getAllocatedMemory(), lessThanOrEqualTo(cache.getMaxMemory()));
+        assertThat(cache.getEvictionCount(), greaterThan(0L));
+        assertThat(cache.size() + cache.getEvictionCount(), equalTo(2000L));
+        assertThat(cache.get(1999), equalTo(new Item("item1999", 50)));
+
+        // Values of another size class take a slab back
+        for (int i = 0; i < 10; i++)
+            assertThat(cache.put(-i, new Item("large", 1000)), equalTo(true));
+        assertThat(cache.get(-9), equalTo(new Item("large", 1000)));
+        assertThat(cache.getAllocatedMemory(), lessThanOrEqualTo(cache.getMaxMemory()));
+
+        cache.clear();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.getAllocatedMemory(), equalTo(0L));
+    }
+
+    @Test
+    public void concurrentSizeClassesTest() throws InterruptedException, ExecutionException {
+        final OffHeapCache<Integer, Item> cache = OffHeapCache.<Integer, Item>of(Item.class)
+                .slabSize(16 * 1024)
+                .maximumMemory(4 * 16 * 1024)
+                .build();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                // Each thread writes its own size class, and steals the slabs of the others
+                final int size = 10 << (t * 2);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        final int key = size * 1000 + i % 100;
+                        final Item item = new Item("item" + key, size);
+                        cache.put(key, item);
+                        final Item read = cache.get(key);
+                        if (read != null)
+                            assertThat(read, equalTo(item));
+                        if (i % 7 == 0)
+                            cache.remove(key);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures)
+                future.get();
+        } finally {
+            ExecutorUtils.close(executor, 1, TimeUnit.MINUTES);
+        }
+        assertThat(cache.getAllocatedMemory(), lessThanOrEqualTo(cache.getMaxMemory()));
+        cache.clear();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.getAllocatedMemory(), equalTo(0L));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TieredCacheTest {
+
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("tieredcache");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    private TieredCache<Integer, OffHeapCacheTest.Item> open() throws IOException, ReflectiveOperationException {
+        return TieredCache.<Integer, OffHeapCacheTest.Item>of(directory, OffHeapCacheTest.Item.class)
+                .maximumMemorySize(10)
+                .segmentSize(4096)
+                .compaction(0.5, 0)
+                .build();
+    }
+
+    private long countFiles() throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void demoteAndPromoteTest() throws IOException, ReflectiveOperationException {
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache = open()) {
+            for (int i = 0; i < 100; i++)
+                cache.put(i, new OffHeapCacheTest.Item("item" + i, i));
+            assertThat(cache.getMemorySize(), equalTo(10));
+            assertThat(cache.getDiskSize(), equalTo(90));
+            for (int i = 0; i < 100; i++)
+                assertThat(cache.get(i), equalTo(new OffHeapCacheTest.Item("item" + i, i)));
+            assertThat(cache.getMemorySize() + cache.getDiskSize(), equalTo(100));
+            cache.remove(5);
+            assertThat(cache.get(5), nullValue());
+            cache.put(6, new OffHeapCacheTest.Item("six", 6));
+            assertThat(cache.get(6), equalTo(new OffHeapCacheTest.Item("six", 6)));
+        }
+    }
+
+    @Test
+    public void restartTest() throws IOException, ReflectiveOperationException {
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache = open()) {
+            for (int i = 0; i < 100; i++)
+                cache.put(i, new OffHeapCacheTest.Item("item" + i, i));
+            cache.remove(50);
+        }
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache = open()) {
+            assertThat(cache.getDiskSize(), equalTo(99));
+            assertThat(cache.get(50), nullValue());
+            for (int i = 0; i < 100; i++)
+                if (i != 50)
+                    assertThat(cache.get(i), equalTo(new OffHeapCacheTest.Item("item" + i, i)));
+        }
+    }
+
+    @Test
+    public void compactionTest() throws IOException, ReflectiveOperationException {
+        int segments;
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache = open()) {
+            for (int loop = 0; loop < 20; loop++)
+                for (int i = 0; i < 100; i++)
+                    cache.put(i, new OffHeapCacheTest.Item("item" + loop + '-' + i, i));
+            segments = cache.getDiskSegmentCount();
+            assertThat(countFiles(), equalTo((long) segments));
+            assertThat(cache.compact(), greaterThan(0));
+            assertThat(cache.getDiskSegmentCount(), lessThan(segments));
+            // The compacted segments are unmapped and their files deleted
+            assertThat(countFiles(), equalTo((long) cache.getDiskSegmentCount()));
+            for (int i = 0; i < 100; i++)
+                assertThat(cache.get(i), equalTo(new OffHeapCacheTest.Item("item19-" + i, i)));
+        }
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache = open()) {
+            for (int i = 0; i < 100; i++)
+                assertThat(cache.get(i), equalTo(new OffHeapCacheTest.Item("item19-" + i, i)));
+        }
+    }
+
+    @Test
+    public void maximumDiskSizeTest() throws IOException, ReflectiveOperationException {
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache =
+                     TieredCache.<Integer, OffHeapCacheTest.Item>of(directory, OffHeapCacheTest.Item.class)
+                             .maximumMemorySize(10)
+                             .segmentSize(4096)
+                             .maximumDiskSize(4 * 4096)
+                             .compaction(0.5, 0)
+                             .build()) {
+            for (int i = 0; i < 2000; i++)
+                cache.put(i, new OffHeapCacheTest.Item("item" + i, i % 10));
+            assertThat(cache.getDiskSegmentCount(), lessThanOrEqualTo(4));
+            assertThat(countFiles(), lessThanOrEqualTo(4L));
+            assertThat(cache.getDiskSize(), lessThan(1990));
+            // The oldest demotions are dropped, the most recent ones are kept
+            assertThat(cache.get(0), nullValue());
+            for (int i = 1980; i < 2000; i++)
+                assertThat(cache.get(i), equalTo(new OffHeapCacheTest.Item("item" + i, i % 10)));
+        }
+    }
+
+    @Test
+    public void removeWhileDemotingTest() throws IOException, ReflectiveOperationException, InterruptedException {
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache =
+                     TieredCache.<Integer, OffHeapCacheTest.Item>of(directory, OffHeapCacheTest.Item.class)
+                             .maximumMemorySize(10)
+                             .compaction(0.5, 0)
+                             .build()) {
+            final AtomicInteger written = new AtomicInteger();
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        cache.put(i, new OffHeapCacheTest.Item("item" + i, i % 10));
+                        written.set(i + 1);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            // A removed key is never resurrected by a pending demotion
+            while (writer.isAlive()) {
+                final int key = written.get() - 1;
+                if (key < 0)
+                    continue;
+                cache.remove(key);
+                assertThat(cache.get(key), nullValue());
+            }
+            writer.join();
+        }
+    }
+
+    @Test
+    public void removeWhilePromotingTest() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final TieredCache<Integer, OffHeapCacheTest.Item> cache =
+                     TieredCache.<Integer, OffHeapCacheTest.Item>of(directory, OffHeapCacheTest.Item.class)
+                             .maximumMemorySize(1)
+                             .compaction(0.5, 0)
+                             .build()) {
+            for (int i = 0; i < 1000; i++) {
+                final int key = i;
+                cache.put(key, new OffHeapCacheTest.Item("item" + key, key));
+                // Demote the key to the disk tier
+                cache.put(-1, new OffHeapCacheTest.Item("filler", key));
+                cache.get(-1);
+                final Future<OffHeapCacheTest.Item> promoted = executor.submit(() -> cache.get(key));
+                cache.remove(key);
+                final OffHeapCacheTest.Item item = promoted.get();
+                if (item != null)
+                    assertThat(item, equalTo(new OffHeapCacheTest.Item("item" + key, key)));
+                // A removed key is never promoted back
+                assertThat(cache.get(key), nullValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
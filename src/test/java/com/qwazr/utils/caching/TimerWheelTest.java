@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.caching;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TimerWheelTest {
+
+    @Test
+    public void expirationOrderTest() {
+        final Map<String, Long> deadlines = new HashMap<>();
+        final TimerWheel<String> wheel = new TimerWheel<>(deadlines::get, 0);
+        deadlines.put("second", TimeUnit.SECONDS.toNanos(2));
+        deadlines.put("minute", TimeUnit.MINUTES.toNanos(2));
+        deadlines.put("hour", TimeUnit.HOURS.toNanos(2));
+        deadlines.put("day", TimeUnit.DAYS.toNanos(2));
+        deadlines.put("week", TimeUnit.DAYS.toNanos(20));
+        deadlines.keySet().forEach(wheel::schedule);
+        assertThat(wheel.size(), equalTo(5));
+
+        final List<String> expired = new ArrayList<>();
+        wheel.advance(TimeUnit.SECONDS.toNanos(1), expired::add);
+        assertThat(expired, empty());
+        wheel.advance(TimeUnit.SECONDS.toNanos(4), expired::add);
+        assertThat(expired, equalTo(Arrays.asList("second")));
+        wheel.advance(TimeUnit.MINUTES.toNanos(3), expired::add);
+        assertThat(expired, equalTo(Arrays.asList("second", "minute")));
+        wheel.advance(TimeUnit.HOURS.toNanos(3), expired::add);
+        assertThat(expired, equalTo(Arrays.asList("second", "minute", "hour")));
+        wheel.advance(TimeUnit.DAYS.toNanos(3), expired::add);
+        assertThat(expired, equalTo(Arrays.asList("second", "minute", "hour", "day")));
+        wheel.advance(TimeUnit.DAYS.toNanos(21), expired::add);
+        assertThat(expired, equalTo(Arrays.asList("second", "minute", "hour", "day", "week")));
+        assertThat(wheel.size(), equalTo(0));
+    }
+
+    @Test
+    public void rescheduleAndDescheduleTest() {
+        final Map<String, Long> deadlines = new HashMap<>();
+        final TimerWheel<String> wheel = new TimerWheel<>(deadlines::get, 0);
+        deadlines.put("extended", TimeUnit.SECONDS.toNanos(5));
+        deadlines.put("removed", TimeUnit.SECONDS.toNanos(5));
+        wheel.schedule("extended");
+        final TimerWheel.Timer<String> timer = wheel.schedule("removed");
+        wheel.deschedule(timer);
+        wheel.deschedule(timer);
+        assertThat(wheel.size(), equalTo(1));
+
+        // The deadline is extended without touching the wheel
+        deadlines.put("extended", TimeUnit.SECONDS.toNanos(30));
+        final List<String> expired = new ArrayList<>();
+        wheel.advance(TimeUnit.SECONDS.toNanos(10), expired::add);
+        assertThat(expired, empty());
+        assertThat(wheel.size(), equalTo(1));
+        wheel.advance(TimeUnit.SECONDS.toNanos(40), expired::add);
+        assertThat(expired, equalTo(Arrays.asList("extended")));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class AdaptiveLimitTest {
+
+    private final static long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static long SLOW = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void aimdTest() throws InterruptedException {
+        final AdaptiveLimit limit = AdaptiveLimit.of().limits(2, 10, 20).aimd(0.5, 2).build();
+        final Semaphore semaphore = limit.attach();
+        // The limit only grows while the permits are used
+        limit.sample(FAST, false);
+        assertThat(limit.getLimit(), equalTo(10));
+        semaphore.acquire(10);
+        for (int i = 0; i < 100; i++)
+            limit.sample(FAST, false);
+        assertThat(limit.getLimit(), equalTo(20));
+        assertThat(semaphore.availablePermits(), equalTo(10));
+        assertThat(limit.getMinLatency(TimeUnit.NANOSECONDS), equalTo(FAST));
+        // Multiplicative decrease on slow tasks and failures
+        limit.sample(SLOW, false);
+        assertThat(limit.getLimit(), equalTo(10));
+        limit.sample(FAST, true);
+        assertThat(limit.getLimit(), equalTo(5));
+        for (int i = 0; i < 10; i++)
+            limit.sample(SLOW, false);
+        assertThat(limit.getLimit(), equalTo(2));
+        // The permits held by the running tasks are not lost
+        assertThat(semaphore.availablePermits(), equalTo(-8));
+        semaphore.release(10);
+        assertThat(semaphore.availablePermits(), equalTo(2));
+    }
+
+    @Test
+    public void gradientTest() {
+        final AdaptiveLimit limit = AdaptiveLimit.of().limits(1, 8, 64).gradient(2, 0.2).build();
+        final Semaphore semaphore = limit.attach();
+        for (int i = 0; i < 200; i++)
+            limit.sample(FAST, false);
+        assertThat(limit.getLimit(), equalTo(64));
+        for (int i = 0; i < 200; i++)
+            limit.sample(FAST * 10, false);
+        assertThat(limit.getLimit(), lessThan(64));
+        assertThat(limit.getLimit(), greaterThanOrEqualTo(1));
+        assertThat(semaphore.availablePermits(), equalTo(limit.getLimit()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void attachedOnceTest() {
+        final AdaptiveLimit limit = AdaptiveLimit.of().build();
+        TaskPool.of(limit).close();
+        new BlockingExecutorService(limit);
+    }
+
+    /**
+     * A downstream system which is fast up to 4 concurrent calls, and slows down beyond
+     */
+    private static void downstream(final AtomicInteger concurrent) {
+        try {
+            ThreadUtils.sleep(concurrent.incrementAndGet() <= 4 ? 2 : 20, TimeUnit.MILLISECONDS);
+        } finally {
+            concurrent.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void blockingExecutorServiceTest() throws InterruptedException, ExecutionException {
+        final AdaptiveLimit limit = AdaptiveLimit.of().limits(1, 16, 32).windowSize(50).build();
+        final BlockingExecutorService executorService = new BlockingExecutorService(limit);
+        final AtomicInteger concurrent = new AtomicInteger();
+        Future<?> last = null;
+        for (int i = 0; i < 400; i++)
+            last = executorService.submit(() -> downstream(concurrent));
+        last.get();
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        assertThat(limit.getLimit(), lessThan(16));
+        assertThat(limit.getLimit(), greaterThan(0));
+        assertThat(executorService.availablePermits(), equalTo(limit.getLimit()));
+    }
+
+    @Test
+    public void taskPoolTest() {
+        final AdaptiveLimit limit = AdaptiveLimit.of().limits(1, 16, 32).gradient(2, 0.2).windowSize(50).build();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger minLimit = new AtomicInteger(Integer.MAX_VALUE);
+        try (final TaskPool pool = TaskPool.of(limit)) {
+            for (int i = 0; i < 400; i++)
+                pool.submit(() -> {
+                    downstream(concurrent);
+                    done.incrementAndGet();
+                    minLimit.accumulateAndGet(limit.getLimit(), Math::min);
+                });
+        }
+        assertThat(done.get(), equalTo(400));
+        // The limit backs off while the downstream is saturated, it may grow again when the load drains
+        assertThat(minLimit.get(), lessThan(16));
+        assertThat(limit.getLimit(), lessThanOrEqualTo(32));
+    }
+
+    @Test
+    public void taskPoolFailureTest() {
+        final AdaptiveLimit limit = AdaptiveLimit.of().limits(1, 8, 16).aimd(0.5, 2).build();
+        final AtomicInteger done = new AtomicInteger();
+        try (final TaskPool pool = TaskPool.of(limit)) {
+            for (int i = 0; i < 10; i++)
+                pool.submit(() -> {
+                    done.incrementAndGet();
+                    throw new IllegalStateException("Downstream failure");
+                });
+        }
+        assertThat(done.get(), equalTo(10));
+        // The pool catches the failures, yet each one backs off the limit
+        assertThat(limit.getLimit(), equalTo(1));
+    }
+}
@@ -16,10 +16,24 @@
 package com.qwazr.utils.concurrent;
 
 import com.qwazr.utils.RandomUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import org.hamcrest.MatcherAssert;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.lessThan;
 import org.junit.Assert;
 import org.junit.Test;
@@ -123,5 +137,219 @@ public class BlockingExecutorServiceTest {
     public void testExecuteExceptions() throws InterruptedException {
         testLoop(10, 50, (executorService, counters) -> executorService.execute(counters::runEx));
     }
-    
+
+    @Test
+    public void testDeadlineShedding() throws InterruptedException, ExecutionException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(1);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            executorService.submit(() -> {
+                latch.await();
+                return null;
+            });
+            // No permit is available before the deadline: the task is shed without blocking
+            final Future<?> shed = executorService.submit(Deadline.after(50, TimeUnit.MILLISECONDS),
+                    () -> Assert.fail("Should not run"));
+            try {
+                shed.get();
+                Assert.fail("ExecutionException expected");
+            } catch (ExecutionException e) {
+                MatcherAssert.assertThat(e.getCause(), instanceOf(Deadline.ExceededException.class));
+            }
+            Assert.assertEquals(1, executorService.getShedTasks());
+            latch.countDown();
+            final Future<Long> budget = executorService.submit(Deadline.after(1, TimeUnit.MINUTES),
+                    () -> Deadline.current().remaining(TimeUnit.SECONDS));
+            MatcherAssert.assertThat(budget.get(), greaterThan(0L));
+            Assert.assertEquals(1, executorService.getShedTasks());
+            Assert.assertFalse(Deadline.current().isFinite());
+        } finally {
+            executorService.shutdown();
+            Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        }
+    }
+
+    @Test
+    public void testInvokeAll() throws InterruptedException, ExecutionException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(3);
+        final Counters counters = new Counters();
+        final List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            final int value = i;
+            tasks.add(() -> {
+                counters.run();
+                return value;
+            });
+        }
+        final List<Future<Integer>> futures = executorService.invokeAll(tasks);
+        Assert.assertEquals(9, futures.size());
+        for (int i = 0; i < 9; i++) {
+            Assert.assertTrue(futures.get(i).isDone());
+            Assert.assertEquals(Integer.valueOf(i), futures.get(i).get());
+        }
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(3, executorService.availablePermits());
+        counters.checkCounters(3, 9);
+    }
+
+    @Test
+    public void testInvokeAllTimeout() throws InterruptedException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(2);
+        final List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            tasks.add(() -> {
+                ThreadUtils.sleep(300, TimeUnit.MILLISECONDS);
+                return 1;
+            });
+        final List<Future<Integer>> futures = executorService.invokeAll(tasks, 450, TimeUnit.MILLISECONDS);
+        int cancelled = 0;
+        for (final Future<Integer> future : futures) {
+            Assert.assertTrue(future.isDone());
+            if (future.isCancelled())
+                cancelled++;
+        }
+        Assert.assertEquals(4, cancelled);
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(2, executorService.availablePermits());
+    }
+
+    @Test
+    public void testInvokeAny() throws InterruptedException, ExecutionException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(4);
+        final AtomicInteger interrupted = new AtomicInteger();
+        final List<Callable<String>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            throw new IllegalStateException("fails");
+        });
+        tasks.add(() -> {
+            ThreadUtils.sleep(100, TimeUnit.MILLISECONDS);
+            return "winner";
+        });
+        for (int i = 0; i < 6; i++)
+            tasks.add(() -> {
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+                return "loser";
+            });
+        final long start = System.currentTimeMillis();
+        Assert.assertEquals("winner", executorService.invokeAny(tasks));
+        MatcherAssert.assertThat(System.currentTimeMillis() - start, lessThan(10000L));
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        // The failed task frees its permit for a third loser: the running losers are interrupted,
+        // the pending ones never run
+        Assert.assertEquals(3, interrupted.get());
+        Assert.assertEquals(4, executorService.availablePermits());
+    }
+
+    @Test
+    public void testInvokeAnyFailures() throws InterruptedException, TimeoutException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(2);
+        final List<Callable<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final String message = "failure" + i;
+            tasks.add(() -> {
+                throw new IllegalStateException(message);
+            });
+        }
+        try {
+            executorService.invokeAny(tasks, 1, TimeUnit.MINUTES);
+            Assert.fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            MatcherAssert.assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+        try {
+            executorService.invokeAny(Collections.singletonList(() -> {
+                ThreadUtils.sleep(1, TimeUnit.SECONDS);
+                return "late";
+            }), 100, TimeUnit.MILLISECONDS);
+            Assert.fail("TimeoutException expected");
+        } catch (ExecutionException | TimeoutException e) {
+            MatcherAssert.assertThat(e, instanceOf(TimeoutException.class));
+        }
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(2, executorService.availablePermits());
+    }
+
+    @Test
+    public void testTrySubmitAndTimedSubmit() throws InterruptedException, ExecutionException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Optional<Future<Object>> first = executorService.trySubmit(() -> {
+            latch.await();
+            return "first";
+        });
+        Assert.assertTrue(first.isPresent());
+        Assert.assertFalse(executorService.trySubmit(() -> "second").isPresent());
+        Assert.assertFalse(executorService.tryExecute(() -> Assert.fail("Should not run")));
+        try {
+            executorService.submit(() -> "third", 50, TimeUnit.MILLISECONDS);
+            Assert.fail("PermitTimeoutException expected");
+        } catch (BlockingExecutorService.PermitTimeoutException e) {
+            // Expected
+        }
+        latch.countDown();
+        Assert.assertEquals("first", first.get().get());
+        Assert.assertEquals("fourth", executorService.submit(() -> "fourth", 1, TimeUnit.MINUTES).get());
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(1, executorService.availablePermits());
+    }
+
+    @Test
+    public void testSubmitAsync() throws InterruptedException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(2);
+        final Counters counters = new Counters();
+        final List<CompletableFuture<?>> futures = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++)
+            futures.add(executorService.submitAsync(counters::run));
+        // The caller is never parked, whatever the number of the queued tasks
+        MatcherAssert.assertThat(System.currentTimeMillis() - start, lessThan(500L));
+        final CompletableFuture<Object> failed = executorService.submitAsync(() -> {
+            throw new IllegalStateException("async");
+        });
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        try {
+            failed.join();
+            Assert.fail("CompletionException expected");
+        } catch (CompletionException e) {
+            MatcherAssert.assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(2, executorService.availablePermits());
+        counters.checkCounters(2, 10);
+    }
+
+    @Test
+    public void testSubmitAsyncShutdown() throws InterruptedException {
+        final BlockingExecutorService executorService = new BlockingExecutorService(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<Object> running = executorService.submitAsync(() -> {
+            latch.await();
+            return "done";
+        });
+        final CompletableFuture<Object> queued = executorService.submitAsync(() -> "never");
+        executorService.shutdown();
+        // The queued task is failed at once, the running task completes
+        try {
+            queued.join();
+            Assert.fail("CompletionException expected");
+        } catch (CompletionException e) {
+            MatcherAssert.assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+        latch.countDown();
+        Assert.assertEquals("done", running.join());
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        Assert.assertEquals(1, executorService.availablePermits());
+        Assert.assertTrue(executorService.submitAsync(() -> "after").isCompletedExceptionally());
+    }
+
 }
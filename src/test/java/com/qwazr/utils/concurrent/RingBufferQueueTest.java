@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.utils.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class RingBufferQueueTest {
+
+    @Test
+    public void singleThreadTest() throws InterruptedException {
+        final RingBufferQueue<Integer> queue = new RingBufferQueue<>(5);
+        assertThat(queue.getCapacity(), equalTo(8));
+        assertThat(queue.poll(), nullValue());
+        assertThat(queue.peek(), nullValue());
+        for (int i = 0; i < 8; i++)
+            assertThat(queue.offer(i), equalTo(true));
+        assertThat(queue.offer(8), equalTo(false));
+        assertThat(queue.offer(8, 10, TimeUnit.MILLISECONDS), equalTo(false));
+        assertThat(queue.size(), equalTo(8));
+        assertThat(queue.remainingCapacity(), equalTo(0));
+        assertThat(queue.peek(), equalTo(0));
+        final List<Integer> snapshot = new ArrayList<>();
+        queue.forEach(snapshot::add);
+        assertThat(snapshot, equalTo(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7)));
+        assertThat(queue.take(), equalTo(0));
+        final List<Integer> drained = new ArrayList<>();
+        assertThat(queue.drainTo(drained, 3), equalTo(3));
+        assertThat(drained, equalTo(Arrays.asList(1, 2, 3)));
+        // The ring wraps around
+        for (int i = 8; i < 12; i++)
+            queue.put(i);
+        drained.clear();
+        assertThat(queue.drainTo(drained), equalTo(8));
+        assertThat(drained, equalTo(Arrays.asList(4, 5, 6, 7, 8, 9, 10, 11)));
+        assertThat(queue.isEmpty(), equalTo(true));
+        assertThat(queue.poll(10, TimeUnit.MILLISECONDS), nullValue());
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void interruptedTakeTest() throws InterruptedException {
+        final RingBufferQueue<Integer> queue = new RingBufferQueue<>(2, RingBufferQueue.WaitStrategy.PARK);
+        Thread.currentThread().interrupt();
+        queue.take();
+    }
+
+    private void multiProducersMultiConsumers(final RingBufferQueue.WaitStrategy waitStrategy)
+            throws Exception {
+        final int threads = 4;
+        final int itemsPerProducer = 50_000;
+        final RingBufferQueue<Integer> queue = new RingBufferQueue<>(64, waitStrategy);
+        final AtomicIntegerArray received = new AtomicIntegerArray(threads * itemsPerProducer);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < threads; p++) {
+                final int producer = p;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < itemsPerProducer; i++)
+                        queue.put(producer * itemsPerProducer + i);
+                    return null;
+                }));
+            }
+            for (int c = 0; c < threads; c++)
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < itemsPerProducer; i++)
+                        received.incrementAndGet(queue.take());
+                    return null;
+                }));
+            for (final Future<?> future : futures)
+                future.get(1, TimeUnit.MINUTES);
+        } finally {
+            ExecutorUtils.close(executor, 1, TimeUnit.MINUTES);
+        }
+        // Each item is received exactly once
+        for (int i = 0; i < received.length(); i++)
+            assertThat(received.get(i), equalTo(1));
+        assertThat(queue.isEmpty(), equalTo(true));
+        assertThat(queue.remainingCapacity(), greaterThanOrEqualTo(64));
+    }
+
+    @Test
+    public void busySpinTest() throws Exception {
+        multiProducersMultiConsumers(RingBufferQueue.WaitStrategy.BUSY_SPIN);
+    }
+
+    @Test
+    public void yieldTest() throws Exception {
+        multiProducersMultiConsumers(RingBufferQueue.WaitStrategy.YIELD);
+    }
+
+    @Test
+    public void parkTest() throws Exception {
+        multiProducersMultiConsumers(RingBufferQueue.WaitStrategy.PARK);
+    }
+}
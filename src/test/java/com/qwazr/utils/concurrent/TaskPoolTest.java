@@ -23,12 +23,27 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -179,4 +194,285 @@ public class TaskPoolTest {
         }
     }
 
+    @Test
+    public void concurrentProducersWithShutdownTest() throws InterruptedException {
+        final int producers = 8;
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger executed = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final TaskPool pool = TaskPool.of(executorService, 4);
+        final ExecutorService producerService = Executors.newFixedThreadPool(producers);
+        try {
+            for (int i = 0; i < producers; i++) {
+                producerService.execute(() -> {
+                    try {
+                        for (; ; ) {
+                            pool.submit(() -> {
+                                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                                executed.incrementAndGet();
+                                running.decrementAndGet();
+                            });
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException e) {
+                        rejected.incrementAndGet();
+                    }
+                });
+            }
+            ThreadUtils.sleep(50, TimeUnit.MILLISECONDS);
+            pool.shutdown().awaitCompletion();
+            completed.set(executed.get());
+            assertEquals(0, pool.getConcurrentTasks());
+            assertTrue(maxRunning.get() <= 4);
+        } finally {
+            ExecutorUtils.close(producerService, 1, TimeUnit.MINUTES);
+        }
+        assertEquals(accepted.get(), completed.get());
+        assertEquals(producers, rejected.get());
+        thrown.expect(IllegalStateException.class);
+        pool.submit(() -> {
+        });
+    }
+
+    @Test
+    public void virtualTest() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger executed = new AtomicInteger();
+        try (final TaskPool pool = TaskPool.ofVirtual(50)) {
+            for (int i = 0; i < 500; i++)
+                pool.submit(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    ThreadUtils.sleep(5, TimeUnit.MILLISECONDS);
+                    running.decrementAndGet();
+                    executed.incrementAndGet();
+                });
+        }
+        assertEquals(500, executed.get());
+        assertTrue(maxRunning.get() <= 50);
+    }
+
+    @Test
+    public void tenantFairSchedulingTest() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try (final TaskPool pool = TaskPool.of(executorService, 1)) {
+            pool.tenantWeight("interactive", 2);
+            // Hold the only permit, so that the following tasks are queued
+            pool.submit("bulk", 0, () -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            for (int i = 0; i < 6; i++) {
+                final String bulk = "bulk" + i;
+                pool.submit("bulk", 0, () -> order.add(bulk));
+            }
+            for (int i = 0; i < 6; i++) {
+                final String interactive = "interactive" + i;
+                pool.submit("interactive", i, () -> order.add(interactive));
+            }
+            final Map<String, TaskPool.TenantStats> stats = pool.getTenantStats();
+            assertEquals(6, stats.get("bulk").getQueueDepth());
+            assertEquals(6, stats.get("interactive").getQueueDepth());
+            assertEquals(12, pool.getConcurrentTasks() - 1);
+            latch.countDown();
+        }
+        assertEquals(12, order.size());
+        // Strict priority within a tenant: the highest priority first
+        final List<String> interactives = new ArrayList<>();
+        for (final String task : order)
+            if (task.startsWith("interactive"))
+                interactives.add(task);
+        assertEquals(Arrays.asList("interactive5", "interactive4", "interactive3", "interactive2", "interactive1",
+                "interactive0"), interactives);
+        // The interactive tenant is served twice as often as the bulk tenant
+        int interactiveFirst = 0;
+        for (final String task : order.subList(0, 6))
+            if (task.startsWith("interactive"))
+                interactiveFirst++;
+        assertEquals(4, interactiveFirst);
+    }
+
+    @Test
+    public void tenantStatsTest() {
+        final TaskPool pool = TaskPool.of(executorService, 2);
+        for (int i = 0; i < 10; i++)
+            pool.submit("tenant", 0, () -> ThreadUtils.sleep(10, TimeUnit.MILLISECONDS));
+        pool.close();
+        final TaskPool.TenantStats stats = pool.getTenantStats().get("tenant");
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(10, stats.getDispatchedTasks());
+        assertTrue(stats.getMaxWaitTime(TimeUnit.MILLISECONDS) >= 10);
+        assertTrue(stats.getMeanWaitTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void idleTenantsTest() {
+        final TaskPool pool = TaskPool.of(executorService, 2);
+        pool.tenantWeight("weighted", 2);
+        for (int i = 0; i < 1000; i++)
+            pool.submit("tenant" + i, 0, () -> null).join();
+        pool.close();
+        // The idle tenants with the default weight are dropped, not the weighted ones
+        final Map<String, TaskPool.TenantStats> stats = pool.getTenantStats();
+        assertTrue(stats.size() <= 129);
+        assertTrue(stats.containsKey("weighted"));
+    }
+
+    @Test
+    public void submitAllCompletionOrderTest() {
+        final List<Supplier<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int value = i;
+            tasks.add(() -> {
+                ThreadUtils.sleep((4 - value) * 100, TimeUnit.MILLISECONDS);
+                return value;
+            });
+        }
+        try (final TaskPool pool = TaskPool.of(executorService, 4)) {
+            assertEquals(Arrays.asList(3, 2, 1, 0), pool.submitAll(tasks, 4).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void submitAllBackPressureTest() {
+        final int bufferSize = 8;
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger maxPending = new AtomicInteger();
+        final Iterable<Supplier<Integer>> tasks = () -> IntStream.range(0, 100_000)
+                .mapToObj(i -> (Supplier<Integer>) () -> {
+                    maxPending.accumulateAndGet(submitted.incrementAndGet() - consumed.get(), Math::max);
+                    return i;
+                }).iterator();
+        try (final TaskPool pool = TaskPool.of(executorService, 4)) {
+            final long sum = pool.submitAll(tasks, bufferSize).peek(i -> consumed.incrementAndGet())
+                    .mapToLong(Integer::longValue).sum();
+            assertEquals(100_000L * 99_999L / 2, sum);
+        }
+        assertEquals(100_000, consumed.get());
+        assertTrue(maxPending.get() <= bufferSize);
+    }
+
+    @Test
+    public void deadlineSheddingTest() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        try (final TaskPool pool = TaskPool.of(executorService, 1)) {
+            pool.submit(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            // Waiting for a permit
+            final CompletableFuture<?> blocked =
+                    pool.submit(Deadline.after(50, TimeUnit.MILLISECONDS), executed::incrementAndGet);
+            // Queued in a tenant queue
+            final List<CompletableFuture<?>> queued = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                queued.add(pool.submit("tenant", 0, Deadline.after(50, TimeUnit.MILLISECONDS),
+                        executed::incrementAndGet));
+            final CompletableFuture<Long> budget = pool.submit("tenant", 0, Deadline.after(1, TimeUnit.MINUTES),
+                    () -> Deadline.current().remaining(TimeUnit.SECONDS));
+            ThreadUtils.sleep(100, TimeUnit.MILLISECONDS);
+            // The queued tasks are shed without waiting for a permit
+            for (final CompletableFuture<?> future : queued)
+                assertTrue(future.isCompletedExceptionally());
+            latch.countDown();
+            assertTrue(blocked.isCompletedExceptionally());
+            for (final CompletableFuture<?> future : queued) {
+                try {
+                    future.join();
+                    Assert.fail("CompletionException expected");
+                } catch (CompletionException e) {
+                    assertTrue(e.getCause() instanceof Deadline.ExceededException);
+                }
+            }
+            assertTrue(budget.join() > 0);
+            assertEquals(0, executed.get());
+            assertEquals(6, pool.getShedTasks());
+        }
+    }
+
+    @Test
+    public void cancelledTaskCloseTest() {
+        final Logger logger = Logger.getLogger(TaskPoolTest.class.getName() + ".cancelled");
+        logger.setUseParentHandlers(false);
+        final AtomicInteger warnings = new AtomicInteger();
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(final LogRecord record) {
+                if (record.getLevel() == Level.WARNING)
+                    warnings.incrementAndGet();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        final AtomicInteger executed = new AtomicInteger();
+        final TaskPool pool = TaskPool.of(logger, executorService, 2);
+        final CompletableFuture<?> future = pool.submit(() -> {
+            ThreadUtils.sleep(1, TimeUnit.SECONDS);
+            executed.incrementAndGet();
+        });
+        assertTrue(future.cancel(true));
+        pool.close();
+        // The pool waits for the task itself, and reports the cancellation once
+        assertEquals(1, executed.get());
+        assertEquals(0, pool.getConcurrentTasks());
+        assertEquals(1, warnings.get());
+    }
+
+    @Test
+    public void defaultMethodsTest() {
+        final TaskPool pool = new TaskPool() {
+
+            @Override
+            public <RESULT> CompletableFuture<RESULT> submit(final Supplier<RESULT> task) {
+                return CompletableFuture.completedFuture(task.get());
+            }
+
+            @Override
+            public int getConcurrentTasks() {
+                return 0;
+            }
+
+            @Override
+            public TaskPool shutdown() {
+                return this;
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return false;
+            }
+
+            @Override
+            public TaskPool awaitCompletion() {
+                return this;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertEquals("ok", pool.submit("tenant", 1, Deadline.after(1, TimeUnit.MINUTES), () -> "ok").join());
+        assertTrue(pool.submit(Deadline.after(0, TimeUnit.NANOSECONDS), () -> "ok").isCompletedExceptionally());
+        assertTrue(pool.tenantWeight("tenant", 2).getTenantStats().isEmpty());
+        assertEquals(0, pool.getShedTasks());
+    }
+
 }
@@ -0,0 +1,86 @@
+package com.qwazr.utils.test;
+
+import com.qwazr.utils.concurrent.ConcurrentQueue;
+import com.qwazr.utils.concurrent.ExecutorUtils;
+import com.qwazr.utils.concurrent.RingBufferQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the hand-off throughput of the ConcurrentQueue backends, with several producers and consumers
+ */
+@State(Scope.Benchmark)
+public class ConcurrentQueueBackendTest {
+
+    private final static int LOOP = 100000;
+    private final static int CAPACITY = 1024;
+    private final static Integer ENDING_ITEM = -1;
+
+    @Param({"ArrayBlockingQueue", "BUSY_SPIN", "YIELD", "PARK"})
+    public String backend;
+
+    @Param({"2", "8"})
+    public int producers;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        ExecutorUtils.close(executor, 1, TimeUnit.MINUTES);
+    }
+
+    private BlockingQueue<Integer> newQueue() {
+        return "ArrayBlockingQueue".equals(backend) ?
+                new ArrayBlockingQueue<>(CAPACITY) :
+                new RingBufferQueue<>(CAPACITY, RingBufferQueue.WaitStrategy.valueOf(backend));
+    }
+
+    @Benchmark
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 2, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    public void handOff() throws Exception {
+        final LongAdder counter = new LongAdder();
+        try (final ConcurrentQueue<Integer> queue = new ConcurrentQueue<Integer>(executor, 4, newQueue(),
+                ENDING_ITEM) {
+            @Override
+            protected Consumer<Integer> getNewConsumer() {
+                return item -> counter.increment();
+            }
+        }) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < producers; p++)
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < LOOP; i++)
+                        queue.accept(i);
+                }));
+            for (final Future<?> future : futures)
+                future.get();
+        }
+        assertThat(counter.sum(), equalTo((long) LOOP * producers));
+    }
+}
@@ -15,14 +15,19 @@
  */
 package com.qwazr.utils.test;
 
+import com.qwazr.utils.WaitFor;
+import com.qwazr.utils.concurrent.ConcurrentBatchQueue;
 import com.qwazr.utils.concurrent.ConcurrentQueue;
 import com.qwazr.utils.concurrent.ExecutorUtils;
+import com.qwazr.utils.concurrent.RingBufferQueue;
+import com.qwazr.utils.concurrent.ThreadUtils;
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -105,4 +110,128 @@ public class ConcurrentQueueTest {
             };
         }
     }
+
+    @Test
+    public void largeCapacityQueue() {
+        final AtomicInteger counter = new AtomicInteger();
+        try (final ConcurrentQueue<Integer> queue = new ConcurrentQueue<Integer>(executor, MULTI_THREAD, 1000,
+                ENDING_ITEM) {
+            @Override
+            protected Consumer<Integer> getNewConsumer() {
+                return integer -> {
+                    ThreadUtils.sleep(10, TimeUnit.MILLISECONDS);
+                    counter.incrementAndGet();
+                };
+            }
+        }) {
+            // The producer is not blocked while the queue has room
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++)
+                queue.accept(i);
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+            Assert.assertTrue(counter.get() < 100);
+        }
+        Assert.assertEquals(100, counter.get());
+    }
+
+    private class BatchQueue extends ConcurrentBatchQueue<Integer> {
+
+        private final AtomicInteger counter;
+        private final AtomicInteger batches;
+        private final AtomicInteger maxBatch;
+
+        private BatchQueue(final int maxBatchSize, final long lingerMs) {
+            super(executor, MULTI_THREAD, 1000, maxBatchSize, lingerMs, TimeUnit.MILLISECONDS, ENDING_ITEM);
+            this.counter = new AtomicInteger();
+            this.batches = new AtomicInteger();
+            this.maxBatch = new AtomicInteger();
+        }
+
+        @Override
+        protected Consumer<List<Integer>> getNewConsumer() {
+            return items -> {
+                Assert.assertFalse(items.isEmpty());
+                Assert.assertFalse(items.contains(ENDING_ITEM));
+                counter.addAndGet(items.size());
+                batches.incrementAndGet();
+                maxBatch.accumulateAndGet(items.size(), Math::max);
+            };
+        }
+    }
+
+    @Test
+    public void batchQueue() {
+        final int l = RandomUtils.nextInt(10000, 50000);
+        final BatchQueue queue = new BatchQueue(100, 10);
+        try {
+            for (int i = 0; i < l; i++)
+                queue.accept(i);
+        } finally {
+            queue.close();
+        }
+        Assert.assertEquals(l, queue.counter.get());
+        Assert.assertTrue(queue.maxBatch.get() <= 100);
+        Assert.assertTrue(queue.batches.get() < l);
+    }
+
+    @Test
+    public void batchQueueLinger() {
+        final BatchQueue queue = new BatchQueue(1000, 200);
+        try {
+            // A partial batch is delivered once the linger time is elapsed
+            queue.accept(1);
+            queue.accept(2);
+            WaitFor.of().timeOut(TimeUnit.SECONDS, 10).until(() -> queue.counter.get() == 2);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            queue.close();
+        }
+        Assert.assertEquals(2, queue.counter.get());
+    }
+
+    @Test
+    public void batchQueueEmptyClose() {
+        final BatchQueue queue = new BatchQueue(10, 1000);
+        final long start = System.currentTimeMillis();
+        queue.close();
+        // The break items do not linger
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertEquals(0, queue.batches.get());
+    }
+
+    @Test
+    public void ringBufferQueue() {
+        final AtomicInteger counter = new AtomicInteger();
+        final int l = RandomUtils.nextInt(1000, 5000);
+        try (final ConcurrentQueue<Integer> queue = new ConcurrentQueue<Integer>(executor, MULTI_THREAD,
+                new RingBufferQueue<>(64, RingBufferQueue.WaitStrategy.PARK), ENDING_ITEM) {
+            @Override
+            protected Consumer<Integer> getNewConsumer() {
+                return integer -> counter.incrementAndGet();
+            }
+        }) {
+            for (int i = 0; i < l; i++)
+                queue.accept(i);
+        }
+        Assert.assertEquals(l, counter.get());
+    }
+
+    @Test
+    public void ringBufferBatchQueue() {
+        final AtomicInteger counter = new AtomicInteger();
+        final int l = RandomUtils.nextInt(10000, 50000);
+        try (final ConcurrentBatchQueue<Integer> queue = new ConcurrentBatchQueue<Integer>(executor, MULTI_THREAD,
+                new RingBufferQueue<>(1024, RingBufferQueue.WaitStrategy.YIELD), 100, 10, TimeUnit.MILLISECONDS,
+                ENDING_ITEM) {
+            @Override
+            protected Consumer<List<Integer>> getNewConsumer() {
+                return items -> counter.addAndGet(items.size());
+            }
+        }) {
+            for (int i = 0; i < l; i++)
+                queue.accept(i);
+        }
+        Assert.assertEquals(l, counter.get());
+    }
 }